@@ -0,0 +1,142 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import java.util.Arrays;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Growable struct-of-arrays buffer of candidate boxes. Each box has the same 9 columns as the MTCNN total boxes
+ * matrix: [x1, y1, x2, y2, score, dx1, dy1, dx2, dy2]. The buffer is meant to be cleared and reused, so that
+ * in steady state no allocation happens.
+ *
+ * @author Christian Tzolov
+ */
+public class BoxBuffer {
+
+	public static final int COLUMNS = 9;
+
+	public float[] x1, y1, x2, y2, score, dx1, dy1, dx2, dy2;
+
+	private int size;
+
+	public BoxBuffer(int initialCapacity) {
+		int capacity = Math.max(initialCapacity, 1);
+		this.x1 = new float[capacity];
+		this.y1 = new float[capacity];
+		this.x2 = new float[capacity];
+		this.y2 = new float[capacity];
+		this.score = new float[capacity];
+		this.dx1 = new float[capacity];
+		this.dy1 = new float[capacity];
+		this.dx2 = new float[capacity];
+		this.dy2 = new float[capacity];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return x1.length;
+	}
+
+	public void clear() {
+		this.size = 0;
+	}
+
+	public void add(float x1, float y1, float x2, float y2, float score, float dx1, float dy1, float dx2, float dy2) {
+		if (this.size == this.capacity()) {
+			this.ensureCapacity(this.size * 2);
+		}
+		int i = this.size++;
+		this.x1[i] = x1;
+		this.y1[i] = y1;
+		this.x2[i] = x2;
+		this.y2[i] = y2;
+		this.score[i] = score;
+		this.dx1[i] = dx1;
+		this.dy1[i] = dy1;
+		this.dx2[i] = dx2;
+		this.dy2[i] = dy2;
+	}
+
+	/**
+	 * Appends all the boxes of another buffer.
+	 */
+	public void addAll(BoxBuffer boxes) {
+		this.ensureCapacity(this.size + boxes.size);
+		System.arraycopy(boxes.x1, 0, this.x1, this.size, boxes.size);
+		System.arraycopy(boxes.y1, 0, this.y1, this.size, boxes.size);
+		System.arraycopy(boxes.x2, 0, this.x2, this.size, boxes.size);
+		System.arraycopy(boxes.y2, 0, this.y2, this.size, boxes.size);
+		System.arraycopy(boxes.score, 0, this.score, this.size, boxes.size);
+		System.arraycopy(boxes.dx1, 0, this.dx1, this.size, boxes.size);
+		System.arraycopy(boxes.dy1, 0, this.dy1, this.size, boxes.size);
+		System.arraycopy(boxes.dx2, 0, this.dx2, this.size, boxes.size);
+		System.arraycopy(boxes.dy2, 0, this.dy2, this.size, boxes.size);
+		this.size += boxes.size;
+	}
+
+	public void ensureCapacity(int capacity) {
+		if (capacity > this.capacity()) {
+			this.x1 = Arrays.copyOf(this.x1, capacity);
+			this.y1 = Arrays.copyOf(this.y1, capacity);
+			this.x2 = Arrays.copyOf(this.x2, capacity);
+			this.y2 = Arrays.copyOf(this.y2, capacity);
+			this.score = Arrays.copyOf(this.score, capacity);
+			this.dx1 = Arrays.copyOf(this.dx1, capacity);
+			this.dy1 = Arrays.copyOf(this.dy1, capacity);
+			this.dx2 = Arrays.copyOf(this.dx2, capacity);
+			this.dy2 = Arrays.copyOf(this.dy2, capacity);
+		}
+	}
+
+	/**
+	 * @return All boxes as a new [N x 9] matrix or an empty array if the buffer is empty.
+	 */
+	public INDArray toINDArray() {
+		return this.toINDArray(null, this.size);
+	}
+
+	/**
+	 * @param rows indexes of the boxes to copy, in the output order. Null selects the first count boxes.
+	 * @param count number of boxes to copy
+	 * @return The selected boxes as a new [count x 9] matrix or an empty array if count is 0.
+	 */
+	public INDArray toINDArray(int[] rows, int count) {
+		if (count == 0) {
+			return Nd4j.empty();
+		}
+		float[] data = new float[count * COLUMNS];
+		for (int r = 0; r < count; r++) {
+			int i = (rows == null) ? r : rows[r];
+			int offset = r * COLUMNS;
+			data[offset] = this.x1[i];
+			data[offset + 1] = this.y1[i];
+			data[offset + 2] = this.x2[i];
+			data[offset + 3] = this.y2[i];
+			data[offset + 4] = this.score[i];
+			data[offset + 5] = this.dx1[i];
+			data[offset + 6] = this.dy1[i];
+			data[offset + 7] = this.dx2[i];
+			data[offset + 8] = this.dy2[i];
+		}
+		return Nd4j.create(data, new int[] { count, COLUMNS });
+	}
+}
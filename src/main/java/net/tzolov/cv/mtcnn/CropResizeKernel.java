@@ -0,0 +1,275 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import static net.tzolov.cv.mtcnn.MtcnnUtil.CHANNEL_COUNT;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Fused crop, pad, resize and normalize kernel used to build the R-Net and O-Net candidate batches and,
+ * for the primitive pipeline, the P-Net pyramid levels.
+ *
+ * <p>Each candidate patch is the {@code tmph x tmpw} zero padded box of the MTCNN {@code pad} step. Rather
+ * than materializing the patch, the kernel samples the source image through the patch coordinates and
+ * writes the resized, {@code (x - 127.5) * 0.0078125} normalized pixels straight into the candidate's
+ * slot of a planar [N, 3, size, size] batch.
+ *
+ * <p>The resampling follows the OpenCV {@code INTER_AREA} rules: area averaging when the patch shrinks
+ * along both axes, the area flavored linear interpolation otherwise. Like the former {@code uint8} OpenCV
+ * round trip the resized pixels are rounded to integer intensities. OpenCV computes the upscaling taps in
+ * fixed point, hence the results may differ by one intensity level, i.e. by {@code 0.0078125} after the
+ * normalization.
+ *
+ * <p>The kernel keeps its tap tables between the calls and is not thread safe.
+ */
+class CropResizeKernel {
+
+  private static final float MEAN = 127.5f;
+
+  private static final float SCALE = 0.0078125f;
+
+  private FloatBuffer image;
+  private byte[] bytes;
+  private int channelStride;
+  private int rowStride;
+  private int pixelStride;
+
+  // reused between the calls
+  private final Taps rows = new Taps();
+  private final Taps cols = new Taps();
+  private final float[] pixel = new float[CHANNEL_COUNT];
+
+  /**
+   * @param image interleaved [H, W, 3] source pixels
+   * @param width the source image width
+   */
+  CropResizeKernel(FloatBuffer image, int width) {
+    this.setImage(image, 1, width * CHANNEL_COUNT, CHANNEL_COUNT);
+  }
+
+  /**
+   * Kernel without a source image, see {@link #setImage(FloatBuffer, int, int, int)}.
+   */
+  CropResizeKernel() {
+  }
+
+  /**
+   * Points the kernel at a new source image. The pixel {@code (y, x)} of channel {@code c} is read at
+   * {@code c * channelStride + y * rowStride + x * pixelStride}, e.g. (1, W * 3, 3) for an interleaved
+   * [H, W, 3] image and (H * W, W, 1) for a planar [3, H, W] one.
+   *
+   * @return This kernel
+   */
+  CropResizeKernel setImage(FloatBuffer image, int channelStride, int rowStride, int pixelStride) {
+    this.image = image;
+    this.bytes = null;
+    this.channelStride = channelStride;
+    this.rowStride = rowStride;
+    this.pixelStride = pixelStride;
+    return this;
+  }
+
+  /**
+   * Points the kernel at a new 8-bit source image, see {@link #setImage(FloatBuffer, int, int, int)}. The
+   * pixels stay 8-bit up to the normalized output values.
+   *
+   * @return This kernel
+   */
+  CropResizeKernel setImage(byte[] image, int channelStride, int rowStride, int pixelStride) {
+    this.image = null;
+    this.bytes = image;
+    this.channelStride = channelStride;
+    this.rowStride = rowStride;
+    this.pixelStride = pixelStride;
+    return this;
+  }
+
+  /**
+   * Resizes one candidate patch into a square {@code size x size} slot.
+   *
+   * @see #resize(int, int, int, int, int, int, int, int, int, int, boolean, FloatBuffer, int)
+   */
+  void resize(int tmph, int tmpw, int top, int bottom, int left, int right, int offsetY, int offsetX,
+      int size, boolean xMajor, FloatBuffer out, int outOffset) {
+    this.resize(tmph, tmpw, top, bottom, left, right, offsetY, offsetX, size, size, xMajor, out, outOffset);
+  }
+
+  /**
+   * Resizes one candidate patch.
+   *
+   * <p>The patch pixel {@code (ty, tx)} is the image pixel {@code (ty + offsetY, tx + offsetX)} inside the
+   * {@code [top, bottom) x [left, right)} patch region and zero elsewhere.
+   *
+   * @param xMajor when true the patch is written transposed, as [3, x, y], otherwise as [3, y, x]
+   * @param out the batch data
+   * @param outOffset the candidate's slot in the batch data
+   */
+  void resize(int tmph, int tmpw, int top, int bottom, int left, int right, int offsetY, int offsetX,
+      int height, int width, boolean xMajor, FloatBuffer out, int outOffset) {
+    this.resize(tmph, tmpw, top, bottom, left, right, offsetY, offsetX, height, width, height, width, xMajor,
+        out, outOffset);
+  }
+
+  /**
+   * Resizes one candidate patch into the top left corner of a larger, padded output. The padding is left
+   * untouched.
+   *
+   * @param outHeight output height, at least the patch height
+   * @param outWidth output width, at least the patch width
+   * @see #resize(int, int, int, int, int, int, int, int, int, int, boolean, FloatBuffer, int)
+   */
+  void resize(int tmph, int tmpw, int top, int bottom, int left, int right, int offsetY, int offsetX,
+      int height, int width, int outHeight, int outWidth, boolean xMajor, FloatBuffer out, int outOffset) {
+
+    boolean areaMode = tmph >= height && tmpw >= width;
+    Taps rows = this.rows.compute(tmph, height, areaMode);
+    Taps cols = this.cols.compute(tmpw, width, areaMode);
+
+    int plane = outHeight * outWidth;
+    float[] pixel = this.pixel;
+
+    for (int oy = 0; oy < height; oy++) {
+      for (int ox = 0; ox < width; ox++) {
+        pixel[0] = pixel[1] = pixel[2] = 0;
+
+        for (int i = rows.start[oy]; i < rows.start[oy + 1]; i++) {
+          int ty = rows.index[i];
+          if (ty < top || ty >= bottom) {
+            continue;
+          }
+          float wy = rows.weight[i];
+          int rowOffset = (ty + offsetY) * this.rowStride;
+
+          for (int j = cols.start[ox]; j < cols.start[ox + 1]; j++) {
+            int tx = cols.index[j];
+            if (tx < left || tx >= right) {
+              continue;
+            }
+            float w = wy * cols.weight[j];
+            int p = rowOffset + (tx + offsetX) * this.pixelStride;
+            if (this.bytes != null) {
+              pixel[0] += w * (this.bytes[p] & 0xFF);
+              pixel[1] += w * (this.bytes[p + this.channelStride] & 0xFF);
+              pixel[2] += w * (this.bytes[p + 2 * this.channelStride] & 0xFF);
+            }
+            else {
+              pixel[0] += w * this.image.get(p);
+              pixel[1] += w * this.image.get(p + this.channelStride);
+              pixel[2] += w * this.image.get(p + 2 * this.channelStride);
+            }
+          }
+        }
+
+        int o = outOffset + (xMajor ? ox * outHeight + oy : oy * outWidth + ox);
+        for (int c = 0; c < CHANNEL_COUNT; c++) {
+          float v = (float) Math.rint(Math.min(255f, Math.max(0f, pixel[c])));
+          out.put(o + c * plane, (v - MEAN) * SCALE);
+        }
+      }
+    }
+  }
+
+  /**
+   * Source taps and weights of every destination pixel along one axis, in CSR layout.
+   */
+  static class Taps {
+    int[] start = new int[0];
+    int[] index = new int[0];
+    float[] weight = new float[0];
+
+    /**
+     * Recomputes the taps, growing the tables when needed.
+     *
+     * @return These taps
+     */
+    Taps compute(int ssize, int dsize, boolean areaMode) {
+      double scale = (double) ssize / dsize;
+      int maxTaps = areaMode ? (int) Math.ceil(scale) + 2 : 2;
+
+      if (this.start.length < dsize + 1) {
+        this.start = new int[dsize + 1];
+      }
+      if (this.index.length < dsize * maxTaps) {
+        this.index = new int[dsize * maxTaps];
+        this.weight = new float[dsize * maxTaps];
+      }
+
+      int n = 0;
+      for (int d = 0; d < dsize; d++) {
+        this.start[d] = n;
+        if (areaMode) {
+          n = this.area(d, scale, ssize, n);
+        }
+        else {
+          n = this.linear(d, scale, ssize, dsize, n);
+        }
+      }
+      this.start[dsize] = n;
+      return this;
+    }
+
+    /** OpenCV computeResizeAreaTab */
+    private int area(int d, double scale, int ssize, int n) {
+      double fs1 = d * scale;
+      double fs2 = fs1 + scale;
+      int s1 = (int) Math.ceil(fs1);
+      int s2 = (int) Math.floor(fs2);
+      s2 = Math.min(s2, ssize - 1);
+      s1 = Math.min(s1, s2);
+      double cellWidth = Math.min(scale, ssize - fs1);
+
+      if (s1 - fs1 > 1e-3) {
+        n = this.add(n, s1 - 1, (s1 - fs1) / cellWidth);
+      }
+      for (int s = s1; s < s2; s++) {
+        n = this.add(n, s, 1 / cellWidth);
+      }
+      if (fs2 - s2 > 1e-3) {
+        n = this.add(n, s2, Math.min(Math.min(fs2 - s2, 1.0), cellWidth) / cellWidth);
+      }
+      return n;
+    }
+
+    /** OpenCV resize linear coefficients in the INTER_AREA mode */
+    private int linear(int d, double scale, int ssize, int dsize, int n) {
+      int s = (int) Math.floor(d * scale);
+      float f = (float) ((d + 1) - (s + 1) * ((double) dsize / ssize));
+      f = (f <= 0) ? 0 : f - (float) Math.floor(f);
+
+      if (s < 0) {
+        f = 0;
+        s = 0;
+      }
+      if (s >= ssize - 1) {
+        f = 0;
+        s = ssize - 1;
+      }
+
+      n = this.add(n, s, 1 - f);
+      if (f > 0) {
+        n = this.add(n, s + 1, f);
+      }
+      return n;
+    }
+
+    private int add(int n, int sourceIndex, double sourceWeight) {
+      this.index[n] = sourceIndex;
+      this.weight[n] = (float) sourceWeight;
+      return n + 1;
+    }
+  }
+}
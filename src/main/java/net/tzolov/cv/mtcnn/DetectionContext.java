@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+/**
+ * The mutable per call state of a detection: the R-Net and O-Net predictors, the P-Net predictor slot, the
+ * ND4J workspace name, the metrics listener of the current call, the image pyramid and the buffers of the
+ * primitive pipeline. A context is used by one detection at a time, see {@link DetectionContextPool}.
+ */
+class DetectionContext {
+
+  private final int slot;
+  private final String workspaceId;
+  private final MxNetLoader refineNet;
+  private final MxNetLoader outputNet;
+  private DetectionMetricsListener listener = DetectionMetricsListener.NO_OP;
+  private PrimitivePipeline primitivePipeline;
+  private final ImagePyramid imagePyramid = new ImagePyramid();
+
+  DetectionContext(int slot, String workspaceId, MxNetLoader refineNet, MxNetLoader outputNet) {
+    this.slot = slot;
+    this.workspaceId = workspaceId;
+    this.refineNet = refineNet;
+    this.outputNet = outputNet;
+  }
+
+  /** @return Index of the context in its pool, also used to pick a dedicated set of P-Net predictors */
+  int getSlot() {
+    return slot;
+  }
+
+  String getWorkspaceId() {
+    return workspaceId;
+  }
+
+  MxNetLoader getRefineNet() {
+    return refineNet;
+  }
+
+  MxNetLoader getOutputNet() {
+    return outputNet;
+  }
+
+  /** @return The metrics listener of the current detection */
+  DetectionMetricsListener getListener() {
+    return listener;
+  }
+
+  void setListener(DetectionMetricsListener listener) {
+    this.listener = listener;
+  }
+
+  /** @return The reused pyramid of the incremental STAGE 1 */
+  ImagePyramid getImagePyramid() {
+    return imagePyramid;
+  }
+
+  /** @return The primitive pipeline bound to this context or null if not created yet */
+  PrimitivePipeline getPrimitivePipeline() {
+    return primitivePipeline;
+  }
+
+  void setPrimitivePipeline(PrimitivePipeline primitivePipeline) {
+    this.primitivePipeline = primitivePipeline;
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import org.springframework.util.Assert;
+
+/**
+ * Bounded pool of {@link DetectionContext}s. Contexts are created lazily, up to the pool size, and checked
+ * out for the duration of a single detection. When all contexts are in use the callers wait, up to the
+ * acquire timeout, for one to be released.
+ */
+class DetectionContextPool {
+
+  private final int size;
+  private final IntFunction<DetectionContext> factory;
+  private final BlockingQueue<DetectionContext> idle;
+  private final List<DetectionContext> all = new CopyOnWriteArrayList<>();
+  // slots without a context yet, guarded by itself
+  private final Deque<Integer> freeSlots = new ArrayDeque<>();
+
+  /**
+   * @param size maximal number of contexts
+   * @param factory creates the context for a given slot (0 to size - 1)
+   */
+  DetectionContextPool(int size, IntFunction<DetectionContext> factory) {
+    Assert.isTrue(size > 0, "The pool size must be positive");
+    this.size = size;
+    this.factory = factory;
+    this.idle = new ArrayBlockingQueue<>(size);
+    for (int slot = 0; slot < size; slot++) {
+      this.freeSlots.addLast(slot);
+    }
+  }
+
+  /**
+   * @param timeoutMillis how long to wait for a free context. Negative value waits indefinitely
+   * @return A context, exclusively owned by the caller until {@link #release(DetectionContext)}
+   * @throws RejectedExecutionException if no context was released within the timeout
+   */
+  DetectionContext acquire(long timeoutMillis) {
+    DetectionContext context = this.idle.poll();
+    if (context != null) {
+      return context;
+    }
+
+    context = this.tryCreate();
+    if (context != null) {
+      return context;
+    }
+
+    try {
+      context =
+          (timeoutMillis < 0)
+              ? this.idle.take()
+              : this.idle.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RejectedExecutionException("Interrupted while waiting for a detection context", e);
+    }
+    if (context == null) {
+      throw new RejectedExecutionException(
+          "All " + this.size + " detection contexts are in use for more than " + timeoutMillis + "ms");
+    }
+    return context;
+  }
+
+  void release(DetectionContext context) {
+    this.idle.offer(context);
+  }
+
+  /** @return The contexts created so far (idle or checked out). */
+  List<DetectionContext> created() {
+    return this.all;
+  }
+
+  int getSize() {
+    return size;
+  }
+
+  /**
+   * Reserves a free slot and creates its context. The predictors are bound outside of the lock, so that
+   * concurrent callers create their contexts in parallel.
+   */
+  private DetectionContext tryCreate() {
+    Integer slot;
+    synchronized (this.freeSlots) {
+      slot = this.freeSlots.pollFirst();
+    }
+    if (slot == null) {
+      return null;
+    }
+
+    try {
+      DetectionContext context = this.factory.apply(slot);
+      this.all.add(context);
+      return context;
+    }
+    catch (RuntimeException | Error e) {
+      synchronized (this.freeSlots) {
+        this.freeSlots.addFirst(slot);
+      }
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+/**
+ * Receives the per call timings and candidate counts of the {@link MtcnnService} detections.
+ *
+ * <p>The listener is shared by the concurrent detections, and the pyramid scales may be reported from the
+ * STAGE 1 executor threads, hence implementations must be thread safe. All methods default to no-op.
+ *
+ * @see MtcnnService#setMetricsListener(DetectionMetricsListener)
+ * @see MeterMetricsListener
+ * @see DetectionTrace
+ */
+public interface DetectionMetricsListener {
+
+  DetectionMetricsListener NO_OP = new DetectionMetricsListener() {
+  };
+
+  enum Stage {PROPOSE, REFINE, OUTPUT}
+
+  enum NmsPass {SCALE, CROSS_SCALE, REFINE, OUTPUT}
+
+  /**
+   * @param nanos time to decode the encoded image into an [3, H, W] array
+   */
+  default void imageDecoded(long nanos) {
+  }
+
+  /**
+   * @param scale the pyramid scale
+   * @param nanos time to resize the image, run the P-Net and post-process its outputs
+   * @param candidates boxes surviving the per scale NMS
+   */
+  default void scaleProcessed(double scale, long nanos, int candidates) {
+  }
+
+  /**
+   * @param stage the completed stage
+   * @param nanos the stage time, networks included
+   * @param candidates boxes surviving the stage
+   */
+  default void stageCompleted(Stage stage, long nanos, int candidates) {
+  }
+
+  /**
+   * @param pass the NMS call site
+   * @param nanos NMS time
+   * @param inputCandidates boxes before the NMS
+   * @param pickedCandidates boxes kept by the NMS
+   */
+  default void nonMaxSuppression(NmsPass pass, long nanos, int inputCandidates, int pickedCandidates) {
+  }
+
+  /**
+   * @param stage the stage running the network
+   * @param calls native predictor calls made by the stage
+   * @param candidates candidates fed to the network
+   */
+  default void predictorCalls(Stage stage, int calls, int candidates) {
+  }
+
+  /**
+   * Reported once, when the {@link MtcnnService#warmUp warm-up} completes.
+   *
+   * @param nanos time from the service creation to the end of its warm-up
+   */
+  default void serviceReady(long nanos) {
+  }
+
+  /**
+   * @return Listener forwarding every event to both listeners
+   */
+  static DetectionMetricsListener composite(DetectionMetricsListener first, DetectionMetricsListener second) {
+    if (first == NO_OP) {
+      return second;
+    }
+    if (second == NO_OP) {
+      return first;
+    }
+    return new DetectionMetricsListener() {
+      @Override
+      public void imageDecoded(long nanos) {
+        first.imageDecoded(nanos);
+        second.imageDecoded(nanos);
+      }
+
+      @Override
+      public void scaleProcessed(double scale, long nanos, int candidates) {
+        first.scaleProcessed(scale, nanos, candidates);
+        second.scaleProcessed(scale, nanos, candidates);
+      }
+
+      @Override
+      public void stageCompleted(Stage stage, long nanos, int candidates) {
+        first.stageCompleted(stage, nanos, candidates);
+        second.stageCompleted(stage, nanos, candidates);
+      }
+
+      @Override
+      public void nonMaxSuppression(NmsPass pass, long nanos, int inputCandidates, int pickedCandidates) {
+        first.nonMaxSuppression(pass, nanos, inputCandidates, pickedCandidates);
+        second.nonMaxSuppression(pass, nanos, inputCandidates, pickedCandidates);
+      }
+
+      @Override
+      public void predictorCalls(Stage stage, int calls, int candidates) {
+        first.predictorCalls(stage, calls, candidates);
+        second.predictorCalls(stage, calls, candidates);
+      }
+
+      @Override
+      public void serviceReady(long nanos) {
+        first.serviceReady(nanos);
+        second.serviceReady(nanos);
+      }
+    };
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+/**
+ * Per call options of {@link MtcnnService#faceDetection(org.nd4j.linalg.api.ndarray.INDArray, DetectionOptions)}.
+ * Every option narrows the work of the detection: the region of interest and the face size range prune the
+ * scale pyramid, the max faces stops the coarse to fine scan early.
+ */
+public class DetectionOptions {
+
+  /**
+   * Region of the image to detect faces in, null for the whole image.
+   */
+  private FaceAnnotation.BoundingBox roi;
+
+  /**
+   * Smallest face size to detect in pixels, 0 for the service min face size.
+   */
+  private int minFaceSize;
+
+  /**
+   * Largest face size to detect in pixels, 0 for no limit.
+   */
+  private int maxFaceSize;
+
+  /**
+   * Stop once this many faces are found, 0 for no limit. Implies the coarse to fine scan.
+   */
+  private int maxFaces;
+
+  /**
+   * Process the pyramid from the largest faces to the smallest, one level at a time.
+   */
+  private boolean coarseToFine;
+
+  public FaceAnnotation.BoundingBox getRoi() {
+    return roi;
+  }
+
+  public DetectionOptions setRoi(FaceAnnotation.BoundingBox roi) {
+    this.roi = roi;
+    return this;
+  }
+
+  public int getMinFaceSize() {
+    return minFaceSize;
+  }
+
+  public DetectionOptions setMinFaceSize(int minFaceSize) {
+    this.minFaceSize = minFaceSize;
+    return this;
+  }
+
+  public int getMaxFaceSize() {
+    return maxFaceSize;
+  }
+
+  public DetectionOptions setMaxFaceSize(int maxFaceSize) {
+    this.maxFaceSize = maxFaceSize;
+    return this;
+  }
+
+  public int getMaxFaces() {
+    return maxFaces;
+  }
+
+  public DetectionOptions setMaxFaces(int maxFaces) {
+    this.maxFaces = maxFaces;
+    return this;
+  }
+
+  public boolean isCoarseToFine() {
+    return coarseToFine || maxFaces > 0;
+  }
+
+  public DetectionOptions setCoarseToFine(boolean coarseToFine) {
+    this.coarseToFine = coarseToFine;
+    return this;
+  }
+
+  public static DetectionOptions of(FaceAnnotation.BoundingBox roi, int maxFaces) {
+    return new DetectionOptions().setRoi(roi).setMaxFaces(maxFaces);
+  }
+}
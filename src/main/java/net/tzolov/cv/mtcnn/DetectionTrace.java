@@ -0,0 +1,116 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compact trace of a single detection: where the time went and how many candidates survived each step.
+ * Pass a new instance to {@link MtcnnService#faceDetection(org.nd4j.linalg.api.ndarray.INDArray, DetectionTrace)},
+ * or to {@link MtcnnService#faceDetection(byte[], DetectionTrace)} and
+ * {@link MtcnnService#faceDetection(java.awt.image.BufferedImage, DetectionTrace)} to also record the decode time.
+ */
+public class DetectionTrace implements DetectionMetricsListener {
+
+  private long decodeNanos;
+  private final List<double[]> scales = new ArrayList<>();
+  private final long[] stageNanos = new long[Stage.values().length];
+  private final int[] stageCandidates = new int[Stage.values().length];
+  private final long[] nmsNanos = new long[NmsPass.values().length];
+  private final int[] predictorCalls = new int[Stage.values().length];
+
+  @Override
+  public synchronized void imageDecoded(long nanos) {
+    this.decodeNanos += nanos;
+  }
+
+  @Override
+  public synchronized void scaleProcessed(double scale, long nanos, int candidates) {
+    this.scales.add(new double[] {scale, nanos, candidates});
+  }
+
+  @Override
+  public synchronized void stageCompleted(Stage stage, long nanos, int candidates) {
+    this.stageNanos[stage.ordinal()] += nanos;
+    this.stageCandidates[stage.ordinal()] = candidates;
+  }
+
+  @Override
+  public synchronized void nonMaxSuppression(NmsPass pass, long nanos, int inputCandidates, int pickedCandidates) {
+    this.nmsNanos[pass.ordinal()] += nanos;
+  }
+
+  @Override
+  public synchronized void predictorCalls(Stage stage, int calls, int candidates) {
+    this.predictorCalls[stage.ordinal()] += calls;
+  }
+
+  public synchronized long getDecodeNanos() {
+    return decodeNanos;
+  }
+
+  /** @return Number of processed pyramid scales */
+  public synchronized int getScaleCount() {
+    return scales.size();
+  }
+
+  /** @return Per scale [scale, nanos, candidates] triplets, in the order the scales completed */
+  public synchronized List<double[]> getScales() {
+    return new ArrayList<>(scales);
+  }
+
+  public synchronized long getStageNanos(Stage stage) {
+    return stageNanos[stage.ordinal()];
+  }
+
+  /** @return Boxes surviving the stage */
+  public synchronized int getStageCandidates(Stage stage) {
+    return stageCandidates[stage.ordinal()];
+  }
+
+  public synchronized long getNmsNanos(NmsPass pass) {
+    return nmsNanos[pass.ordinal()];
+  }
+
+  public synchronized int getPredictorCalls(Stage stage) {
+    return predictorCalls[stage.ordinal()];
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder("DetectionTrace{");
+    if (decodeNanos > 0) {
+      sb.append("decode=").append(millis(decodeNanos)).append(", ");
+    }
+    sb.append("scales=").append(scales.size());
+    for (Stage stage : Stage.values()) {
+      int s = stage.ordinal();
+      sb.append(", ").append(stage.name().toLowerCase(Locale.ROOT)).append('=').append(millis(stageNanos[s]))
+          .append('/').append(stageCandidates[s]).append(" boxes/").append(predictorCalls[s]).append(" calls");
+    }
+    long nms = 0;
+    for (long n : nmsNanos) {
+      nms += n;
+    }
+    return sb.append(", nms=").append(millis(nms)).append('}').toString();
+  }
+
+  private static String millis(long nanos) {
+    return String.format(Locale.ROOT, "%.2fms", nanos / 1e6);
+  }
+}
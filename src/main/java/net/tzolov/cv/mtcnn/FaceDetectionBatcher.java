@@ -0,0 +1,625 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.springframework.util.Assert;
+
+/**
+ * Request coalescing front-end for the {@link MtcnnService}.
+ *
+ * <p>Every request runs its STAGE 1 on the request executor. The R-Net and the O-Net candidate crops of all
+ * concurrent requests are then queued and coalesced into a single network batch, either when
+ * {@link #getMaxBatch()} candidates are collected or when the oldest queued request has waited for
+ * {@link #getMaxWait(TimeUnit)}. The network results are scattered back to the requests, which complete
+ * their post-processing and their {@link CompletableFuture} on the request executor.
+ *
+ * <p>The batch APIs, {@link #faceDetection(List)} and {@link #faceDetection(Stream)}, feed many encoded images
+ * through the same pipeline: the images are decoded on the decode executor and a window of in-flight images
+ * keeps the networks busy, while the results are returned in the input order.
+ *
+ * <p>Pair it with {@link MtcnnService#setBatchBuckets(int...)} so that the coalesced batches are not run
+ * one candidate at a time.
+ */
+public class FaceDetectionBatcher implements AutoCloseable {
+
+  public static final int DEFAULT_MAX_BATCH = 128;
+
+  public static final long DEFAULT_MAX_WAIT_MILLIS = 5;
+
+  private static final AtomicInteger INSTANCE_COUNTER = new AtomicInteger();
+
+  private final MtcnnService mtcnnService;
+  private final ExecutorService requestExecutor;
+  private final boolean ownsRequestExecutor;
+  private final ExecutorService decodeExecutor;
+  private final boolean ownsDecodeExecutor;
+  private volatile int maxInFlightImages = 2 * Runtime.getRuntime().availableProcessors();
+  private final int maxBatch;
+  private final long maxWaitNanos;
+  private final Coalescer refineNetCoalescer;
+  private final Coalescer outputNetCoalescer;
+  private volatile boolean closed;
+
+  public FaceDetectionBatcher(MtcnnService mtcnnService) {
+    this(mtcnnService, DEFAULT_MAX_BATCH, DEFAULT_MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  public FaceDetectionBatcher(MtcnnService mtcnnService, int maxBatch, long maxWait, TimeUnit unit) {
+    this(mtcnnService, maxBatch, maxWait, unit, null);
+  }
+
+  /**
+   * @param mtcnnService the service running the networks
+   * @param maxBatch number of candidate crops that triggers a network batch without waiting any longer
+   * @param maxWait how long the oldest queued request may wait for other requests to join its batch
+   * @param requestExecutor runs STAGE 1 and the per request post-processing. When null a fixed pool of
+   *     one thread per core is created and shut down by {@link #close()}
+   */
+  public FaceDetectionBatcher(MtcnnService mtcnnService, int maxBatch, long maxWait, TimeUnit unit,
+      ExecutorService requestExecutor) {
+    this(mtcnnService, maxBatch, maxWait, unit, requestExecutor, null);
+  }
+
+  /**
+   * @param decodeExecutor decodes the images of the batch APIs, typically an I/O pool. When null a fixed pool
+   *     of one thread per core is created and shut down by {@link #close()}
+   * @see #FaceDetectionBatcher(MtcnnService, int, long, TimeUnit, ExecutorService)
+   */
+  public FaceDetectionBatcher(MtcnnService mtcnnService, int maxBatch, long maxWait, TimeUnit unit,
+      ExecutorService requestExecutor, ExecutorService decodeExecutor) {
+    Assert.notNull(mtcnnService, "MtcnnService is required");
+    Assert.isTrue(maxBatch > 0, "Max batch must be positive");
+    Assert.isTrue(maxWait >= 0, "Max wait must not be negative");
+
+    this.mtcnnService = mtcnnService;
+    this.maxBatch = maxBatch;
+    this.maxWaitNanos = unit.toNanos(maxWait);
+
+    int instanceId = INSTANCE_COUNTER.incrementAndGet();
+    this.ownsRequestExecutor = (requestExecutor == null);
+    this.requestExecutor = (requestExecutor != null) ? requestExecutor
+        : Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+          Thread thread = new Thread(runnable, "mtcnn-batcher-" + instanceId + "-request");
+          thread.setDaemon(true);
+          return thread;
+        });
+    this.ownsDecodeExecutor = (decodeExecutor == null);
+    this.decodeExecutor = (decodeExecutor != null) ? decodeExecutor
+        : Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+          Thread thread = new Thread(runnable, "mtcnn-batcher-" + instanceId + "-decode");
+          thread.setDaemon(true);
+          return thread;
+        });
+
+    this.refineNetCoalescer = new Coalescer("mtcnn-batcher-" + instanceId + "-rnet", mtcnnService::runRefineNet);
+    this.outputNetCoalescer = new Coalescer("mtcnn-batcher-" + instanceId + "-onet", mtcnnService::runOutputNet);
+  }
+
+  public int getMaxBatch() {
+    return maxBatch;
+  }
+
+  public long getMaxWait(TimeUnit unit) {
+    return unit.convert(maxWaitNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Bounds the images the batch APIs decode or detect at a time, and hence the memory held by the decoded
+   * images. Defaults to two images per core.
+   *
+   * @param maxInFlightImages window of in-flight images, large enough to fill the coalesced network batches
+   */
+  public void setMaxInFlightImages(int maxInFlightImages) {
+    Assert.isTrue(maxInFlightImages > 0, "Max in-flight images must be positive");
+    this.maxInFlightImages = maxInFlightImages;
+  }
+
+  public int getMaxInFlightImages() {
+    return maxInFlightImages;
+  }
+
+  /**
+   * Detects faces in an image. The R-Net and O-Net work is coalesced with the other in-flight requests.
+   *
+   * @param image3HW image to detect the faces in. Expected dimensions [ 3 x H x W ]
+   * @return Future array of face bounding boxes found in the image
+   */
+  public CompletableFuture<FaceAnnotation[]> faceDetection(INDArray image3HW) {
+    if (this.closed) {
+      return rejected();
+    }
+
+    // [H, W, 3] view used for the candidate crops
+    INDArray image = image3HW.permute(1, 2, 0);
+
+    return CompletableFuture
+        .supplyAsync(() -> unchecked(() -> this.mtcnnService.stageOne(image3HW)), this.requestExecutor)
+        .thenCompose(stageOneResult -> {
+          INDArray totalBoxes = (INDArray) stageOneResult[0];
+          if (totalBoxes.isEmpty()) {
+            return CompletableFuture.completedFuture(new FaceAnnotation[0]);
+          }
+          INDArray refineNetInput = unchecked(() -> this.mtcnnService.refineNetInput(
+              image, (int) totalBoxes.shape()[0], (MtcnnUtil.PadResult) stageOneResult[1]));
+          return this.refineNetCoalescer.submit(refineNetInput)
+              .thenApplyAsync(resultList -> this.mtcnnService.refineNetResult(
+                  totalBoxes, resultList, this.mtcnnService.getMetricsListener()),
+                  this.requestExecutor)
+              .thenCompose(refinedBoxes -> this.outputStage(image, refinedBoxes));
+        });
+  }
+
+  /**
+   * Decodes an encoded (e.g. JPEG or PNG) image on the decode executor and detects its faces, see
+   * {@link #faceDetection(INDArray)}. The image is downscaled at decode time as configured by
+   * {@link MtcnnService#setDecodeMinFaceSize(int)}.
+   *
+   * @param encodedImage Input image encoded in bytes along with its image format spec.
+   * @return Future array of face bounding boxes found in the image
+   */
+  public CompletableFuture<FaceAnnotation[]> faceDetection(byte[] encodedImage) {
+    return this.submit(encodedImage).faces;
+  }
+
+  private Detection submit(byte[] encodedImage) {
+    if (this.closed) {
+      return new Detection(rejected(), rejected());
+    }
+    int reduction = this.mtcnnService.getDecodeReduction();
+    CompletableFuture<INDArray> decoded = CompletableFuture.supplyAsync(
+        () -> unchecked(() -> this.mtcnnService.decodeImage(encodedImage, reduction)), this.decodeExecutor);
+    return new Detection(decoded, decoded
+        .thenCompose(this::faceDetection)
+        .thenApply(faces -> MtcnnService.rescale(faces, reduction)));
+  }
+
+  /**
+   * Detects the faces of a batch of encoded images, e.g. a photo album upload. The images are decoded on the
+   * decode executor, their STAGE 1 runs in parallel on the request executor and the R-Net and O-Net
+   * candidates of the concurrent images share the coalesced network batches. Up to
+   * {@link #getMaxInFlightImages()} images are processed at a time.
+   *
+   * @param encodedImages Input images encoded in bytes along with their image format spec.
+   * @return The faces found in every image, in the input order
+   * @throws IOException if an image can not be decoded, the detections submitted after it are cancelled
+   */
+  public List<FaceAnnotation[]> faceDetection(List<byte[]> encodedImages) throws IOException {
+    List<FaceAnnotation[]> results = new ArrayList<>(encodedImages.size());
+    Iterator<FaceAnnotation[]> faces = new OrderedDetections(encodedImages.iterator());
+    try {
+      while (faces.hasNext()) {
+        results.add(faces.next());
+      }
+    }
+    catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    return results;
+  }
+
+  /**
+   * Lazy, ordered variant of {@link #faceDetection(List)}. The images are pulled from the source stream as the
+   * results are consumed, keeping {@link #getMaxInFlightImages()} images ahead of the consumer. A failed image
+   * surfaces as an {@link UncheckedIOException} (decoding) or another runtime exception when its result is
+   * consumed. Once an image fails, no more images are pulled and the detections submitted after it are
+   * cancelled. Closing the returned stream closes the source stream.
+   *
+   * @param encodedImages Input images encoded in bytes along with their image format spec.
+   * @return Sequential stream of the faces found in every image, in the input order
+   */
+  public Stream<FaceAnnotation[]> faceDetection(Stream<byte[]> encodedImages) {
+    Spliterator<FaceAnnotation[]> faces = Spliterators.spliteratorUnknownSize(
+        new OrderedDetections(encodedImages.iterator()), Spliterator.ORDERED | Spliterator.NONNULL);
+    return StreamSupport.stream(faces, false).onClose(encodedImages::close);
+  }
+
+  private CompletableFuture<FaceAnnotation[]> outputStage(INDArray image, INDArray totalBoxes) {
+    if (totalBoxes.isEmpty()) {
+      return CompletableFuture.completedFuture(new FaceAnnotation[0]);
+    }
+    Object[] outputNetInput = unchecked(() -> this.mtcnnService.outputNetInput(image, totalBoxes));
+    return this.outputNetCoalescer.submit((INDArray) outputNetInput[1])
+        .thenApplyAsync(resultList -> MtcnnService.toFaceAnnotation(
+            this.mtcnnService.outputNetResult(
+                (INDArray) outputNetInput[0], resultList, this.mtcnnService.getMetricsListener())),
+            this.requestExecutor);
+  }
+
+  /**
+   * @return R-Net batching statistics
+   */
+  public Stats getRefineNetStats() {
+    return this.refineNetCoalescer.stats();
+  }
+
+  /**
+   * @return O-Net batching statistics
+   */
+  public Stats getOutputNetStats() {
+    return this.outputNetCoalescer.stats();
+  }
+
+  /**
+   * Stops the dispatchers. Queued requests complete exceptionally with a {@link RejectedExecutionException}.
+   */
+  @Override
+  public void close() {
+    this.closed = true;
+    this.refineNetCoalescer.close();
+    this.outputNetCoalescer.close();
+    if (this.ownsRequestExecutor) {
+      this.requestExecutor.shutdown();
+    }
+    if (this.ownsDecodeExecutor) {
+      this.decodeExecutor.shutdown();
+    }
+  }
+
+  private static <T> CompletableFuture<T> rejected() {
+    CompletableFuture<T> rejected = new CompletableFuture<>();
+    rejected.completeExceptionally(new RejectedExecutionException("The face detection batcher is closed"));
+    return rejected;
+  }
+
+  /**
+   * Waits for a detection and rethrows its failure cause.
+   */
+  private static FaceAnnotation[] await(CompletableFuture<FaceAnnotation[]> detection) {
+    try {
+      return detection.join();
+    }
+    catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  private static <T> T unchecked(IOCallable<T> callable) {
+    try {
+      return callable.call();
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private interface IOCallable<T> {
+    T call() throws IOException;
+  }
+
+  /**
+   * The decoding and the whole detection of an encoded image. Cancelling the decoding skips it when it has
+   * not started yet.
+   */
+  private static class Detection {
+    private final CompletableFuture<INDArray> decoded;
+    private final CompletableFuture<FaceAnnotation[]> faces;
+    private long sequence;
+
+    Detection(CompletableFuture<INDArray> decoded, CompletableFuture<FaceAnnotation[]> faces) {
+      this.decoded = decoded;
+      this.faces = faces;
+    }
+
+    void cancel() {
+      this.decoded.cancel(false);
+      this.faces.cancel(false);
+    }
+  }
+
+  /**
+   * Submits the images of a batch as a sliding window of in-flight detections and yields their results in
+   * the submission order. The first failed detection cancels the detections submitted after it, the earlier
+   * ones still yield their results.
+   */
+  private class OrderedDetections implements Iterator<FaceAnnotation[]> {
+    private final Iterator<byte[]> images;
+    private final ConcurrentLinkedDeque<Detection> inFlight = new ConcurrentLinkedDeque<>();
+    private long submitted;
+    private volatile boolean failed;
+
+    OrderedDetections(Iterator<byte[]> images) {
+      this.images = images;
+    }
+
+    @Override
+    public boolean hasNext() {
+      this.fill();
+      return !this.inFlight.isEmpty();
+    }
+
+    @Override
+    public FaceAnnotation[] next() {
+      this.fill();
+      Detection detection = this.inFlight.poll();
+      if (detection == null) {
+        throw new NoSuchElementException();
+      }
+      return await(detection.faces);
+    }
+
+    private void fill() {
+      while (!this.failed && this.inFlight.size() < maxInFlightImages && this.images.hasNext()) {
+        Detection detection = submit(this.images.next());
+        detection.sequence = this.submitted++;
+        this.inFlight.add(detection);
+        detection.faces.whenComplete((faces, error) -> {
+          if (error != null && !detection.faces.isCancelled()) {
+            this.cancelAfter(detection.sequence);
+          }
+        });
+      }
+    }
+
+    private void cancelAfter(long sequence) {
+      this.failed = true;
+      for (Detection detection : this.inFlight) {
+        if (detection.sequence > sequence) {
+          detection.cancel();
+        }
+      }
+    }
+  }
+
+  /**
+   * Batching statistics of a single network.
+   */
+  public static class Stats {
+    private final long batches;
+    private final long requests;
+    private final long candidates;
+    private final double fillRatioSum;
+    private final long queueDelayNanosSum;
+    private final long maxQueueDelayNanos;
+
+    Stats(long batches, long requests, long candidates, double fillRatioSum, long queueDelayNanosSum,
+        long maxQueueDelayNanos) {
+      this.batches = batches;
+      this.requests = requests;
+      this.candidates = candidates;
+      this.fillRatioSum = fillRatioSum;
+      this.queueDelayNanosSum = queueDelayNanosSum;
+      this.maxQueueDelayNanos = maxQueueDelayNanos;
+    }
+
+    public long getBatches() {
+      return batches;
+    }
+
+    public long getRequests() {
+      return requests;
+    }
+
+    public long getCandidates() {
+      return candidates;
+    }
+
+    /**
+     * @return Average ratio of the batch candidates to the max batch, capped at 1.
+     */
+    public double getAverageFillRatio() {
+      return (batches == 0) ? 0 : fillRatioSum / batches;
+    }
+
+    /**
+     * @return Average time the requests spent in the queue before their batch was run.
+     */
+    public double getAverageQueueDelay(TimeUnit unit) {
+      return (requests == 0) ? 0 : (double) queueDelayNanosSum / requests / unit.toNanos(1);
+    }
+
+    public long getMaxQueueDelay(TimeUnit unit) {
+      return unit.convert(maxQueueDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+      return "Stats{batches=" + batches + ", requests=" + requests + ", candidates=" + candidates
+          + ", averageFillRatio=" + getAverageFillRatio()
+          + ", averageQueueDelayMs=" + getAverageQueueDelay(TimeUnit.MILLISECONDS)
+          + ", maxQueueDelayMs=" + getMaxQueueDelay(TimeUnit.MILLISECONDS) + "}";
+    }
+  }
+
+  private static class Pending {
+    private final INDArray crops;
+    private final int count;
+    private final long enqueuedNanos;
+    private final CompletableFuture<List<INDArray>> result;
+
+    Pending(INDArray crops) {
+      this.crops = crops;
+      this.count = (int) crops.size(0);
+      this.enqueuedNanos = System.nanoTime();
+      this.result = new CompletableFuture<>();
+    }
+  }
+
+  /**
+   * Collects the candidate crops for one network and runs them as a single batch on a dedicated thread.
+   */
+  private class Coalescer implements Runnable {
+    private final LinkedBlockingQueue<Pending> queue;
+    private final Function<INDArray, List<INDArray>> network;
+    private final Thread dispatcher;
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong candidates = new AtomicLong();
+    private final AtomicLong queueDelayNanosSum = new AtomicLong();
+    private final AtomicLong maxQueueDelayNanos = new AtomicLong();
+    private volatile double fillRatioSum;
+    private volatile boolean stopped;
+    private Pending carried;
+
+    Coalescer(String name, Function<INDArray, List<INDArray>> network) {
+      this.queue = new LinkedBlockingQueue<>();
+      this.network = network;
+      this.dispatcher = new Thread(this, name);
+      this.dispatcher.setDaemon(true);
+      this.dispatcher.start();
+    }
+
+    CompletableFuture<List<INDArray>> submit(INDArray crops) {
+      Pending pending = new Pending(crops);
+      this.queue.add(pending);
+      if (closed || this.stopped) {
+        this.failQueued();
+      }
+      return pending.result;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!closed) {
+          List<Pending> batch = this.nextBatch();
+          if (!batch.isEmpty()) {
+            this.dispatch(batch);
+          }
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      finally {
+        // a dispatcher that died on an unexpected failure no longer serves, the later requests fail fast
+        this.stopped = true;
+        this.failQueued();
+      }
+    }
+
+    /**
+     * Blocks for the first request, then keeps collecting until the max batch is reached or the first
+     * request's max wait expires. A request that would overflow a non empty batch is carried to the next one.
+     */
+    private List<Pending> nextBatch() throws InterruptedException {
+      List<Pending> batch = new ArrayList<>();
+      Pending first = (this.carried != null) ? this.carried : this.queue.take();
+      this.carried = null;
+      batch.add(first);
+
+      int size = first.count;
+      long deadline = first.enqueuedNanos + maxWaitNanos;
+      while (size < maxBatch) {
+        long remaining = deadline - System.nanoTime();
+        Pending next = (remaining > 0) ? this.queue.poll(remaining, TimeUnit.NANOSECONDS) : this.queue.poll();
+        if (next == null) {
+          break;
+        }
+        if (size + next.count > maxBatch) {
+          this.carried = next;
+          break;
+        }
+        batch.add(next);
+        size += next.count;
+      }
+      return batch;
+    }
+
+    private void dispatch(List<Pending> batch) {
+      long now = System.nanoTime();
+      int size = 0;
+      INDArray[] crops = new INDArray[batch.size()];
+      for (int i = 0; i < batch.size(); i++) {
+        Pending pending = batch.get(i);
+        crops[i] = pending.crops;
+        size += pending.count;
+
+        long delay = now - pending.enqueuedNanos;
+        this.queueDelayNanosSum.addAndGet(delay);
+        this.maxQueueDelayNanos.accumulateAndGet(delay, Math::max);
+      }
+      this.batches.incrementAndGet();
+      this.requests.addAndGet(batch.size());
+      this.candidates.addAndGet(size);
+      this.fillRatioSum += Math.min(1.0, (double) size / maxBatch);
+
+      try {
+        List<INDArray> outputs = this.network.apply((crops.length == 1) ? crops[0] : Nd4j.concat(0, crops));
+
+        // Scatter the [size, width] network outputs back to the requests
+        int offset = 0;
+        for (Pending pending : batch) {
+          List<INDArray> slices = new ArrayList<>(outputs.size());
+          for (INDArray output : outputs) {
+            slices.add((batch.size() == 1) ? output
+                : output.get(interval(offset, offset + pending.count), all()).dup());
+          }
+          offset += pending.count;
+          pending.result.complete(slices);
+        }
+      }
+      catch (Throwable e) {
+        // fail the batch, not the dispatcher: the next batches run as usual
+        for (Pending pending : batch) {
+          pending.result.completeExceptionally(e);
+        }
+      }
+    }
+
+    private void failQueued() {
+      RejectedExecutionException rejected = new RejectedExecutionException("The face detection batcher is closed");
+      if (this.carried != null && Thread.currentThread() == this.dispatcher) {
+        this.carried.result.completeExceptionally(rejected);
+        this.carried = null;
+      }
+      Pending pending;
+      while ((pending = this.queue.poll()) != null) {
+        pending.result.completeExceptionally(rejected);
+      }
+    }
+
+    Stats stats() {
+      return new Stats(this.batches.get(), this.requests.get(), this.candidates.get(), this.fillRatioSum,
+          this.queueDelayNanosSum.get(), this.maxQueueDelayNanos.get());
+    }
+
+    void close() {
+      this.dispatcher.interrupt();
+    }
+  }
+}
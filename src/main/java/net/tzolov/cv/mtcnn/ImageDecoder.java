@@ -0,0 +1,173 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import static net.tzolov.cv.mtcnn.MtcnnUtil.CHANNEL_COUNT;
+import static net.tzolov.cv.mtcnn.MtcnnUtil.C_ORDERING;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import javax.imageio.ImageIO;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.opencv_core;
+import org.bytedeco.javacpp.opencv_imgcodecs;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.springframework.util.Assert;
+
+/**
+ * Decodes encoded (JPEG, PNG, ...) images with the OpenCV {@code imdecode} straight into the planar
+ * [3, H, W] float array expected by the {@link MtcnnService}, bypassing the {@code ImageIO} decoding, the
+ * {@code BufferedImage} to {@code Mat} conversions and the 4 channel array of the
+ * {@code Java2DNativeImageLoader} path. The channels are in the BGR order of that path.
+ *
+ * <p>The images can be decoded at 1/2, 1/4 or 1/8 of their resolution. JPEG images are then scaled by the
+ * decoder itself (DCT scaling), which skips most of the decoding work.
+ *
+ * <p>The formats {@code imdecode} does not support (e.g. GIF) fall back to the {@code ImageIO} decoding.
+ * Thread safe.
+ */
+public class ImageDecoder {
+
+  /** Supported decode time reductions. */
+  public static final int[] REDUCTIONS = new int[] {1, 2, 4, 8};
+
+  /**
+   * @param encodedImage image encoded in bytes along with its image format spec
+   * @param reduction one of the {@link #REDUCTIONS}
+   * @return The [3, H / reduction, W / reduction] image
+   * @throws IOException Unsupported or corrupted image.
+   */
+  public INDArray decode(byte[] encodedImage, int reduction) throws IOException {
+    return toPlanar(this.decodeUint8(encodedImage, reduction));
+  }
+
+  /**
+   * Decodes an image into its 8-bit, interleaved BGR pixels.
+   *
+   * @param encodedImage image encoded in bytes along with its image format spec
+   * @param reduction one of the {@link #REDUCTIONS}
+   * @return The H / reduction x W / reduction image
+   * @throws IOException Unsupported or corrupted image.
+   */
+  public Uint8Image decodeUint8(byte[] encodedImage, int reduction) throws IOException {
+    Assert.notNull(encodedImage, "Encoded image is required");
+
+    BytePointer data = new BytePointer(encodedImage);
+    opencv_core.Mat buffer = new opencv_core.Mat(1, encodedImage.length, opencv_core.CV_8UC1, data);
+    opencv_core.Mat mat = opencv_imgcodecs.imdecode(buffer, flags(reduction));
+    try {
+      if (mat == null || mat.empty()) {
+        return decodeImageIO(encodedImage, reduction);
+      }
+      if (!mat.isContinuous()) {
+        opencv_core.Mat continuous = mat.clone();
+        mat.release();
+        mat = continuous;
+      }
+      byte[] pixels = new byte[mat.rows() * mat.cols() * CHANNEL_COUNT];
+      mat.data().get(pixels);
+      return Uint8Image.of(pixels, mat.rows(), mat.cols());
+    }
+    finally {
+      if (mat != null) {
+        mat.release();
+      }
+      buffer.release();
+      data.deallocate();
+    }
+  }
+
+  /**
+   * Decodes the formats unsupported by {@code imdecode}, drawing the image into interleaved BGR bytes at the
+   * reduced resolution.
+   */
+  private static Uint8Image decodeImageIO(byte[] encodedImage, int reduction) throws IOException {
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(encodedImage));
+    if (image == null) {
+      throw new IOException("Unsupported or corrupted image");
+    }
+    // same rounding as the imdecode reduced modes
+    int height = (image.getHeight() + reduction - 1) / reduction;
+    int width = (image.getWidth() + reduction - 1) / reduction;
+
+    BufferedImage bgr = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+    Graphics2D graphics = bgr.createGraphics();
+    try {
+      graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      graphics.drawImage(image, 0, 0, width, height, null);
+    }
+    finally {
+      graphics.dispose();
+    }
+    byte[] pixels = ((DataBufferByte) bgr.getRaster().getDataBuffer()).getData();
+    return Uint8Image.of(pixels, height, width);
+  }
+
+  /**
+   * @param minFaceSize the detection min face size, in decoded image pixels
+   * @param minImageFaceSize smallest face of interest, in the encoded image pixels. 0 for all faces
+   * @return The largest reduction keeping the faces of interest detectable
+   */
+  public static int reductionFor(int minFaceSize, int minImageFaceSize) {
+    int reduction = 1;
+    for (int r : REDUCTIONS) {
+      if (minImageFaceSize >= r * minFaceSize) {
+        reduction = r;
+      }
+    }
+    return reduction;
+  }
+
+  private static int flags(int reduction) {
+    switch (reduction) {
+    case 1:
+      return opencv_imgcodecs.IMREAD_COLOR;
+    case 2:
+      return opencv_imgcodecs.IMREAD_REDUCED_COLOR_2;
+    case 4:
+      return opencv_imgcodecs.IMREAD_REDUCED_COLOR_4;
+    case 8:
+      return opencv_imgcodecs.IMREAD_REDUCED_COLOR_8;
+    default:
+      throw new IllegalArgumentException("Unsupported reduction " + reduction + ", use 1, 2, 4 or 8");
+    }
+  }
+
+  /**
+   * Transposes the interleaved BGR bytes of the decoded image into a planar float array.
+   */
+  private static INDArray toPlanar(Uint8Image uint8) {
+    int plane = uint8.getHeight() * uint8.getWidth();
+    byte[] pixels = uint8.getPixels();
+
+    INDArray image = Nd4j.createUninitialized(
+        new int[] {CHANNEL_COUNT, uint8.getHeight(), uint8.getWidth()}, C_ORDERING);
+    FloatBuffer out = image.data().asNioFloat();
+    for (int p = 0, i = 0; p < plane; p++) {
+      out.put(p, pixels[i++] & 0xFF);
+      out.put(plane + p, pixels[i++] & 0xFF);
+      out.put(2 * plane + p, pixels[i++] & 0xFF);
+    }
+    return image;
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import static net.tzolov.cv.mtcnn.MtcnnUtil.CHANNEL_COUNT;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.bytedeco.javacpp.opencv_core;
+import org.bytedeco.javacpp.opencv_imgproc;
+import org.datavec.image.loader.Java2DNativeImageLoader;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.springframework.util.Assert;
+
+/**
+ * The STAGE 1 scale pyramid of an image, built incrementally. The image is converted to a {@code Mat} once
+ * and every level is area resized ({@code CV_INTER_AREA}) from the closest already built level that is at
+ * least {@link #MIN_REDUCTION} times larger, or from the image itself. With the 0.709 scale factor the
+ * levels past the third one are derived from the level three (sometimes two) steps up, so the full
+ * resolution image is read by the first three levels only, instead of once per level.
+ *
+ * <p>Tolerance: the two step area averages differ from the direct resize only where the footprints of the
+ * intermediate pixels straddle the footprint borders of the target pixels. On the test images the mean
+ * absolute difference to the direct {@link MtcnnService#resize} levels is below 1.5 grey levels per pixel,
+ * see {@code ImagePyramidTest}.
+ *
+ * <p>The level {@code Mat}s are reused from one image to the next and only reallocated when the level
+ * dimensions change. Once built, the levels can be read concurrently. One pyramid per
+ * {@link DetectionContext}, not thread safe.
+ */
+class ImagePyramid {
+
+  /** Minimal size ratio between a level and the level it is resized from. */
+  static final double MIN_REDUCTION = 2;
+
+  private opencv_core.Mat[] levels = new opencv_core.Mat[0];
+  private int[] widths = new int[0];
+  private int[] heights = new int[0];
+  private int[] sources = new int[0];
+  // level indexes, largest level first
+  private int[] order = new int[0];
+  private int count;
+
+  /**
+   * Builds the pyramid levels of the image, replacing the previous ones.
+   *
+   * @param imageLoader converts the image to a {@code Mat}, like the direct {@link MtcnnService#resize}
+   * @param image3HW image with [3, H, W] dimensions
+   * @param scales the scales of the levels, in any order
+   * @return This pyramid
+   */
+  ImagePyramid build(Java2DNativeImageLoader imageLoader, INDArray image3HW, List<Double> scales) {
+    Assert.isTrue(
+        image3HW.rank() == 3 && image3HW.size(0) == CHANNEL_COUNT,
+        "The input image is expected to have [3, H, W] dimensions");
+
+    int height = (int) image3HW.size(1);
+    int width = (int) image3HW.size(2);
+    this.plan(height, width, scales);
+
+    opencv_core.Mat image = imageLoader.asMat(image3HW);
+    try {
+      for (int k = 0; k < this.count; k++) {
+        int i = this.order[k];
+        opencv_core.Mat source = (this.sources[i] < 0) ? image : this.levels[this.sources[i]];
+        opencv_imgproc.resize(source, this.levels[i], new opencv_core.Size(this.widths[i], this.heights[i]),
+            0, 0, opencv_imgproc.CV_INTER_AREA);
+      }
+    }
+    finally {
+      image.release();
+    }
+    return this;
+  }
+
+  /**
+   * Computes the level dimensions and picks the source of every level.
+   */
+  void plan(int height, int width, List<Double> scales) {
+    this.count = scales.size();
+    this.ensureCapacity(this.count);
+
+    Integer[] order = new Integer[this.count];
+    for (int i = 0; i < this.count; i++) {
+      order[i] = i;
+      this.widths[i] = (int) Math.ceil(width * scales.get(i));
+      this.heights[i] = (int) Math.ceil(height * scales.get(i));
+    }
+    Arrays.sort(order, (a, b) -> Double.compare(scales.get(b), scales.get(a)));
+
+    for (int k = 0; k < this.count; k++) {
+      int i = order[k];
+      this.order[k] = i;
+      this.sources[i] = -1;
+      // the smallest of the larger levels that is still large enough, all the levels before k are larger
+      for (int j = k - 1; j >= 0; j--) {
+        if (this.widths[order[j]] >= MIN_REDUCTION * this.widths[i]
+            && this.heights[order[j]] >= MIN_REDUCTION * this.heights[i]) {
+          this.sources[i] = order[j];
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * @param level index of the level in the scales of the last {@link #build}
+   * @return The resized image of the level, valid until the next build
+   */
+  opencv_core.Mat level(int level) {
+    Assert.isTrue(level >= 0 && level < this.count, "No pyramid level " + level);
+    return this.levels[level];
+  }
+
+  /**
+   * @return The level the given level is resized from, -1 for the image itself
+   */
+  int source(int level) {
+    return this.sources[level];
+  }
+
+  int size() {
+    return this.count;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (this.levels.length < capacity) {
+      int previous = this.levels.length;
+      this.levels = Arrays.copyOf(this.levels, capacity);
+      for (int i = previous; i < capacity; i++) {
+        this.levels[i] = new opencv_core.Mat();
+      }
+      this.widths = new int[capacity];
+      this.heights = new int[capacity];
+      this.sources = new int[capacity];
+      this.order = new int[capacity];
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+/**
+ * Runs the P-Net, R-Net and O-Net for the {@link MxNetLoader}. A backend binds a model (the
+ * {@code det*-symbol.json} and {@code det*-0000.params} files of a model path prefix) to a fixed input shape.
+ *
+ * @see MxNetBackend
+ * @see JavaBackend
+ */
+public interface InferenceBackend {
+
+  /**
+   * @param modelPath model path prefix, e.g. .../det1
+   * @param inputShape the [N, 3, W, H] input shape
+   * @return The model bound to the input shape
+   */
+  Network bind(String modelPath, int[] inputShape);
+
+  /**
+   * A model bound to a fixed input shape. Not thread safe, the {@link MxNetLoader} serializes the calls.
+   */
+  interface Network extends AutoCloseable {
+
+    /**
+     * @param input the input values, laid out as the bound input shape
+     * @return One array per network output, in the network output order
+     */
+    float[][] run(float[] input);
+
+    /**
+     * @param output network output index
+     * @return The output shape, known once the network has run
+     */
+    int[] outputShape(int output);
+
+    /**
+     * Releases the native memory of the network, if any. The network can't run afterwards.
+     */
+    @Override
+    void close();
+  }
+}
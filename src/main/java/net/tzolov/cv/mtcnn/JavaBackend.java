@@ -0,0 +1,76 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+
+import org.springframework.util.Assert;
+
+/**
+ * Pure Java backend, without the MXNet native libraries. Reads the same MXNet model files (the
+ * {@code -symbol.json} graph and the {@code -0000.params} weights) and runs the MTCNN operators
+ * (convolution, PReLU, max pooling, fully connected and softmax) on float arrays, see {@link JavaNetwork}.
+ * The weights of a model are read once and shared by all the networks bound to it. The detections are the
+ * MXNet backend detections within the float rounding tolerance.
+ *
+ * <p>The convolutions and fully connected layers can be split across the output channels, and the batch
+ * samples, on an executor.
+ */
+public class JavaBackend implements InferenceBackend {
+
+  private final ConcurrentMap<String, JavaModel> models = new ConcurrentHashMap<>();
+  private final ExecutorService executor;
+  private final int parallelism;
+
+  /** Backend running every network on the calling thread. */
+  public JavaBackend() {
+    this(null, 1);
+  }
+
+  /**
+   * @param executor executor for the operator lanes, not shut down by the backend. Null to run on the calling
+   *     thread
+   * @param parallelism maximal number of lanes per operator, the calling thread included
+   */
+  public JavaBackend(ExecutorService executor, int parallelism) {
+    Assert.isTrue(parallelism > 0, "The parallelism must be positive");
+    this.executor = executor;
+    this.parallelism = parallelism;
+  }
+
+  @Override
+  public Network bind(String modelPath, int[] inputShape) {
+    JavaModel model;
+    try {
+      model = this.models.computeIfAbsent(modelPath, path -> {
+        try {
+          return JavaModel.load(path);
+        }
+        catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    }
+    catch (UncheckedIOException e) {
+      throw new IllegalStateException("Failed to load the model " + modelPath, e.getCause());
+    }
+    return new JavaNetwork(model, inputShape, this.executor, this.parallelism);
+  }
+}
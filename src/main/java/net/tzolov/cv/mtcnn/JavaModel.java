@@ -0,0 +1,218 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A MXNet model read for the {@link JavaBackend}: the graph of the {@code -symbol.json} file and the weights of
+ * the epoch 0 {@code -0000.params} file. Immutable once loaded, shared by all the networks bound to the model.
+ */
+class JavaModel {
+
+  // NDArray list file and NDArray magic numbers, see the MXNet NDArray::Save
+  private static final long LIST_MAGIC = 0x112;
+  private static final int NDARRAY_V1_MAGIC = 0xF993FAC8;
+  private static final int NDARRAY_V2_MAGIC = 0xF993FAC9;
+  private static final int FLOAT32 = 0;
+
+  /** A graph node: the input data, a weight (op {@code null}) or an operator. */
+  static class Node {
+
+    final String op;
+    final String name;
+    final Map<String, String> attrs;
+    // producing node of every operator input
+    final int[] inputs;
+
+    Node(String op, String name, Map<String, String> attrs, int[] inputs) {
+      this.op = op;
+      this.name = name;
+      this.attrs = attrs;
+      this.inputs = inputs;
+    }
+
+    String attr(String key, String defaultValue) {
+      return this.attrs.getOrDefault(key, defaultValue);
+    }
+
+    int intAttr(String key, int defaultValue) {
+      String value = this.attrs.get(key);
+      return (value != null) ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
+    /** @return The MXNet tuple attribute, e.g. {@code (3,3)} */
+    int[] tupleAttr(String key, int... defaultValue) {
+      String value = this.attrs.get(key);
+      if (value == null) {
+        return defaultValue;
+      }
+      String[] items = value.replaceAll("[()\\[\\]\\s]", "").split(",");
+      int[] tuple = new int[items.length];
+      for (int i = 0; i < items.length; i++) {
+        tuple[i] = Integer.parseInt(items[i]);
+      }
+      return tuple;
+    }
+
+    boolean booleanAttr(String key, boolean defaultValue) {
+      String value = this.attrs.get(key);
+      return (value != null) ? Boolean.parseBoolean(value.trim()) : defaultValue;
+    }
+  }
+
+  /** A weight array. */
+  static class Param {
+
+    final int[] shape;
+    final float[] values;
+
+    Param(int[] shape, float[] values) {
+      this.shape = shape;
+      this.values = values;
+    }
+  }
+
+  private final List<Node> nodes;
+  private final int[] heads;
+  private final Map<String, Param> params;
+
+  JavaModel(List<Node> nodes, int[] heads, Map<String, Param> params) {
+    this.nodes = Collections.unmodifiableList(nodes);
+    this.heads = heads;
+    this.params = Collections.unmodifiableMap(params);
+  }
+
+  /**
+   * @param modelPath model path prefix, e.g. .../det1
+   * @throws IOException Missing or unsupported model files.
+   */
+  static JavaModel load(String modelPath) throws IOException {
+    ObjectMapper mapper = new ObjectMapper();
+    JsonNode symbol = mapper.readTree(new File(modelPath + "-symbol.json"));
+
+    List<Node> nodes = new ArrayList<>();
+    for (JsonNode node : symbol.get("nodes")) {
+      Map<String, String> attrs = new HashMap<>();
+      // the attributes key changed across the MXNet versions
+      for (String key : new String[] {"attrs", "attr", "param"}) {
+        if (node.has(key)) {
+          Iterator<Map.Entry<String, JsonNode>> fields = node.get(key).fields();
+          while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            attrs.put(field.getKey(), field.getValue().asText());
+          }
+        }
+      }
+      JsonNode inputs = node.get("inputs");
+      int[] inputNodes = new int[inputs.size()];
+      for (int i = 0; i < inputs.size(); i++) {
+        inputNodes[i] = inputs.get(i).get(0).asInt();
+      }
+      nodes.add(new Node(node.get("op").asText(), node.get("name").asText(), attrs, inputNodes));
+    }
+
+    JsonNode headNodes = symbol.get("heads");
+    int[] heads = new int[headNodes.size()];
+    for (int i = 0; i < headNodes.size(); i++) {
+      heads[i] = headNodes.get(i).get(0).asInt();
+    }
+
+    return new JavaModel(nodes, heads, readParams(modelPath + "-0000.params"));
+  }
+
+  /**
+   * Reads a MXNet NDArray list file of dense float32 arrays, in the legacy, V1 or V2 layouts.
+   */
+  static Map<String, Param> readParams(String path) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(path))).order(ByteOrder.LITTLE_ENDIAN);
+    if (buffer.getLong() != LIST_MAGIC) {
+      throw new IOException("Not a MXNet params file " + path);
+    }
+    buffer.getLong();
+
+    List<Param> arrays = new ArrayList<>();
+    long count = buffer.getLong();
+    for (long a = 0; a < count; a++) {
+      int magic = buffer.getInt();
+      boolean longDims = magic == NDARRAY_V1_MAGIC || magic == NDARRAY_V2_MAGIC;
+      if (magic == NDARRAY_V2_MAGIC && buffer.getInt() != 0) {
+        throw new IOException("Only dense arrays are supported in " + path);
+      }
+      // the legacy layout starts with the number of dimensions
+      int ndim = longDims ? buffer.getInt() : magic;
+      int[] shape = new int[ndim];
+      int length = 1;
+      for (int d = 0; d < ndim; d++) {
+        shape[d] = longDims ? (int) buffer.getLong() : buffer.getInt();
+        length *= shape[d];
+      }
+      float[] values = new float[(ndim == 0) ? 0 : length];
+      if (ndim > 0) {
+        // device type and id
+        buffer.getInt();
+        buffer.getInt();
+        if (buffer.getInt() != FLOAT32) {
+          throw new IOException("Only float32 arrays are supported in " + path);
+        }
+        buffer.asFloatBuffer().get(values);
+        buffer.position(buffer.position() + 4 * length);
+      }
+      arrays.add(new Param(shape, values));
+    }
+
+    Map<String, Param> params = new HashMap<>();
+    long names = buffer.getLong();
+    for (int a = 0; a < names; a++) {
+      byte[] name = new byte[(int) buffer.getLong()];
+      buffer.get(name);
+      // arg:conv1_weight, aux:...
+      String key = new String(name, "UTF-8");
+      params.put(key.substring(key.indexOf(':') + 1), arrays.get(a));
+    }
+    return params;
+  }
+
+  List<Node> getNodes() {
+    return nodes;
+  }
+
+  /** @return The nodes of the network outputs, in output order */
+  int[] getHeads() {
+    return heads.clone();
+  }
+
+  /**
+   * @return The weight of a {@code null} node, or null for the data and label inputs
+   */
+  Param param(int node) {
+    return this.params.get(this.nodes.get(node).name);
+  }
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A {@link JavaModel} bound to a fixed input shape and run in plain Java, see {@link JavaBackend}.
+ *
+ * <p>The operator outputs are laid out, like in MXNet, as [N, C, H, W] (or [N, C] for the fully connected
+ * layers) float arrays. The arrays are allocated once, when the network is bound, and an array is reused by
+ * the later operators once its last reader ran, so the activations of a run take about the size of the two
+ * largest consecutive operator outputs. The convolutions accumulate every (input channel, kernel offset)
+ * weight into a block of output rows before moving to the next block, so the block stays in the cache while
+ * the input rows stream through it, and the inner loop runs over contiguous output columns.
+ *
+ * <p>Not thread safe, the {@link MxNetLoader} serializes the calls.
+ */
+class JavaNetwork implements InferenceBackend.Network {
+
+  /** Output rows accumulated together by the convolutions. */
+  static final int ROW_BLOCK = 16;
+
+  private final JavaModel model;
+  private final Executor executor;
+  private final int parallelism;
+  private final JavaModel.Node[] nodes;
+  private final int[][] shapes;
+  private final int[] heads;
+  // node outputs, the data node reads the run input
+  private final float[][] values;
+
+  /**
+   * @param executor runs the parallel lanes of the convolutions and fully connected layers, or null
+   * @param parallelism maximal number of lanes per operator
+   */
+  JavaNetwork(JavaModel model, int[] inputShape, Executor executor, int parallelism) {
+    this.model = model;
+    this.executor = executor;
+    this.parallelism = (executor == null) ? 1 : parallelism;
+    this.nodes = model.getNodes().toArray(new JavaModel.Node[0]);
+    this.heads = model.getHeads();
+    this.shapes = new int[this.nodes.length][];
+    this.values = new float[this.nodes.length][];
+
+    // readers of every node output, the last one frees the node array
+    int[] readers = new int[this.nodes.length];
+    int[] lastReader = new int[this.nodes.length];
+    for (int i = 0; i < this.nodes.length; i++) {
+      for (int input : this.nodes[i].inputs) {
+        readers[input]++;
+        lastReader[input] = i;
+      }
+    }
+    for (int head : this.heads) {
+      // never freed
+      lastReader[head] = Integer.MAX_VALUE;
+    }
+
+    List<float[]> free = new ArrayList<>();
+    for (int i = 0; i < this.nodes.length; i++) {
+      JavaModel.Node node = this.nodes[i];
+      if ("null".equals(node.op)) {
+        JavaModel.Param param = model.param(i);
+        if (param != null) {
+          this.shapes[i] = param.shape;
+          this.values[i] = param.values;
+        }
+        else if ("data".equals(node.name)) {
+          this.shapes[i] = inputShape.clone();
+        }
+        continue;
+      }
+
+      int source = node.inputs[0];
+      this.shapes[i] = this.outputShape(node, this.shapes[source]);
+      if (inPlace(node) && readers[source] == 1 && !"null".equals(this.nodes[source].op)
+          && lastReader[source] != Integer.MAX_VALUE) {
+        this.values[i] = this.values[source];
+        lastReader[source] = -1;
+      }
+      else {
+        this.values[i] = take(free, length(this.shapes[i]));
+      }
+      for (int input : node.inputs) {
+        if (lastReader[input] == i && !"null".equals(this.nodes[input].op)) {
+          free.add(this.values[input]);
+          lastReader[input] = -1;
+        }
+      }
+    }
+  }
+
+  @Override
+  public float[][] run(float[] input) {
+    for (int i = 0; i < this.nodes.length; i++) {
+      JavaModel.Node node = this.nodes[i];
+      if ("null".equals(node.op)) {
+        if (this.shapes[i] != null && this.model.param(i) == null) {
+          this.values[i] = input;
+        }
+        continue;
+      }
+      float[] in = this.values[node.inputs[0]];
+      int[] inShape = this.shapes[node.inputs[0]];
+      switch (node.op) {
+        case "Convolution":
+          this.convolution(node, in, inShape, this.values[node.inputs[1]], this.shapes[node.inputs[1]],
+              node.booleanAttr("no_bias", false) ? null : this.values[node.inputs[2]], this.values[i],
+              this.shapes[i]);
+          break;
+        case "FullyConnected":
+          this.fullyConnected(in, inShape, this.values[node.inputs[1]],
+              node.booleanAttr("no_bias", false) ? null : this.values[node.inputs[2]], this.values[i],
+              this.shapes[i]);
+          break;
+        case "LeakyReLU":
+          leakyRelu(node, in, inShape, (node.inputs.length > 1) ? this.values[node.inputs[1]] : null,
+              this.values[i]);
+          break;
+        case "Pooling":
+          maxPooling(node, in, inShape, this.values[i], this.shapes[i]);
+          break;
+        case "SoftmaxActivation":
+          softmax(in, this.values[i], this.shapes[i], "channel".equals(node.attr("mode", "instance")));
+          break;
+        case "SoftmaxOutput":
+          softmax(in, this.values[i], this.shapes[i], node.booleanAttr("multi_output", false));
+          break;
+        default:
+          // rejected when bound
+          throw new IllegalStateException("Unsupported operator " + node.op);
+      }
+    }
+
+    float[][] outputs = new float[this.heads.length][];
+    for (int o = 0; o < this.heads.length; o++) {
+      outputs[o] = Arrays.copyOf(this.values[this.heads[o]], length(this.shapes[this.heads[o]]));
+    }
+    return outputs;
+  }
+
+  @Override
+  public int[] outputShape(int output) {
+    return this.shapes[this.heads[output]].clone();
+  }
+
+  @Override
+  public void close() {
+    // heap buffers only
+  }
+
+  private int[] outputShape(JavaModel.Node node, int[] in) {
+    switch (node.op) {
+      case "Convolution": {
+        int[] kernel = node.tupleAttr("kernel");
+        int[] stride = node.tupleAttr("stride", 1, 1);
+        int[] pad = node.tupleAttr("pad", 0, 0);
+        if (node.intAttr("num_group", 1) != 1 || !Arrays.equals(node.tupleAttr("dilate", 1, 1), new int[] {1, 1})) {
+          throw new IllegalArgumentException("Unsupported grouped or dilated convolution " + node.name);
+        }
+        return new int[] {in[0], node.intAttr("num_filter", 0),
+            (in[2] + 2 * pad[0] - kernel[0]) / stride[0] + 1, (in[3] + 2 * pad[1] - kernel[1]) / stride[1] + 1};
+      }
+      case "FullyConnected":
+        if (!node.booleanAttr("flatten", true)) {
+          throw new IllegalArgumentException("Unsupported not flattened fully connected layer " + node.name);
+        }
+        return new int[] {in[0], node.intAttr("num_hidden", 0)};
+      case "Pooling": {
+        if (!"max".equals(node.attr("pool_type", "max")) || node.booleanAttr("global_pool", false)) {
+          throw new IllegalArgumentException("Unsupported pooling " + node.name);
+        }
+        int[] kernel = node.tupleAttr("kernel");
+        int[] stride = node.tupleAttr("stride", 1, 1);
+        int[] pad = node.tupleAttr("pad", 0, 0);
+        boolean full = "full".equals(node.attr("pooling_convention", "valid"));
+        return new int[] {in[0], in[1],
+            pooledLength(in[2], kernel[0], stride[0], pad[0], full),
+            pooledLength(in[3], kernel[1], stride[1], pad[1], full)};
+      }
+      case "LeakyReLU": {
+        String type = node.attr("act_type", "leaky");
+        if (!"prelu".equals(type) && !"leaky".equals(type)) {
+          throw new IllegalArgumentException("Unsupported activation " + type + " of " + node.name);
+        }
+        return in.clone();
+      }
+      case "SoftmaxActivation":
+      case "SoftmaxOutput":
+        return in.clone();
+      default:
+        throw new IllegalArgumentException("Unsupported operator " + node.op + " of " + node.name);
+    }
+  }
+
+  private static boolean inPlace(JavaModel.Node node) {
+    return "LeakyReLU".equals(node.op) || "SoftmaxActivation".equals(node.op) || "SoftmaxOutput".equals(node.op);
+  }
+
+  private static int pooledLength(int length, int kernel, int stride, int pad, boolean full) {
+    int span = length + 2 * pad - kernel;
+    return 1 + (full ? (span + stride - 1) / stride : span / stride);
+  }
+
+  private static int length(int[] shape) {
+    int length = 1;
+    for (int dim : shape) {
+      length *= dim;
+    }
+    return length;
+  }
+
+  /**
+   * @return The smallest free array holding the length, or a new array
+   */
+  private static float[] take(List<float[]> free, int length) {
+    int best = -1;
+    for (int i = 0; i < free.size(); i++) {
+      if (free.get(i).length >= length && (best < 0 || free.get(i).length < free.get(best).length)) {
+        best = i;
+      }
+    }
+    return (best < 0) ? new float[length] : free.remove(best);
+  }
+
+  /**
+   * Every (sample, filter) output plane is one unit of work, the planes are dealt to the lanes.
+   */
+  private void convolution(JavaModel.Node node, float[] in, int[] inShape, float[] weight, int[] weightShape,
+      float[] bias, float[] out, int[] outShape) {
+    int channels = inShape[1];
+    int inHeight = inShape[2];
+    int inWidth = inShape[3];
+    int filters = outShape[1];
+    int outHeight = outShape[2];
+    int outWidth = outShape[3];
+    int kernelHeight = weightShape[2];
+    int kernelWidth = weightShape[3];
+    int[] stride = node.tupleAttr("stride", 1, 1);
+    int[] pad = node.tupleAttr("pad", 0, 0);
+
+    this.parallel(outShape[0] * filters, (from, to) -> {
+      for (int plane = from; plane < to; plane++) {
+        int n = plane / filters;
+        int f = plane % filters;
+        int outBase = plane * outHeight * outWidth;
+        Arrays.fill(out, outBase, outBase + outHeight * outWidth, (bias != null) ? bias[f] : 0f);
+
+        for (int rowBlock = 0; rowBlock < outHeight; rowBlock += ROW_BLOCK) {
+          int rowEnd = Math.min(outHeight, rowBlock + ROW_BLOCK);
+          for (int c = 0; c < channels; c++) {
+            int inBase = (n * channels + c) * inHeight * inWidth;
+            int weightBase = (f * channels + c) * kernelHeight * kernelWidth;
+            for (int ky = 0; ky < kernelHeight; ky++) {
+              for (int kx = 0; kx < kernelWidth; kx++) {
+                float w = weight[weightBase + ky * kernelWidth + kx];
+                // output columns reading input columns, the padding reads zeros
+                int xFrom = Math.max(0, ceilDiv(pad[1] - kx, stride[1]));
+                int xTo = Math.min(outWidth, floorDiv(inWidth - 1 + pad[1] - kx, stride[1]) + 1);
+                for (int oy = rowBlock; oy < rowEnd; oy++) {
+                  int iy = oy * stride[0] + ky - pad[0];
+                  if (iy < 0 || iy >= inHeight) {
+                    continue;
+                  }
+                  int outRow = outBase + oy * outWidth;
+                  int inRow = inBase + iy * inWidth + kx - pad[1];
+                  if (stride[1] == 1) {
+                    for (int ox = xFrom; ox < xTo; ox++) {
+                      out[outRow + ox] += w * in[inRow + ox];
+                    }
+                  }
+                  else {
+                    for (int ox = xFrom; ox < xTo; ox++) {
+                      out[outRow + ox] += w * in[inRow + ox * stride[1]];
+                    }
+                  }
+                }
+              }
+            }
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Every output feature is one unit of work, its weight row is read once for all the samples.
+   */
+  private void fullyConnected(float[] in, int[] inShape, float[] weight, float[] bias, float[] out,
+      int[] outShape) {
+    int samples = inShape[0];
+    int inputs = length(inShape) / samples;
+    int hidden = outShape[1];
+    this.parallel(hidden, (from, to) -> {
+      for (int h = from; h < to; h++) {
+        int weightBase = h * inputs;
+        for (int n = 0; n < samples; n++) {
+          int inBase = n * inputs;
+          float sum = 0;
+          for (int k = 0; k < inputs; k++) {
+            sum += weight[weightBase + k] * in[inBase + k];
+          }
+          out[n * hidden + h] = sum + ((bias != null) ? bias[h] : 0f);
+        }
+      }
+    });
+  }
+
+  /**
+   * Per channel slope (prelu) or the fixed slope attribute (leaky), in place when the arrays are the same.
+   */
+  private static void leakyRelu(JavaModel.Node node, float[] in, int[] shape, float[] gamma, float[] out) {
+    boolean prelu = "prelu".equals(node.attr("act_type", "leaky"));
+    float slope = Float.parseFloat(node.attr("slope", "0.25"));
+    int channels = shape[1];
+    int planeLength = length(shape) / (shape[0] * channels);
+    for (int n = 0; n < shape[0]; n++) {
+      for (int c = 0; c < channels; c++) {
+        float a = prelu ? gamma[c] : slope;
+        int base = (n * channels + c) * planeLength;
+        for (int i = base; i < base + planeLength; i++) {
+          float x = in[i];
+          out[i] = (x > 0) ? x : a * x;
+        }
+      }
+    }
+  }
+
+  /**
+   * Max pooling, the windows are clipped to the input, as the MXNet padding of the max pooling never wins.
+   */
+  private static void maxPooling(JavaModel.Node node, float[] in, int[] inShape, float[] out, int[] outShape) {
+    int[] kernel = node.tupleAttr("kernel");
+    int[] stride = node.tupleAttr("stride", 1, 1);
+    int[] pad = node.tupleAttr("pad", 0, 0);
+    int inHeight = inShape[2];
+    int inWidth = inShape[3];
+    int outHeight = outShape[2];
+    int outWidth = outShape[3];
+    for (int plane = 0; plane < inShape[0] * inShape[1]; plane++) {
+      int inBase = plane * inHeight * inWidth;
+      int outBase = plane * outHeight * outWidth;
+      for (int oy = 0; oy < outHeight; oy++) {
+        int y0 = Math.max(0, oy * stride[0] - pad[0]);
+        int y1 = Math.min(inHeight, oy * stride[0] - pad[0] + kernel[0]);
+        for (int ox = 0; ox < outWidth; ox++) {
+          int x0 = Math.max(0, ox * stride[1] - pad[1]);
+          int x1 = Math.min(inWidth, ox * stride[1] - pad[1] + kernel[1]);
+          float max = Float.NEGATIVE_INFINITY;
+          for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+              max = Math.max(max, in[inBase + y * inWidth + x]);
+            }
+          }
+          out[outBase + oy * outWidth + ox] = max;
+        }
+      }
+    }
+  }
+
+  /**
+   * Softmax over the channels of every sample position, or over all the values of every sample.
+   */
+  private static void softmax(float[] in, float[] out, int[] shape, boolean perPosition) {
+    int samples = shape[0];
+    int sampleLength = length(shape) / samples;
+    int classes = perPosition ? shape[1] : sampleLength;
+    int positions = sampleLength / classes;
+    for (int n = 0; n < samples; n++) {
+      for (int p = 0; p < positions; p++) {
+        int base = n * sampleLength + p;
+        float max = Float.NEGATIVE_INFINITY;
+        for (int c = 0; c < classes; c++) {
+          max = Math.max(max, in[base + c * positions]);
+        }
+        float sum = 0;
+        for (int c = 0; c < classes; c++) {
+          float e = (float) Math.exp(in[base + c * positions] - max);
+          out[base + c * positions] = e;
+          sum += e;
+        }
+        for (int c = 0; c < classes; c++) {
+          out[base + c * positions] /= sum;
+        }
+      }
+    }
+  }
+
+  private static int ceilDiv(int a, int b) {
+    return -Math.floorDiv(-a, b);
+  }
+
+  private static int floorDiv(int a, int b) {
+    return Math.floorDiv(a, b);
+  }
+
+  /** A contiguous range of work units. */
+  private interface Range {
+
+    void run(int from, int to);
+  }
+
+  /**
+   * Splits the units into contiguous lanes, lane 0 runs on the calling thread and the other lanes on the
+   * executor. The lanes not yet picked up by a busy executor are run by the calling thread, so a network
+   * called from the executor itself can't deadlock.
+   */
+  private void parallel(int units, Range range) {
+    int lanes = Math.min(this.parallelism, units);
+    if (lanes <= 1) {
+      range.run(0, units);
+      return;
+    }
+
+    List<FutureTask<Void>> tasks = new ArrayList<>(lanes);
+    for (int lane = 0; lane < lanes; lane++) {
+      int from = (int) ((long) units * lane / lanes);
+      int to = (int) ((long) units * (lane + 1) / lanes);
+      tasks.add(new FutureTask<>(() -> range.run(from, to), null));
+    }
+    for (int lane = 1; lane < lanes; lane++) {
+      this.executor.execute(tasks.get(lane));
+    }
+    for (FutureTask<Void> task : tasks) {
+      task.run();
+    }
+    try {
+      for (FutureTask<Void> task : tasks) {
+        task.get();
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for the network lanes", e);
+    }
+    catch (ExecutionException e) {
+      throw new IllegalStateException("Network lane failed", e.getCause());
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import java.util.Locale;
+import org.springframework.util.Assert;
+
+/**
+ * Maps the detection events onto named, tagged timers, distribution summaries and counters, following the
+ * Micrometer naming conventions. The meters are written to a {@link MeterSink}, which keeps the library free
+ * of a metrics dependency. With Micrometer on the classpath the sink is a thin bridge:
+ *
+ * <pre>
+ * new MeterMetricsListener(new MeterSink() {
+ *   public void recordTime(String name, long nanos, String... tags) {
+ *     registry.timer(name, tags).record(nanos, TimeUnit.NANOSECONDS);
+ *   }
+ *   public void recordValue(String name, double value, String... tags) {
+ *     registry.summary(name, tags).record(value);
+ *   }
+ *   public void increment(String name, double amount, String... tags) {
+ *     registry.counter(name, tags).increment(amount);
+ *   }
+ * });
+ * </pre>
+ *
+ * <p>Meters: {@code mtcnn.image.decode}, {@code mtcnn.scale} and {@code mtcnn.scale.candidates},
+ * {@code mtcnn.stage} and {@code mtcnn.stage.candidates} (tag {@code stage}), {@code mtcnn.nms},
+ * {@code mtcnn.nms.candidates} and {@code mtcnn.nms.picked} (tag {@code pass}), {@code mtcnn.predictor.calls} and
+ * {@code mtcnn.predictor.candidates} (tag {@code stage}), {@code mtcnn.ready} (the service time to ready).
+ */
+public class MeterMetricsListener implements DetectionMetricsListener {
+
+  /** Destination of the meters, e.g. a Micrometer {@code MeterRegistry} bridge. Must be thread safe. */
+  public interface MeterSink {
+
+    void recordTime(String name, long nanos, String... tags);
+
+    void recordValue(String name, double value, String... tags);
+
+    void increment(String name, double amount, String... tags);
+  }
+
+  private final MeterSink sink;
+
+  public MeterMetricsListener(MeterSink sink) {
+    Assert.notNull(sink, "Meter sink is required");
+    this.sink = sink;
+  }
+
+  @Override
+  public void imageDecoded(long nanos) {
+    this.sink.recordTime("mtcnn.image.decode", nanos);
+  }
+
+  @Override
+  public void scaleProcessed(double scale, long nanos, int candidates) {
+    this.sink.recordTime("mtcnn.scale", nanos);
+    this.sink.recordValue("mtcnn.scale.candidates", candidates);
+  }
+
+  @Override
+  public void stageCompleted(Stage stage, long nanos, int candidates) {
+    String tag = tag(stage);
+    this.sink.recordTime("mtcnn.stage", nanos, "stage", tag);
+    this.sink.recordValue("mtcnn.stage.candidates", candidates, "stage", tag);
+  }
+
+  @Override
+  public void nonMaxSuppression(NmsPass pass, long nanos, int inputCandidates, int pickedCandidates) {
+    String tag = tag(pass);
+    this.sink.recordTime("mtcnn.nms", nanos, "pass", tag);
+    this.sink.recordValue("mtcnn.nms.candidates", inputCandidates, "pass", tag);
+    this.sink.recordValue("mtcnn.nms.picked", pickedCandidates, "pass", tag);
+  }
+
+  @Override
+  public void predictorCalls(Stage stage, int calls, int candidates) {
+    String tag = tag(stage);
+    this.sink.increment("mtcnn.predictor.calls", calls, "stage", tag);
+    this.sink.increment("mtcnn.predictor.candidates", candidates, "stage", tag);
+  }
+
+  @Override
+  public void serviceReady(long nanos) {
+    this.sink.recordTime("mtcnn.ready", nanos);
+  }
+
+  private static String tag(Enum<?> value) {
+    return value.name().toLowerCase(Locale.ROOT).replace('_', '.');
+  }
+}
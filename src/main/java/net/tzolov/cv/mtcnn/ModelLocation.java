@@ -0,0 +1,300 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.util.Assert;
+import org.springframework.util.ResourceUtils;
+
+/**
+ * Resolves the folder of the MXNet models (the {@code det1}, {@code det2} and {@code det3} symbol and
+ * params files). The MXNet predictors read the models from the file system, so the models packaged in a
+ * jar are extracted to the model cache folder, once per process and location.
+ *
+ * <p>The location is a classpath location ({@code classpath:/mxnet_model/}, the default), an URL
+ * ({@code file:/opt/mtcnn/models/}) or a plain file system path. The default location can be overridden with
+ * the {@value #LOCATION_PROPERTY} system property.
+ *
+ * <p>The model cache is shared by all the processes of the node: the extracted models are stored, read-only,
+ * in a sub folder named after the digest of their content and reused by every JVM extracting the same models.
+ * The predictors of all the processes then read the same files and share their page cache, instead of one
+ * temporary copy per process. Point the {@value #CACHE_PROPERTY} system property to a memory backed file
+ * system (e.g. {@code /dev/shm}) to keep the models off the disk.
+ */
+public class ModelLocation {
+
+  /** System property overriding the {@link #DEFAULT_LOCATION}. */
+  public static final String LOCATION_PROPERTY = "mtcnn.model.location";
+
+  public static final String DEFAULT_LOCATION = "classpath:/mxnet_model/";
+
+  /** System property overriding the model cache folder, {@code mtcnn-models} in the temporary folder. */
+  public static final String CACHE_PROPERTY = "mtcnn.model.cache";
+
+  /** Models used by the {@link MtcnnService}. */
+  static final String[] MODELS = new String[] {"det1", "det2", "det3"};
+
+  /** Files of every model, for the epoch 0 loaded by the predictors. */
+  static final String[] MODEL_FILE_SUFFIXES = new String[] {"-symbol.json", "-0000.params"};
+
+  // digest bytes in the name of the cache folders
+  private static final int DIGEST_FOLDER_BYTES = 16;
+
+  private static final String STAGING_PREFIX = ".staging-";
+
+  // staging folders untouched for longer are left behind by crashed processes, not live extractions
+  private static final long STALE_STAGING_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private static final ConcurrentMap<String, String> RESOLVED_FOLDERS = new ConcurrentHashMap<>();
+
+  private ModelLocation() {
+  }
+
+  /**
+   * @return The {@value #LOCATION_PROPERTY} system property or the {@link #DEFAULT_LOCATION}
+   */
+  public static String defaultLocation() {
+    return System.getProperty(LOCATION_PROPERTY, DEFAULT_LOCATION);
+  }
+
+  /**
+   * @return The {@value #CACHE_PROPERTY} system property or the default model cache folder
+   */
+  public static Path cacheFolder() {
+    String cache = System.getProperty(CACHE_PROPERTY);
+    return (cache != null) ? Paths.get(cache) : Paths.get(System.getProperty("java.io.tmpdir"), "mtcnn-models");
+  }
+
+  /**
+   * @param location classpath location, URL or file system path of the model folder
+   * @return The file system folder holding the model files, without a trailing separator
+   * @throws IOException Missing model files.
+   */
+  public static String resolve(String location) throws IOException {
+    Assert.hasText(location, "Model location is required");
+    try {
+      return RESOLVED_FOLDERS.computeIfAbsent(location, l -> {
+        try {
+          return resolveFolder(l);
+        }
+        catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    }
+    catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static String resolveFolder(String location) throws IOException {
+    String folderLocation = location.endsWith("/") ? location : location + "/";
+    Resource folder = ResourceUtils.isUrl(folderLocation)
+        ? new DefaultResourceLoader().getResource(folderLocation)
+        : new FileSystemResource(folderLocation);
+
+    if (folder.isFile() && folder.getFile().isDirectory()) {
+      for (String model : MODELS) {
+        for (String suffix : MODEL_FILE_SUFFIXES) {
+          if (!new File(folder.getFile(), model + suffix).isFile()) {
+            throw new IOException("Missing model file " + model + suffix + " in " + location);
+          }
+        }
+      }
+      return folder.getFile().getAbsolutePath();
+    }
+
+    // packaged models, e.g. in a jar
+    return extract(folder, location, cacheFolder()).toAbsolutePath().toString();
+  }
+
+  /**
+   * Hashes the model files, as streams, to name their digest folder. A complete digest folder already
+   * published, by this or another process, is used as is. Otherwise the model files are extracted to a staging
+   * folder of the cache and the staging folder is published as the digest folder with an atomic rename. An
+   * incomplete digest folder, e.g. a model file deleted by a cache cleaner, is renamed away first. A process
+   * finding the digest folder published concurrently drops its staging copy and uses the published one. The
+   * staging folders left behind by crashed processes are deleted first.
+   *
+   * @return The digest folder holding the model files
+   */
+  static Path extract(Resource folder, String location, Path cache) throws IOException {
+    Files.createDirectories(cache);
+    String digestFolder = digestFolder(folder, location, null);
+    Path target = cache.resolve(digestFolder);
+    if (isComplete(target)) {
+      return target;
+    }
+
+    deleteStaleStaging(cache);
+    Path staging = Files.createTempDirectory(cache, STAGING_PREFIX);
+    try {
+      if (!digestFolder.equals(digestFolder(folder, location, staging))) {
+        throw new IOException("The model files of " + location + " changed while they were extracted");
+      }
+      if (Files.isDirectory(target) && !isComplete(target)) {
+        retire(target, cache);
+      }
+      try {
+        Files.move(staging, target, StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+        // published concurrently by another process
+      }
+      return target;
+    }
+    finally {
+      deleteStaging(staging);
+    }
+  }
+
+  private static boolean isComplete(Path target) {
+    for (String model : MODELS) {
+      for (String suffix : MODEL_FILE_SUFFIXES) {
+        if (!Files.isRegularFile(target.resolve(model + suffix))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Renames an incomplete digest folder to a staging folder and deletes it. Best effort, a staging folder left
+   * behind is deleted once stale.
+   */
+  private static void retire(Path target, Path cache) throws IOException {
+    Path retired = cache.resolve(STAGING_PREFIX + UUID.randomUUID());
+    try {
+      Files.move(target, retired, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (NoSuchFileException e) {
+      // retired concurrently by another process
+      return;
+    }
+    try {
+      deleteStaging(retired);
+    }
+    catch (IOException e) {
+      // deleted concurrently as a stale staging folder
+    }
+  }
+
+  /**
+   * @param staging folder to copy the read-only model files to while hashing them, null to only hash them
+   * @return The digest folder name of the model files, their names included
+   */
+  private static String digestFolder(Resource folder, String location, Path staging) throws IOException {
+    MessageDigest digest = newDigest();
+    byte[] buffer = new byte[64 * 1024];
+    for (String model : MODELS) {
+      for (String suffix : MODEL_FILE_SUFFIXES) {
+        Resource file = folder.createRelative(model + suffix);
+        if (!file.exists()) {
+          throw new IOException("Missing model file " + model + suffix + " in " + location);
+        }
+        digest.update((model + suffix).getBytes(StandardCharsets.UTF_8));
+        try (InputStream is = new DigestInputStream(file.getInputStream(), digest)) {
+          if (staging != null) {
+            Path copy = staging.resolve(model + suffix);
+            Files.copy(is, copy);
+            copy.toFile().setReadOnly();
+          }
+          else {
+            while (is.read(buffer) != -1) {
+              // digested while read
+            }
+          }
+        }
+      }
+    }
+    return toHex(digest.digest(), DIGEST_FOLDER_BYTES);
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is required by every Java platform", e);
+    }
+  }
+
+  private static String toHex(byte[] bytes, int length) {
+    StringBuilder hex = new StringBuilder(2 * length);
+    for (int i = 0; i < length; i++) {
+      hex.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16)).append(Character.forDigit(bytes[i] & 0xF, 16));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Deletes the stale staging folders of the cache. Best effort, another process may delete them concurrently.
+   */
+  private static void deleteStaleStaging(Path cache) throws IOException {
+    long staleBefore = System.currentTimeMillis() - STALE_STAGING_MILLIS;
+    try (DirectoryStream<Path> stagings = Files.newDirectoryStream(cache, STAGING_PREFIX + "*")) {
+      for (Path staging : stagings) {
+        try {
+          if (Files.getLastModifiedTime(staging).toMillis() < staleBefore) {
+            deleteStaging(staging);
+          }
+        }
+        catch (IOException e) {
+          // deleted concurrently or not deletable, retried by the next extraction
+        }
+      }
+    }
+  }
+
+  /**
+   * Deletes the staging folder, if it was not published.
+   */
+  private static void deleteStaging(Path staging) throws IOException {
+    if (!Files.exists(staging)) {
+      return;
+    }
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(staging)) {
+      for (Path file : files) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(staging);
+  }
+}
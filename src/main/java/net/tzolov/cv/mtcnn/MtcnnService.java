@@ -22,14 +22,25 @@ import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
 import static org.nd4j.linalg.indexing.NDArrayIndex.point;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
-import javax.imageio.ImageIO;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.io.IOUtils;
 import org.bytedeco.javacpp.opencv_core;
 import org.bytedeco.javacpp.opencv_imgproc;
@@ -48,61 +59,534 @@ import org.springframework.util.Assert;
 
 /** @author Christian Tzolov */
 public class MtcnnService {
-  public static final String MXNET_MODEL_CLASSPATH = "/home/dzly/projects/countr_face_recognition/mtcnn-java/src/main/resources/mxnet_model/";
+  public static final String MXNET_MODEL_CLASSPATH = ModelLocation.DEFAULT_LOCATION;
   public final String MXNET_MODEL_FOLDER;
 
-  private final Java2DNativeImageLoader imageLoader;
+  private static final AtomicInteger INSTANCE_COUNTER = new AtomicInteger();
 
-  private final Map<Double, MxNetLoader> proposeNetGraphRunnerMxnet;
-  private final MxNetLoader refineNetGraphRunnerMxnet;
-  private final MxNetLoader outputNetGraphRunnerMxnet;
+  // the image loaders (and their converters) are not thread safe, the resize can run on stage one workers
+  // and the images can be decoded on the batcher decode threads
+  private final ThreadLocal<Java2DNativeImageLoader> resizeImageLoader =
+      ThreadLocal.withInitial(Java2DNativeImageLoader::new);
+
+  private final PNetPredictorCache proposeNetGraphRunnerCache;
+  private final InferenceBackend inferenceBackend;
+  private final String proposeNetModelUri;
+  private final String refineNetModelUri;
+  private final String outputNetModelUri;
+  private final DetectionContextPool detectionContextPool;
+  private final int instanceId = INSTANCE_COUNTER.incrementAndGet();
+  private volatile int[] batchBuckets = new int[0];
+  private volatile long acquireTimeoutMillis = -1;
 
   private final int minFaceSize;
   private final double scaleFactor;
   private final double[] stepsThreshold;
   private final int imageWidth;
   private final int imageHeight;
+  // null for the resolution independent service
   private final List<Double> scales;
+  private final PyramidPlanCache pyramidPlans;
+  private volatile ExecutorService stageOneExecutor;
+  private volatile DetectionMetricsListener metricsListener = DetectionMetricsListener.NO_OP;
+  private volatile boolean primitivePipeline;
+  private volatile boolean incrementalPyramid;
+  private volatile int proposeTileSize;
+  private volatile int proposeTileParallelism = 1;
+  private volatile int[] proposeShapeBuckets = new int[0];
+  private volatile int decodeMinFaceSize;
+  private final ImageDecoder imageDecoder = new ImageDecoder();
+  private final long createdNanos;
+  // negative until the warm-up completes
+  private volatile long timeToReadyNanos = -1;
+  // {slot, width, height} of the P-Net predictors bound by the warm-ups
+  private final Set<List<Integer>> warmedProposeNets = ConcurrentHashMap.newKeySet();
+
+  // per thread stage one box buffer, the scales can be processed on the stage one workers
+  private final ThreadLocal<BoxBuffer> stageOneBoxes = ThreadLocal.withInitial(() -> new BoxBuffer(1024));
 
   public MtcnnService(
       int minFaceSize, double scaleFactor, double[] stepsThreshold, int imageWidth, int imageHeight)
       throws IOException {
+    this(minFaceSize, scaleFactor, stepsThreshold, imageWidth, imageHeight, 1);
+  }
+
+  /**
+   * Resolution independent service. The scale pyramid and the P-Net input shapes are computed per image,
+   * from its actual dimensions, and the pyramids of the recently seen resolutions are memoized.
+   *
+   * @param poolSize maximal number of concurrent detections, see {@link #MtcnnService(int, double, double[],
+   *     int, int, int)}
+   */
+  public MtcnnService(int minFaceSize, double scaleFactor, double[] stepsThreshold, int poolSize)
+      throws IOException {
+    this(minFaceSize, scaleFactor, stepsThreshold, 0, 0, poolSize);
+  }
+
+  /**
+   * @param imageWidth width of the detected images. The scale pyramid is precomputed for this resolution.
+   *     0 (with imageHeight 0) computes the pyramid per image, see
+   *     {@link #MtcnnService(int, double, double[], int)}.
+   * @param imageHeight height of the detected images.
+   * @param poolSize maximal number of concurrent detections. Each concurrent detection uses its own set of
+   *     predictors and ND4J workspace, created on demand. Callers beyond the pool size wait for a free set,
+   *     see {@link #setAcquireTimeout(long, TimeUnit)}.
+   */
+  public MtcnnService(
+      int minFaceSize,
+      double scaleFactor,
+      double[] stepsThreshold,
+      int imageWidth,
+      int imageHeight,
+      int poolSize)
+      throws IOException {
+    this(minFaceSize, scaleFactor, stepsThreshold, imageWidth, imageHeight, poolSize,
+        ModelLocation.defaultLocation());
+  }
+
+  /**
+   * @param modelLocation folder of the det1, det2 and det3 models, as a classpath location, an URL or a file
+   *     system path, see {@link ModelLocation}
+   */
+  public MtcnnService(
+      int minFaceSize,
+      double scaleFactor,
+      double[] stepsThreshold,
+      int imageWidth,
+      int imageHeight,
+      int poolSize,
+      String modelLocation)
+      throws IOException {
+    this(minFaceSize, scaleFactor, stepsThreshold, imageWidth, imageHeight, poolSize, modelLocation,
+        MxNetBackend.cpu());
+  }
+
+  /**
+   * @param inferenceBackend runs the P-Net, R-Net and O-Net, e.g. {@link MxNetBackend#cpu()} (the default) or a
+   *     {@link JavaBackend}
+   */
+  public MtcnnService(
+      int minFaceSize,
+      double scaleFactor,
+      double[] stepsThreshold,
+      int imageWidth,
+      int imageHeight,
+      int poolSize,
+      String modelLocation,
+      InferenceBackend inferenceBackend)
+      throws IOException {
+    this.createdNanos = System.nanoTime();
+    Assert.notNull(inferenceBackend, "Inference backend is required");
+    this.inferenceBackend = inferenceBackend;
     this.minFaceSize = minFaceSize;
     this.scaleFactor = scaleFactor;
     this.stepsThreshold = stepsThreshold;
 
-    this.imageLoader = new Java2DNativeImageLoader();
-
     this.imageWidth = imageWidth;
     this.imageHeight = imageHeight;
-    this.scales =
-        MtcnnUtil.computeScalePyramid(
-            this.imageHeight, this.imageWidth, this.minFaceSize, this.scaleFactor);
+    Assert.isTrue((imageWidth > 0) == (imageHeight > 0), "Set both image dimensions or none of them");
+    this.scales = (imageWidth > 0)
+        ? MtcnnUtil.computeScalePyramid(this.imageHeight, this.imageWidth, this.minFaceSize, this.scaleFactor)
+        : null;
+    this.pyramidPlans = new PyramidPlanCache(minFaceSize, scaleFactor, PyramidPlanCache.DEFAULT_MAX_ENTRIES);
 
-    this.MXNET_MODEL_FOLDER = MXNET_MODEL_CLASSPATH;
+    this.MXNET_MODEL_FOLDER = ModelLocation.resolve(modelLocation);
 
     String MXNET_PNET_MODEL_URI = MXNET_MODEL_FOLDER + "/det1";
     String MXNET_RNET_MODEL_URI = MXNET_MODEL_FOLDER + "/det2";
     String MXNET_ONET_MODEL_URI = MXNET_MODEL_FOLDER + "/det3";
 
-    this.proposeNetGraphRunnerMxnet = new HashMap<>();
-    for (Double scale : this.scales) {
-      int newWidth = (int) Math.ceil(imageWidth * scale);
-      int newHeight = (int) Math.ceil(imageHeight * scale);
-      MxNetLoader scaledMxNetLoader = this.createGraphRunnerMxnet(MXNET_PNET_MODEL_URI, new int[]{1, 3, newWidth, newHeight});
-      proposeNetGraphRunnerMxnet.put(scale, scaledMxNetLoader);
+    // P-Net predictors are bound lazily, per scaled input shape, and shared across service instances
+    this.proposeNetModelUri = MXNET_PNET_MODEL_URI;
+    this.proposeNetGraphRunnerCache = PNetPredictorCache.shared();
+
+    this.refineNetModelUri = MXNET_RNET_MODEL_URI;
+    this.outputNetModelUri = MXNET_ONET_MODEL_URI;
+
+    this.detectionContextPool = new DetectionContextPool(poolSize, this::createDetectionContext);
+    // bind the first predictor set eagerly
+    this.detectionContextPool.release(this.detectionContextPool.acquire(this.acquireTimeoutMillis));
+  }
+
+  private DetectionContext createDetectionContext(int slot) {
+    MxNetLoader refineNet = this.createGraphRunnerMxnet(this.refineNetModelUri, new int[]{1,3, 24, 24});
+    MxNetLoader outputNet = this.createGraphRunnerMxnet(this.outputNetModelUri, new int[]{1, 3, 48, 48});
+    if (this.batchBuckets.length > 0) {
+      refineNet.setBatchBuckets(this.batchBuckets);
+      outputNet.setBatchBuckets(this.batchBuckets);
+    }
+    String workspaceId = "MTCNN_WS_" + this.instanceId + "_" + slot;
+    return new DetectionContext(slot, workspaceId, refineNet, outputNet);
+  }
+
+  /**
+   * Enables batched R-Net and O-Net inference. The stage 2 and 3 candidates are fed to the networks in
+   * chunks of the given (zero padded) batch sizes instead of one predictor call per candidate box.
+   *
+   * @param batchBuckets positive batch sizes, at least one, e.g. {@link MxNetLoader#DEFAULT_BATCH_BUCKETS}. See
+   *     {@link #clearBatchBuckets()} for the one call per candidate mode.
+   */
+  public void setBatchBuckets(int... batchBuckets) {
+    this.batchBuckets = MxNetLoader.validBatchBuckets(batchBuckets);
+    for (DetectionContext context : this.detectionContextPool.created()) {
+      context.getRefineNet().setBatchBuckets(this.batchBuckets);
+      context.getOutputNet().setBatchBuckets(this.batchBuckets);
+    }
+  }
+
+  /**
+   * Restores the default one call per candidate mode of the R-Net and O-Net.
+   */
+  public void clearBatchBuckets() {
+    this.batchBuckets = new int[0];
+    for (DetectionContext context : this.detectionContextPool.created()) {
+      context.getRefineNet().clearBatchBuckets();
+      context.getOutputNet().clearBatchBuckets();
+    }
+  }
+
+  /**
+   * Back-pressure for the concurrent use of the service. When all the pooled predictor sets are in use, a
+   * detection waits up to the timeout and then fails with a {@link RejectedExecutionException}.
+   *
+   * @param timeout maximal wait time. Negative value (the default) waits indefinitely
+   * @param unit timeout unit
+   */
+  public void setAcquireTimeout(long timeout, TimeUnit unit) {
+    this.acquireTimeoutMillis = (timeout < 0) ? -1 : unit.toMillis(timeout);
+  }
+
+  /**
+   * Enables the parallel STAGE 1. The pyramid scales are processed concurrently on the given executor (e.g.
+   * a {@link java.util.concurrent.ForkJoinPool} or a fixed thread pool) and merged, in scale order, before the
+   * cross scale NMS. The results are identical to the sequential path. The executor is not shut down by
+   * the service.
+   *
+   * @param stageOneExecutor executor for the per scale work or null for sequential processing
+   */
+  public void setStageOneExecutor(ExecutorService stageOneExecutor) {
+    this.stageOneExecutor = stageOneExecutor;
+  }
+
+  /**
+   * Pads every scaled image of the STAGE 1 up to the smallest canonical P-Net input shape holding it, see
+   * {@link PNetPredictorCache#bucketFor(int[], int)}. A handful of warm predictors then serve every pyramid
+   * level and image resolution, instead of one predictor bound per distinct level shape. The heatmap cells
+   * of the padding are masked. The kept cells are the cells of the unpadded level, the last cell of an odd
+   * sized level pools one padded pixel instead of the pooling border and can differ slightly.
+   *
+   * @param proposeShapeBuckets ascending input widths and heights, e.g.
+   *     {@link PNetPredictorCache#DEFAULT_SHAPE_BUCKETS}. Levels past the largest bucket keep their exact
+   *     shape. Empty array (the default) binds one predictor per exact shape.
+   */
+  public void setProposeShapeBuckets(int... proposeShapeBuckets) {
+    int[] buckets = proposeShapeBuckets.clone();
+    Arrays.sort(buckets);
+    Assert.isTrue(buckets.length == 0 || buckets[0] >= ProposeTiling.CELL_SIZE,
+        "The shape buckets must be at least " + ProposeTiling.CELL_SIZE);
+    this.proposeShapeBuckets = buckets;
+  }
+
+  public int[] getProposeShapeBuckets() {
+    return proposeShapeBuckets.clone();
+  }
+
+  /**
+   * Enables the tiled STAGE 1 for very large images. The pyramid levels larger than the tile size are split
+   * into overlapping tiles of the tile size, see {@link ProposeTiling}, run through a P-Net predictor bound to
+   * the tile shape and the tile candidates are remapped to the image coordinates before the per scale NMS.
+   * The P-Net inputs and feature maps are bounded by the tile size, instead of growing with the level. The
+   * level itself is kept as an OpenCV {@code Mat}. The heatmap cells of the tiled levels are the cells of the
+   * untiled level, except for the odd sized levels whose last cell, half in the P-Net pooling padding, is
+   * dropped.
+   *
+   * <p>Applies to the {@link #faceDetection(INDArray)} path and the encoded images detected through it. The
+   * 8-bit {@link #faceDetection(Uint8Image)} path does not tile its levels.
+   *
+   * @param proposeTileSize tile width and height, even and at least 24. 0 (the default) disables the tiling
+   */
+  public void setProposeTileSize(int proposeTileSize) {
+    Assert.isTrue(proposeTileSize == 0
+            || (proposeTileSize >= ProposeTiling.MIN_TILE_SIZE && proposeTileSize % ProposeTiling.STRIDE == 0),
+        "The tile size must be 0 or even and at least " + ProposeTiling.MIN_TILE_SIZE);
+    this.proposeTileSize = proposeTileSize;
+  }
+
+  public int getProposeTileSize() {
+    return proposeTileSize;
+  }
+
+  /**
+   * Runs the tiles of a level on up to the given number of lanes, with the {@link #setStageOneExecutor stage
+   * one executor}. Every lane has its own tile predictor, the peak memory grows with the number of lanes.
+   *
+   * @param proposeTileParallelism maximal number of tiles processed concurrently, 1 (the default) for
+   *     sequential tiles
+   */
+  public void setProposeTileParallelism(int proposeTileParallelism) {
+    Assert.isTrue(proposeTileParallelism > 0, "The tile parallelism must be positive");
+    this.proposeTileParallelism = proposeTileParallelism;
+  }
+
+  public int getProposeTileParallelism() {
+    return proposeTileParallelism;
+  }
+
+  /**
+   * Records the per call timings and candidate counts of every detection. Defaults to no-op.
+   *
+   * @param metricsListener thread safe listener, e.g. a {@link MeterMetricsListener}
+   */
+  public void setMetricsListener(DetectionMetricsListener metricsListener) {
+    Assert.notNull(metricsListener, "Metrics listener is required, use DetectionMetricsListener.NO_OP");
+    this.metricsListener = metricsListener;
+  }
+
+  public DetectionMetricsListener getMetricsListener() {
+    return metricsListener;
+  }
+
+  /**
+   * Runs the {@link #faceDetection(INDArray)} detections through the primitive pipeline: the same stages and
+   * results as the ND4J pipeline, but the boxes are processed in reused primitive buffers of the pooled
+   * detection context and, once warmed up, a detection allocates nothing besides the network outputs and the
+   * returned annotations. The options based and the raw detections keep using the ND4J pipeline.
+   *
+   * @param primitivePipeline true to enable the primitive pipeline
+   * @see PrimitivePipeline
+   */
+  public void setPrimitivePipeline(boolean primitivePipeline) {
+    this.primitivePipeline = primitivePipeline;
+  }
+
+  public boolean isPrimitivePipeline() {
+    return primitivePipeline;
+  }
+
+  /**
+   * Builds the STAGE 1 pyramid of the ND4J pipeline incrementally: the image is converted to a {@code Mat}
+   * once and the small levels are resized from the larger ones, instead of every level being resized from
+   * the full resolution image. The levels stay within a small tolerance of the direct resize, see
+   * {@link ImagePyramid}, so the detected boxes can differ slightly from the default path.
+   *
+   * @param incrementalPyramid true to build the pyramid incrementally
+   */
+  public void setIncrementalPyramid(boolean incrementalPyramid) {
+    this.incrementalPyramid = incrementalPyramid;
+  }
+
+  public boolean isIncrementalPyramid() {
+    return incrementalPyramid;
+  }
+
+  /**
+   * Warms up the service for its configured image resolution, see {@link #warmUp(ExecutorService, int, int)}.
+   */
+  public long warmUp(ExecutorService startupExecutor) throws IOException {
+    Assert.state(this.scales != null,
+        "The resolution independent service is warmed up with warmUp(executor, height, width)");
+    return this.warmUp(startupExecutor, this.imageHeight, this.imageWidth);
+  }
+
+  /**
+   * Prepares the service for the detections of the given image resolution and reports it ready. All the pooled
+   * predictor sets are created concurrently, every R-Net and O-Net batch bucket and every P-Net input shape of
+   * the resolution pyramid (shape buckets and tile lanes included) is bound and run once on a zero input, and
+   * a synthetic image is detected on every pooled context, loading the remaining native code and starting the
+   * JIT compilation of the detection path. Call it once the service is configured, before serving traffic.
+   * The resolution independent service can be warmed up for several expected resolutions, the service is
+   * ready after the first warm-up. The {@link PNetPredictorCache} grows to hold every warmed P-Net predictor,
+   * see {@link PNetPredictorCache#reserve(int)}.
+   *
+   * @param startupExecutor executor for the warm-up tasks, e.g. a startup pool, not shut down by the service.
+   *     Null for a temporary pool of one thread per core
+   * @param height warm-up image height
+   * @param width warm-up image width
+   * @return Time from the service creation to ready, in nanoseconds
+   * @see DetectionMetricsListener#serviceReady(long)
+   */
+  public long warmUp(ExecutorService startupExecutor, int height, int width) throws IOException {
+    Assert.isTrue(height > 0 && width > 0, "The warm-up image dimensions must be positive");
+    ExecutorService executor = (startupExecutor != null)
+        ? startupExecutor
+        : Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+    List<DetectionContext> contexts = new ArrayList<>();
+    try {
+      List<Future<DetectionContext>> acquired = new ArrayList<>();
+      for (int i = 0; i < this.detectionContextPool.getSize(); i++) {
+        acquired.add(executor.submit(() -> this.detectionContextPool.acquire(this.acquireTimeoutMillis)));
+      }
+      awaitAll(acquired, contexts);
+      // the warm-up detections are not reported
+      contexts.forEach(context -> context.setListener(DetectionMetricsListener.NO_OP));
+
+      List<Future<Object>> bindings = new ArrayList<>();
+      List<int[]> proposeShapes = this.proposeNetShapes(height, width);
+      int newlyWarmed = 0;
+      for (DetectionContext context : contexts) {
+        for (int[] shape : proposeShapes) {
+          if (this.warmedProposeNets.add(Arrays.asList(context.getSlot() + shape[0], shape[1], shape[2]))) {
+            newlyWarmed++;
+          }
+        }
+      }
+      // the warmed predictors must not evict each other, nor the predictors warmed by the other services
+      this.proposeNetGraphRunnerCache.reserve(newlyWarmed);
+      for (DetectionContext context : contexts) {
+        bindings.add(executor.submit(() -> warmUp(context.getRefineNet(), 24, 4, 2)));
+        bindings.add(executor.submit(() -> warmUp(context.getOutputNet(), 48, 10, 4, 2)));
+        for (int[] shape : proposeShapes) {
+          bindings.add(executor.submit(() -> {
+            try (PNetPredictorCache.Lease proposeNet = this.proposeNetGraphRunnerCache.lease(
+                this.inferenceBackend, this.proposeNetModelUri, this.instanceId, context.getSlot() + shape[0],
+                shape[1], shape[2])) {
+              return proposeNet.getLoader().runProposeRaw(new float[CHANNEL_COUNT * shape[1] * shape[2]]);
+            }
+          }));
+        }
+      }
+      awaitAll(bindings, new ArrayList<>());
+
+      INDArray image3HW = Nd4j.rand(new int[] {CHANNEL_COUNT, height, width}).muli(255);
+      List<Future<FaceAnnotation[]>> detections = new ArrayList<>();
+      for (DetectionContext context : contexts) {
+        detections.add(executor.submit(() -> this.detect(context, image3HW)));
+      }
+      awaitAll(detections, new ArrayList<>());
+    }
+    finally {
+      contexts.forEach(this.detectionContextPool::release);
+      if (startupExecutor == null) {
+        executor.shutdown();
+      }
+    }
+
+    long timeToReady = this.timeToReadyNanos;
+    if (timeToReady < 0) {
+      timeToReady = System.nanoTime() - this.createdNanos;
+      this.timeToReadyNanos = timeToReady;
+      this.metricsListener.serviceReady(timeToReady);
     }
+    return timeToReady;
+  }
 
-    this.refineNetGraphRunnerMxnet = this.createGraphRunnerMxnet(MXNET_RNET_MODEL_URI, new int[]{1,3, 24, 24});
-    this.outputNetGraphRunnerMxnet = this.createGraphRunnerMxnet(MXNET_ONET_MODEL_URI, new int[]{1, 3, 48, 48});
+  /**
+   * @return True once a {@link #warmUp} completed
+   */
+  public boolean isReady() {
+    return this.timeToReadyNanos >= 0;
+  }
+
+  /**
+   * @return Time from the service creation to the end of its first warm-up
+   */
+  public long getTimeToReady(TimeUnit unit) {
+    Assert.state(this.isReady(), "The service is not warmed up");
+    return unit.convert(this.timeToReadyNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @return The distinct {slot offset, width, height} P-Net predictor shapes of the resolution pyramid
+   */
+  private List<int[]> proposeNetShapes(int height, int width) {
+    int tileSize = this.proposeTileSize;
+    int[] buckets = this.proposeShapeBuckets;
+    int lanes = (this.stageOneExecutor == null) ? 1 : this.proposeTileParallelism;
+
+    Set<List<Integer>> shapes = new LinkedHashSet<>();
+    for (double scale : this.scalesFor(height, width)) {
+      int newWidth = (int) Math.ceil(width * scale);
+      int newHeight = (int) Math.ceil(height * scale);
+      if (tileSize > 0 && (newWidth > tileSize || newHeight > tileSize)) {
+        ProposeTiling xTiles = new ProposeTiling(newWidth, tileSize);
+        ProposeTiling yTiles = new ProposeTiling(newHeight, tileSize);
+        for (int lane = 0; lane < Math.min(lanes, xTiles.count() * yTiles.count()); lane++) {
+          shapes.add(Arrays.asList(
+              lane * this.detectionContextPool.getSize(), xTiles.tileLength(), yTiles.tileLength()));
+        }
+      }
+      else {
+        shapes.add(Arrays.asList(
+            0, PNetPredictorCache.bucketFor(buckets, newWidth), PNetPredictorCache.bucketFor(buckets, newHeight)));
+      }
+    }
+
+    List<int[]> result = new ArrayList<>(shapes.size());
+    for (List<Integer> shape : shapes) {
+      result.add(new int[] {shape.get(0), shape.get(1), shape.get(2)});
+    }
+    return result;
+  }
+
+  /**
+   * Binds the predictor of every batch bucket of a R-Net or O-Net and runs it once on a zero batch.
+   *
+   * @param outputWidths number of values per candidate for each of the network outputs
+   */
+  private static Object warmUp(MxNetLoader network, int size, int... outputWidths) {
+    int[] buckets = network.getBatchBuckets();
+    for (int batchSize : (buckets.length == 0) ? new int[] {1} : buckets) {
+      float[][] outputs = new float[outputWidths.length][];
+      for (int o = 0; o < outputWidths.length; o++) {
+        outputs[o] = new float[batchSize * outputWidths[o]];
+      }
+      network.runRaw(new float[batchSize * CHANNEL_COUNT * size * size], batchSize, outputs);
+    }
+    return null;
+  }
+
+  /**
+   * Waits for all the futures, even when some fail, and collects their results.
+   */
+  private static <T> void awaitAll(List<Future<T>> futures, List<T> results) throws IOException {
+    Throwable failure = null;
+    boolean interrupted = false;
+    for (Future<T> future : futures) {
+      while (true) {
+        try {
+          results.add(future.get());
+          break;
+        }
+        catch (InterruptedException e) {
+          interrupted = true;
+        }
+        catch (ExecutionException e) {
+          failure = (failure != null) ? failure : e.getCause();
+          break;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    }
+    if (failure != null) {
+      throw new IllegalStateException("Warm-up failed", failure);
+    }
+  }
+
+  /**
+   * Acquires a pooled context reporting to the service metrics listener and the optional per call trace.
+   */
+  private DetectionContext acquireContext(DetectionTrace trace) {
+    DetectionContext context = this.detectionContextPool.acquire(this.acquireTimeoutMillis);
+    context.setListener(this.listenerFor(trace));
+    return context;
+  }
+
+  private DetectionMetricsListener listenerFor(DetectionTrace trace) {
+    return (trace == null) ? this.metricsListener : DetectionMetricsListener.composite(this.metricsListener, trace);
   }
 
   private MxNetLoader createGraphRunnerMxnet(String mxnetModelUri) {
-    return new MxNetLoader(new int[] {0}, mxnetModelUri);
+    return new MxNetLoader(new int[] {0}, mxnetModelUri, this.inferenceBackend);
   }
 
   private MxNetLoader createGraphRunnerMxnet(String mxnetModelUri, int[] sizes) {
-    return new MxNetLoader(sizes, mxnetModelUri);
+    return new MxNetLoader(sizes, mxnetModelUri, this.inferenceBackend);
   }
 
   /**
@@ -113,22 +597,38 @@ public class MtcnnService {
    * @throws IOException Incorrect image Uri.
    */
   public FaceAnnotation[] faceDetection(String imageUri) throws IOException {
-    // [ 3 x H x W ]
-    INDArray image =
-        this.imageLoader
-            .asMatrix(new DefaultResourceLoader().getResource(imageUri).getInputStream())
-            .get(point(0), interval(0, 3), all(), all())
-            .dup();
-    // .get(point(0), all(), all(), all()).dup();
-    return faceDetection(image);
+    try (InputStream is = new DefaultResourceLoader().getResource(imageUri).getInputStream()) {
+      return faceDetection(IOUtils.toByteArray(is));
+    }
   }
 
   public FaceAnnotation[] faceDetection(BufferedImage bImage) throws IOException {
-    INDArray ndImage3HW =
-        this.imageLoader.asMatrix(bImage).get(point(0), interval(0, 3), all(), all());
-    return faceDetection(ndImage3HW);
+    return this.faceDetection(bImage, (DetectionTrace) null);
+  }
+
+  /**
+   * Same as {@link #faceDetection(BufferedImage)}, also recording the decode time, the timings and the
+   * candidate counts of this call.
+   *
+   * @param trace new trace filled in by the detection, or null
+   */
+  public FaceAnnotation[] faceDetection(BufferedImage bImage, DetectionTrace trace) throws IOException {
+    long start = System.nanoTime();
+    INDArray ndImage3HW = this.decode(bImage);
+    this.listenerFor(trace).imageDecoded(System.nanoTime() - start);
+    return faceDetection(ndImage3HW, trace);
   }
 
+  private INDArray decode(BufferedImage bImage) throws IOException {
+    return this.resizeImageLoader.get().asMatrix(bImage).get(point(0), interval(0, 3), all(), all());
+  }
+
+  /**
+   * Detects faces in a raw 8-bit image. The pixels are widened to the [3, H, W] float image of
+   * {@link #faceDetection(INDArray)}, use {@link #faceDetection(Uint8Image)} to detect them as 8-bit pixels.
+   *
+   * @param byteImage interleaved [h, w, 3] pixels
+   */
   public FaceAnnotation[] faceDetection(byte[] byteImage, int h, int w) throws IOException {
     INDArray ndImage3HW =
         Nd4j.create(MtcnnUtil.imageByteToFloatArray(byteImage))
@@ -137,18 +637,143 @@ public class MtcnnService {
     return faceDetection(ndImage3HW);
   }
 
+  /**
+   * Detects faces in an 8-bit image. The image is never converted to floats: the primitive pipeline resizes
+   * the pyramid levels and crops the candidates straight from the 8-bit pixels, and normalizes only the
+   * values written into the network inputs. A quarter of the image memory traffic of the
+   * {@link #faceDetection(INDArray)} path.
+   *
+   * <p>An explicit opt-in: this path always runs the primitive pipeline, regardless of
+   * {@link #setPrimitivePipeline(boolean)}, and does not use the STAGE 1 executor, the incremental pyramid,
+   * the tiled STAGE 1 or a {@link DetectionTrace}. The encoded images ({@link #faceDetection(byte[])} and
+   * {@link #faceDetection(String)}) and the raw {@link #faceDetection(byte[], int, int)} pixels take the
+   * {@link #faceDetection(INDArray)} path.
+   *
+   * @param image 8-bit image, in the channel order of the [3, H, W] images
+   * @return Array of face bounding boxes found in the image
+   */
+  public FaceAnnotation[] faceDetection(Uint8Image image) throws IOException {
+    Assert.notNull(image, "Image is required");
+    DetectionContext context = this.acquireContext(null);
+    try {
+      int height = image.getHeight();
+      int width = image.getWidth();
+      return this.primitivePipeline(context)
+          .detect(image, this.scalesFor(height, width), this.isLandscape(height, width));
+    }
+    finally {
+      this.detectionContextPool.release(context);
+    }
+  }
+
   /**
    * Detects faces for byte encoded input images. Supports only byte arrays exported from with their
    * image formats e.g. ImageIO.write(bufferImage, format) or MtcnnUtil.toByteArray(bi2, "png")
    *
+   * <p>The image is decoded with the {@link ImageDecoder}, see {@link #decodeImage(byte[], int)}, and detected
+   * like the {@link #faceDetection(INDArray)} images.
+   *
    * @param byteImage Input image encoded in bytes along with its image format spec.
    * @return Array of face bounding boxes found in the image
    * @throws IOException Incorrect image Uri.
    */
   public FaceAnnotation[] faceDetection(byte[] byteImage) throws IOException {
-    ByteArrayInputStream is = new ByteArrayInputStream(byteImage);
-    BufferedImage bufferedImage = ImageIO.read(is);
-    return faceDetection(bufferedImage);
+    return this.faceDetection(byteImage, (DetectionTrace) null);
+  }
+
+  /**
+   * Same as {@link #faceDetection(byte[])}, also recording the decode time, the timings and the candidate
+   * counts of this call.
+   *
+   * @param trace new trace filled in by the detection, or null
+   */
+  public FaceAnnotation[] faceDetection(byte[] byteImage, DetectionTrace trace) throws IOException {
+    int reduction = this.getDecodeReduction();
+    INDArray ndImage3HW = this.decodeImage(byteImage, reduction, this.listenerFor(trace));
+    return rescale(faceDetection(ndImage3HW, trace), reduction);
+  }
+
+  /**
+   * Decodes an encoded (e.g. JPEG or PNG) image into the [3, H, W] array expected by the detection, and
+   * reports the decode time to the metrics listener. Thread safe, used to decode on other threads than the
+   * detection, see {@link FaceDetectionBatcher#faceDetection(List)}.
+   *
+   * @param byteImage Input image encoded in bytes along with its image format spec.
+   * @return The [3, H, W] image
+   * @throws IOException Unsupported or corrupted image.
+   * @see ImageDecoder
+   */
+  public INDArray decodeImage(byte[] byteImage) throws IOException {
+    return this.decodeImage(byteImage, 1);
+  }
+
+  /**
+   * Same as {@link #decodeImage(byte[])}, at a reduced resolution.
+   *
+   * @param reduction 1, 2, 4 or 8, see {@link #getDecodeReduction()}
+   * @return The [3, H / reduction, W / reduction] image
+   */
+  public INDArray decodeImage(byte[] byteImage, int reduction) throws IOException {
+    return this.decodeImage(byteImage, reduction, this.metricsListener);
+  }
+
+  private INDArray decodeImage(byte[] byteImage, int reduction, DetectionMetricsListener listener)
+      throws IOException {
+    long start = System.nanoTime();
+    INDArray ndImage3HW = this.imageDecoder.decode(byteImage, reduction);
+    listener.imageDecoded(System.nanoTime() - start);
+    return ndImage3HW;
+  }
+
+  /**
+   * Enables the decode time downscaling of the encoded images ({@link #faceDetection(byte[])},
+   * {@link #faceDetection(String)} and the {@link FaceDetectionBatcher} batch APIs). When the smallest face
+   * of interest is at least twice the min face size, the images are decoded at 1/2, 1/4 or 1/8 of their
+   * resolution and the detected faces are scaled back to the encoded image coordinates. Requires the
+   * resolution independent service, whose pyramid follows the decoded resolution.
+   *
+   * @param decodeMinFaceSize smallest face of interest, in the pixels of the encoded images. 0 (the default)
+   *     decodes at full resolution
+   * @throws IllegalStateException on a fixed size service
+   */
+  public void setDecodeMinFaceSize(int decodeMinFaceSize) {
+    Assert.isTrue(decodeMinFaceSize >= 0, "Decode min face size must not be negative");
+    Assert.state(this.scales == null,
+        "The decode time downscaling requires the resolution independent service, the fixed size service "
+            + "pyramid is computed for the full resolution");
+    this.decodeMinFaceSize = decodeMinFaceSize;
+  }
+
+  public int getDecodeMinFaceSize() {
+    return decodeMinFaceSize;
+  }
+
+  /**
+   * @return The resolution reduction applied when decoding the encoded images, 1 for none
+   */
+  public int getDecodeReduction() {
+    return ImageDecoder.reductionFor(this.minFaceSize, this.decodeMinFaceSize);
+  }
+
+  /**
+   * Scales the faces detected in a reduced image back to the full resolution coordinates, in place.
+   */
+  static FaceAnnotation[] rescale(FaceAnnotation[] faces, int reduction) {
+    if (reduction == 1) {
+      return faces;
+    }
+    for (FaceAnnotation face : faces) {
+      FaceAnnotation.BoundingBox box = face.getBoundingBox();
+      box.setX(box.getX() * reduction);
+      box.setY(box.getY() * reduction);
+      box.setW(box.getW() * reduction);
+      box.setH(box.getH() * reduction);
+      for (FaceAnnotation.Landmark landmark : face.getLandmarks()) {
+        landmark.getPosition().setX(landmark.getPosition().getX() * reduction);
+        landmark.getPosition().setY(landmark.getPosition().getY() * reduction);
+      }
+    }
+    return faces;
   }
 
   /**
@@ -158,10 +783,187 @@ public class MtcnnService {
    * @return Array of face bounding boxes found in the image
    */
   public FaceAnnotation[] faceDetection(INDArray image3HW) throws IOException {
+    return this.faceDetection(image3HW, (DetectionTrace) null);
+  }
+
+  /**
+   * Same as {@link #faceDetection(INDArray)}, also recording the timings and candidate counts of this call.
+   *
+   * @param trace new trace filled in by the detection, or null
+   */
+  public FaceAnnotation[] faceDetection(INDArray image3HW, DetectionTrace trace) throws IOException {
+    DetectionContext context = this.acquireContext(trace);
+    try {
+      return this.detect(context, image3HW);
+    }
+    finally {
+      this.detectionContextPool.release(context);
+    }
+  }
 
-    INDArray[] outputStageResult = this.rawFaceDetection(image3HW);
+  private FaceAnnotation[] detect(DetectionContext context, INDArray image3HW) throws IOException {
+    if (this.primitivePipeline) {
+      return this.primitiveDetection(context, image3HW);
+    }
+    return toFaceAnnotation(this.rawFaceDetection(context, image3HW, null, null));
+  }
+
+  /**
+   * Detects faces in an image, restricted by the given options. The region of interest and the face size
+   * range limit the STAGE 1 pyramid. In the coarse to fine mode the pyramid levels are run through all the
+   * stages one at a time, from the largest faces to the smallest, and the detection stops as soon as the
+   * max faces are found. The overlapping faces found at different levels are suppressed.
+   *
+   * @param image3HW image to detect the faces in. Expected dimensions [ 3 x H x W ]
+   * @param options detection options
+   * @return Array of face bounding boxes found in the image, in image coordinates. With max faces set, at
+   *     most max faces of the highest confidence.
+   */
+  public FaceAnnotation[] faceDetection(INDArray image3HW, DetectionOptions options) throws IOException {
+    Assert.notNull(options, "Detection options are required");
+
+    int offsetX = 0;
+    int offsetY = 0;
+    INDArray image = image3HW;
+    FaceAnnotation.BoundingBox roi = options.getRoi();
+    if (roi != null) {
+      int x1 = Math.max(0, roi.getX());
+      int y1 = Math.max(0, roi.getY());
+      int x2 = Math.min((int) image3HW.size(2), roi.getX() + roi.getW());
+      int y2 = Math.min((int) image3HW.size(1), roi.getY() + roi.getH());
+      if (x2 <= x1 || y2 <= y1) {
+        return new FaceAnnotation[0];
+      }
+      image = image3HW.get(all(), interval(y1, y2), interval(x1, x2)).dup();
+      offsetX = x1;
+      offsetY = y1;
+    }
+
+    List<Double> scales = this.scalesFor(options, (int) image.size(1), (int) image.size(2));
+    if (scales.isEmpty()) {
+      return new FaceAnnotation[0];
+    }
+    // a region of interest is not the configured image, its O-Net candidates follow its own orientation
+    boolean landscape = (roi != null)
+        ? image.size(2) > image.size(1)
+        : this.isLandscape((int) image.size(1), (int) image.size(2));
+
+    FaceAnnotation[] faces;
+    DetectionContext context = this.acquireContext(null);
+    try {
+      faces = options.isCoarseToFine()
+          ? this.coarseToFine(context, image, scales, options.getMaxFaces(), landscape)
+          : toFaceAnnotation(this.rawFaceDetection(context, image, scales, null, landscape));
+    }
+    finally {
+      this.detectionContextPool.release(context);
+    }
+
+    if (offsetX != 0 || offsetY != 0) {
+      for (FaceAnnotation face : faces) {
+        FaceAnnotation.BoundingBox box = face.getBoundingBox();
+        box.setX(box.getX() + offsetX);
+        box.setY(box.getY() + offsetY);
+        for (FaceAnnotation.Landmark landmark : face.getLandmarks()) {
+          landmark.getPosition().setX(landmark.getPosition().getX() + offsetX);
+          landmark.getPosition().setY(landmark.getPosition().getY() + offsetY);
+        }
+      }
+    }
+    return faces;
+  }
+
+  /**
+   * @return The pyramid scales of the (region of interest) resolution between the options min and max face
+   *     sizes, ascending for the coarse to fine scan.
+   */
+  private List<Double> scalesFor(DetectionOptions options, int height, int width) {
+    List<Double> scales = (options.getMinFaceSize() > 0 && options.getMinFaceSize() != this.minFaceSize)
+        ? MtcnnUtil.computeScalePyramid(height, width, options.getMinFaceSize(), this.scaleFactor)
+        : this.pyramidPlans.get(height, width);
+
+    List<Double> selected = new ArrayList<>(scales.size());
+    for (Double scale : scales) {
+      // the P-Net detects 12 pixel faces at every pyramid level
+      if (options.getMaxFaceSize() <= 0 || 12 / scale <= options.getMaxFaceSize()) {
+        selected.add(scale);
+      }
+    }
+    if (options.isCoarseToFine()) {
+      Collections.sort(selected);
+    }
+    return selected;
+  }
+
+  private FaceAnnotation[] coarseToFine(DetectionContext context, INDArray image3HW, List<Double> scales,
+      int maxFaces, boolean landscape) throws IOException {
+    List<FaceAnnotation> faces = new ArrayList<>();
+    for (Double scale : scales) {
+      FaceAnnotation[] levelFaces = toFaceAnnotation(
+          this.rawFaceDetection(context, image3HW, Collections.singletonList(scale), null, landscape));
+      if (levelFaces.length > 0) {
+        faces.addAll(Arrays.asList(levelFaces));
+        faces = suppressOverlaps(faces);
+        if (maxFaces > 0 && faces.size() >= maxFaces) {
+          break;
+        }
+      }
+    }
 
-    // Convert result into Bounding Box array
+    faces.sort(Comparator.comparingDouble(FaceAnnotation::getConfidence).reversed());
+    if (maxFaces > 0 && faces.size() > maxFaces) {
+      faces = faces.subList(0, maxFaces);
+    }
+    return faces.toArray(new FaceAnnotation[0]);
+  }
+
+  /**
+   * Same 0.7 Min NMS as the STAGE 3, applied across the faces found at different pyramid levels.
+   */
+  private static List<FaceAnnotation> suppressOverlaps(List<FaceAnnotation> faces) {
+    BoxBuffer boxes = new BoxBuffer(faces.size());
+    for (FaceAnnotation face : faces) {
+      FaceAnnotation.BoundingBox box = face.getBoundingBox();
+      boxes.add(box.getX(), box.getY(), box.getX() + box.getW(), box.getY() + box.getH(),
+          (float) face.getConfidence(), 0, 0, 0, 0);
+    }
+    int[] pick = new int[faces.size()];
+    int count = MtcnnUtil.nonMaxSuppression(boxes, 0.7, MtcnnUtil.NonMaxSuppressionType.Min, pick);
+
+    List<FaceAnnotation> picked = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      picked.add(faces.get(pick[i]));
+    }
+    return picked;
+  }
+
+  private FaceAnnotation[] primitiveDetection(DetectionContext context, INDArray image3HW) {
+    Assert.isTrue(
+        image3HW.rank() == 3 && image3HW.size(0) == CHANNEL_COUNT,
+        "The input image is expected to have [3, H, W] dimensions");
+
+    int height = (int) image3HW.size(1);
+    int width = (int) image3HW.size(2);
+    return this.primitivePipeline(context)
+        .detect(image3HW, this.scalesFor(height, width), this.isLandscape(height, width));
+  }
+
+  private PrimitivePipeline primitivePipeline(DetectionContext context) {
+    PrimitivePipeline pipeline = context.getPrimitivePipeline();
+    if (pipeline == null) {
+      pipeline = new PrimitivePipeline(
+          context, this.proposeNetGraphRunnerCache, this.inferenceBackend, this.proposeNetModelUri,
+          this.instanceId, this.stepsThreshold);
+      context.setPrimitivePipeline(pipeline);
+    }
+    pipeline.setProposeShapeBuckets(this.proposeShapeBuckets);
+    return pipeline;
+  }
+
+  /**
+   * Convert the {@link #rawFaceDetection(INDArray)} result into Bounding Box array
+   */
+  static FaceAnnotation[] toFaceAnnotation(INDArray[] outputStageResult) {
     INDArray totalBoxes = outputStageResult[0];
     INDArray points = outputStageResult[1];
     if (!totalBoxes.isEmpty() && totalBoxes.size(0) > 1) {
@@ -219,6 +1021,43 @@ public class MtcnnService {
    * @throws IOException
    */
   public INDArray[] rawFaceDetection(INDArray image3HW) throws IOException {
+    return this.rawFaceDetection(image3HW, null);
+  }
+
+  /**
+   * Detect faces and related points, seeding the STAGE 2 with the given candidate boxes instead of the
+   * STAGE 1 proposals. Used to follow already known faces, e.g. from the previous video frame.
+   *
+   * @param image3HW input image with dimensions [C x H x W] (e.g. channels first)
+   * @param candidateBoxes [N, 5] boxes (x1, y1, x2, y2, score) or null to run the STAGE 1
+   * @return Two INDArray elements representing the Total Boxes found and the related points.
+   */
+  INDArray[] rawFaceDetection(INDArray image3HW, INDArray candidateBoxes) throws IOException {
+    DetectionContext context = this.acquireContext(null);
+    try {
+      return this.rawFaceDetection(context, image3HW, null, candidateBoxes);
+    }
+    finally {
+      this.detectionContextPool.release(context);
+    }
+  }
+
+  /**
+   * @param scales the scale pyramid, null for the pyramid of the image resolution
+   * @param candidateBoxes boxes replacing the STAGE 1 proposals, null to run the STAGE 1
+   */
+  private INDArray[] rawFaceDetection(
+      DetectionContext context, INDArray image3HW, List<Double> scales, INDArray candidateBoxes)
+      throws IOException {
+    return this.rawFaceDetection(context, image3HW, scales, candidateBoxes,
+        this.isLandscape((int) image3HW.size(1), (int) image3HW.size(2)));
+  }
+
+  /**
+   * @param landscape the O-Net candidates layout, see {@link #isLandscape(int, int)}
+   */
+  private INDArray[] rawFaceDetection(DetectionContext context, INDArray image3HW, List<Double> scales,
+      INDArray candidateBoxes, boolean landscape) throws IOException {
 
     WorkspaceConfiguration initialConfig =
         WorkspaceConfiguration.builder()
@@ -228,7 +1067,8 @@ public class MtcnnService {
             .build();
 
     try (MemoryWorkspace ws =
-        Nd4j.getWorkspaceManager().getAndActivateWorkspace(initialConfig, "SOME_ID")) {
+        Nd4j.getWorkspaceManager()
+            .getAndActivateWorkspace(initialConfig, context.getWorkspaceId())) {
 
       Assert.isTrue(
           image3HW.rank() == 3,
@@ -241,24 +1081,110 @@ public class MtcnnService {
       int height = (int) image3HW.size(1);
       int width = (int) image3HW.size(2);
 
+      DetectionMetricsListener listener = context.getListener();
+
       // Stage One
-      Object[] stageOneResult = this.preparationStage(image3HW, scales);
+      long start = System.nanoTime();
+      Object[] stageOneResult = (candidateBoxes == null)
+          ? this.preparationStage(context, image3HW, (scales != null) ? scales : this.scalesFor(height, width))
+          : this.seedStage(image3HW, candidateBoxes);
+      listener.stageCompleted(DetectionMetricsListener.Stage.PROPOSE,
+          System.nanoTime() - start, rows((INDArray) stageOneResult[0]));
 
       // Reorder image dimensions from [3,H,W] to [H,W,3]
       image3HW = image3HW.permute(1, 2, 0);
 
       // Stage Two
+      start = System.nanoTime();
       INDArray totalBoxes =
           this.refinementStage(
-              image3HW, (INDArray) stageOneResult[0], (MtcnnUtil.PadResult) stageOneResult[1]);
+              context,
+              image3HW,
+              (INDArray) stageOneResult[0],
+              (MtcnnUtil.PadResult) stageOneResult[1]);
+      listener.stageCompleted(DetectionMetricsListener.Stage.REFINE, System.nanoTime() - start, rows(totalBoxes));
 
       // Stage Three
-      INDArray[] stageThreeResult = this.outputStage(image3HW, totalBoxes);
+      start = System.nanoTime();
+      INDArray[] stageThreeResult = this.outputStage(context, image3HW, totalBoxes, landscape);
+      listener.stageCompleted(DetectionMetricsListener.Stage.OUTPUT,
+          System.nanoTime() - start, rows(stageThreeResult[0]));
+
+      // the workspace memory is reused by the next detection in this context
+      return new INDArray[] {stageThreeResult[0].detach(), stageThreeResult[1].detach()};
+    }
+  }
+
+  private static int rows(INDArray boxes) {
+    return boxes.isEmpty() ? 0 : (int) boxes.size(0);
+  }
+
+  /**
+   * Runs STAGE 1 on a pooled context. For callers that drive the stages 2 and 3 themselves.
+   *
+   * @return The STAGE 1 boxes and their pad result (null if there are no boxes)
+   */
+  Object[] stageOne(INDArray image3HW) throws IOException {
+    DetectionContext context = this.acquireContext(null);
+    try {
+      return this.preparationStage(
+          context, image3HW, this.scalesFor((int) image3HW.size(1), (int) image3HW.size(2)));
+    }
+    finally {
+      this.detectionContextPool.release(context);
+    }
+  }
+
+  /**
+   * Runs the P-Net over a single pyramid scale on a pooled context.
+   *
+   * @return The scale boxes after the per scale NMS
+   */
+  INDArray proposeScale(INDArray image3HW, double scale) throws IOException {
+    DetectionContext context = this.acquireContext(null);
+    try {
+      return this.proposeScale(context, image3HW, scale, null);
+    }
+    finally {
+      this.detectionContextPool.release(context);
+    }
+  }
 
-      return stageThreeResult;
+  /** Runs a batch of [N, 3, 24, 24] crops through the R-Net of a pooled context. */
+  List<INDArray> runRefineNet(INDArray refineNetInput) {
+    DetectionContext context = this.acquireContext(null);
+    try {
+      return this.runNetwork(context, context.getRefineNet(), DetectionMetricsListener.Stage.REFINE, refineNetInput);
+    }
+    finally {
+      this.detectionContextPool.release(context);
     }
   }
 
+  /** Runs a batch of [N, 3, 48, 48] crops through the O-Net of a pooled context. */
+  List<INDArray> runOutputNet(INDArray outputNetInput) {
+    DetectionContext context = this.acquireContext(null);
+    try {
+      return this.runNetwork(context, context.getOutputNet(), DetectionMetricsListener.Stage.OUTPUT, outputNetInput);
+    }
+    finally {
+      this.detectionContextPool.release(context);
+    }
+  }
+
+  /**
+   * Runs the R-Net or the O-Net and reports the native predictor calls it took.
+   */
+  private List<INDArray> runNetwork(
+      DetectionContext context, MxNetLoader network, DetectionMetricsListener.Stage stage, INDArray batch) {
+    long calls = network.getPredictorCalls();
+    List<INDArray> resultList = (stage == DetectionMetricsListener.Stage.REFINE)
+        ? network.runRefine(batch)
+        : network.runOutput(batch);
+    context.getListener().predictorCalls(stage, (int) (network.getPredictorCalls() - calls), (int) batch.size(0));
+    return resultList;
+  }
+
   /**
    * STAGE 1
    *
@@ -267,7 +1193,8 @@ public class MtcnnService {
    * @return
    * @throws IOException
    */
-  private Object[] preparationStage(INDArray image3HW, List<Double> scales) throws IOException {
+  private Object[] preparationStage(DetectionContext context, INDArray image3HW, List<Double> scales)
+      throws IOException {
 
     INDArray totalBoxes = Nd4j.empty();
     MtcnnUtil.PadResult padResult = null;
@@ -275,50 +1202,23 @@ public class MtcnnService {
     double imageHeight = image3HW.size(1);
     double imageWidth = image3HW.size(2);
 
-    for (Double scale : this.scales) {
-
-      int newWidth = (int) Math.ceil(imageWidth * scale);
-      int newHeight = (int) Math.ceil(imageHeight * scale);
-
-      MxNetLoader currentPropose = proposeNetGraphRunnerMxnet.get(scale);
-      INDArray tempImg =
-          resize(image3HW, new opencv_core.Size(newWidth, newHeight)).permute(0, 1, 3, 2).dup();
-      tempImg = tempImg.sub(127.5).mul(0.0078125);
-
-      List<INDArray> resultList = currentPropose.runPropose(tempImg);
-      INDArray out0 = resultList.get(0);
-      INDArray out1 = resultList.get(1);
-
-      // Map<String, INDArray> resultMap =
-      //     this.proposeNetGraphRunner.run(Collections.singletonMap("pnet/input", image0WH3));
-      // INDArray out0_n = resultMap.get("pnet/conv4-2/BiasAdd");
-      // INDArray out1_n = resultMap.get("pnet/prob1");
-
-      INDArray boxes =
-          MtcnnUtil.generateBoundingBox(
-              out1.get(point(0), all(), all(), point(1)),
-              out0.get(point(0), all(), all(), all()),
-              scale,
-              this.stepsThreshold[0])[0];
-
+    for (INDArray boxes : this.proposeAllScales(context, image3HW, scales)) {
       if (!boxes.isEmpty()) {
-        INDArray pick =
-            MtcnnUtil.nonMaxSuppression(boxes, 0.5, MtcnnUtil.NonMaxSuppressionType.Union);
-        if (boxes.length() > 0 && pick.length() > 0 && !pick.isEmpty()) {
-          boxes = boxes.get(new SpecifiedIndex(pick.toLongVector()), all());
-          if (totalBoxes.isEmpty()) {
-            totalBoxes = boxes;
-          } else {
-            totalBoxes = MtcnnUtil.append(totalBoxes, boxes, 0);
-          }
+        if (totalBoxes.isEmpty()) {
+          totalBoxes = boxes;
+        } else {
+          totalBoxes = MtcnnUtil.append(totalBoxes, boxes, 0);
         }
       }
     }
 
     long numBoxes = totalBoxes.isEmpty() ? 0 : totalBoxes.shape()[0];
     if (numBoxes > 0) {
+      long start = System.nanoTime();
       INDArray pick =
           MtcnnUtil.nonMaxSuppression(totalBoxes, 0.7, MtcnnUtil.NonMaxSuppressionType.Union);
+      context.getListener().nonMaxSuppression(DetectionMetricsListener.NmsPass.CROSS_SCALE,
+          System.nanoTime() - start, (int) numBoxes, (int) pick.length());
       totalBoxes = totalBoxes.get(new SpecifiedIndex(pick.toLongVector()), all());
 
       // regw = total_boxes[:, 2] - total_boxes[:, 0]
@@ -352,6 +1252,317 @@ public class MtcnnService {
     return new Object[] {totalBoxes, padResult};
   }
 
+  /**
+   * @return The precomputed scale pyramid or, for the resolution independent service, the memoized pyramid
+   *     of the given image resolution.
+   */
+  List<Double> scalesFor(int height, int width) {
+    return (this.scales != null) ? this.scales : this.pyramidPlans.get(height, width);
+  }
+
+  /**
+   * The O-Net candidates layout of a whole image follows the configured image orientation or, for the
+   * resolution independent service, the orientation of the image itself. A region of interest always follows
+   * its own orientation.
+   *
+   * @param image input image with [H, W, 3] dimensions
+   */
+  private boolean isLandscape(INDArray image) {
+    return this.isLandscape((int) image.size(0), (int) image.size(1));
+  }
+
+  private boolean isLandscape(int height, int width) {
+    return (this.scales != null) ? this.imageWidth > this.imageHeight : width > height;
+  }
+
+  /**
+   * Replaces the STAGE 1 with known candidate boxes. The boxes are squared and padded like the STAGE 1
+   * proposals.
+   */
+  private Object[] seedStage(INDArray image3HW, INDArray candidateBoxes) {
+    if (candidateBoxes.isEmpty()) {
+      return new Object[] {Nd4j.empty(), null};
+    }
+    INDArray totalBoxes = MtcnnUtil.rerec(candidateBoxes.dup(), true);
+    MtcnnUtil.PadResult padResult =
+        MtcnnUtil.pad(totalBoxes, (int) image3HW.size(2), (int) image3HW.size(1));
+    return new Object[] {totalBoxes, padResult};
+  }
+
+  /**
+   * Runs the P-Net over every pyramid scale. When a stage one executor is configured the scales are fanned
+   * out to it, largest scale first, otherwise they are processed sequentially on the calling thread.
+   *
+   * @return The per scale boxes, in the order of the input scales. Empty arrays for scales without boxes.
+   */
+  private List<INDArray> proposeAllScales(
+      DetectionContext context, INDArray image3HW, List<Double> scales) throws IOException {
+    List<INDArray> scaleBoxes = new ArrayList<>(scales.size());
+
+    // the levels are built up front, the scale tasks only read them
+    ImagePyramid pyramid = this.incrementalPyramid
+        ? context.getImagePyramid().build(this.resizeImageLoader.get(), image3HW, scales)
+        : null;
+
+    ExecutorService executor = this.stageOneExecutor;
+    if (executor == null || scales.size() < 2) {
+      for (int i = 0; i < scales.size(); i++) {
+        opencv_core.Mat level = (pyramid != null) ? pyramid.level(i) : null;
+        scaleBoxes.add(this.proposeScale(context, image3HW, scales.get(i), level));
+      }
+      return scaleBoxes;
+    }
+
+    // The largest scales have the most work, schedule them first
+    List<Integer> submitOrder = new ArrayList<>();
+    for (int i = 0; i < scales.size(); i++) {
+      submitOrder.add(i);
+    }
+    submitOrder.sort(Comparator.comparing((Integer i) -> scales.get(i)).reversed());
+
+    List<Future<INDArray>> futures = new ArrayList<>(Collections.nCopies(scales.size(), null));
+    for (int i : submitOrder) {
+      double scale = scales.get(i);
+      opencv_core.Mat level = (pyramid != null) ? pyramid.level(i) : null;
+      futures.set(i, executor.submit(() -> this.proposeScale(context, image3HW, scale, level)));
+    }
+
+    try {
+      for (Future<INDArray> future : futures) {
+        scaleBoxes.add(future.get());
+      }
+    }
+    catch (InterruptedException e) {
+      futures.forEach(f -> f.cancel(true));
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for the stage one results", e);
+    }
+    catch (ExecutionException e) {
+      futures.forEach(f -> f.cancel(true));
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IllegalStateException("Stage one failed", e.getCause());
+    }
+    return scaleBoxes;
+  }
+
+  /**
+   * Single scale of STAGE 1: resize, normalize, run the P-Net and suppress the overlapping boxes.
+   *
+   * @param level the prebuilt pyramid level of the scale or null to resize the image
+   * @return The scale boxes left after the NMS or an empty array.
+   */
+  private INDArray proposeScale(DetectionContext context, INDArray image3HW, double scale, opencv_core.Mat level)
+      throws IOException {
+    long start = System.nanoTime();
+    DetectionMetricsListener listener = context.getListener();
+
+    int newWidth = (int) Math.ceil(image3HW.size(2) * scale);
+    int newHeight = (int) Math.ceil(image3HW.size(1) * scale);
+
+    BoxBuffer boxes = this.stageOneBoxes.get();
+    boxes.clear();
+
+    int tileSize = this.proposeTileSize;
+    if (tileSize > 0 && (newWidth > tileSize || newHeight > tileSize)) {
+      opencv_core.Mat levelMat = (level != null)
+          ? level
+          : this.resizeMat(image3HW, new opencv_core.Size(newWidth, newHeight));
+      try {
+        this.proposeTiles(context, levelMat, scale,
+            new ProposeTiling(newWidth, tileSize), new ProposeTiling(newHeight, tileSize), boxes);
+      }
+      finally {
+        // the prebuilt levels belong to the pyramid, the level resized here is released right away
+        if (level == null) {
+          levelMat.release();
+        }
+      }
+    }
+    else {
+      int[] buckets = this.proposeShapeBuckets;
+      int inputWidth = PNetPredictorCache.bucketFor(buckets, newWidth);
+      int inputHeight = PNetPredictorCache.bucketFor(buckets, newHeight);
+      boolean padded = inputWidth != newWidth || inputHeight != newHeight;
+
+      // single native pass for the [1, 3, H, W] -> [1, 3, W, H] permutation, normalized in place
+      INDArray resized = (level != null)
+          ? this.resizeImageLoader.get().asMatrix(level)
+          : resize(image3HW, new opencv_core.Size(newWidth, newHeight));
+      INDArray tempImg = resized.permute(0, 1, 3, 2).dup();
+      tempImg.subi(127.5).muli(0.0078125);
+      if (padded) {
+        INDArray paddedImg = Nd4j.zeros(1, CHANNEL_COUNT, inputWidth, inputHeight);
+        paddedImg.get(all(), all(), interval(0, newWidth), interval(0, newHeight)).assign(tempImg);
+        tempImg = paddedImg;
+      }
+
+      // leased for the run, a concurrent miss can evict the predictor, see PNetPredictorCache
+      MxNetLoader.PNetOutput pnetOutput;
+      try (PNetPredictorCache.Lease proposeNet = this.proposeNetGraphRunnerCache.lease(
+          this.inferenceBackend, this.proposeNetModelUri, this.instanceId, context.getSlot(), inputWidth,
+          inputHeight)) {
+        pnetOutput = proposeNet.getLoader().runProposeRaw(tempImg);
+      }
+      listener.predictorCalls(DetectionMetricsListener.Stage.PROPOSE, 1, 1);
+
+      // the P-Net input is [1, 3, W, H], the heatmap rows are along x
+      int rows = pnetOutput.getRows();
+      int cols = pnetOutput.getCols();
+      MtcnnUtil.generateBoundingBox(
+          pnetOutput.getProbability(),
+          pnetOutput.getRegression(),
+          rows,
+          cols,
+          0,
+          0,
+          padded ? Math.min(rows, MtcnnUtil.proposeNetCells(newWidth)) : rows,
+          padded ? Math.min(cols, MtcnnUtil.proposeNetCells(newHeight)) : cols,
+          scale,
+          this.stepsThreshold[0],
+          boxes);
+    }
+
+    int numBoxes = boxes.size();
+    if (numBoxes == 0) {
+      listener.scaleProcessed(scale, System.nanoTime() - start, 0);
+      return Nd4j.empty();
+    }
+
+    long nmsStart = System.nanoTime();
+    int[] pick = new int[numBoxes];
+    int pickCount =
+        MtcnnUtil.nonMaxSuppression(boxes, 0.5, MtcnnUtil.NonMaxSuppressionType.Union, pick);
+    listener.nonMaxSuppression(DetectionMetricsListener.NmsPass.SCALE,
+        System.nanoTime() - nmsStart, numBoxes, pickCount);
+
+    INDArray scaleBoxes = boxes.toINDArray(pick, pickCount);
+    listener.scaleProcessed(scale, System.nanoTime() - start, pickCount);
+    return scaleBoxes;
+  }
+
+  /**
+   * Tiled P-Net over a pyramid level. The tiles are dealt round robin to the lanes, lane 0 runs on the calling
+   * thread and the other lanes on the stage one executor. The lanes not yet picked up by a busy executor are
+   * run by the calling thread, so the nested use of the executor by the parallel scales can't deadlock.
+   *
+   * @param boxes receives the candidates of all the tiles, in tile order
+   */
+  private void proposeTiles(DetectionContext context, opencv_core.Mat level, double scale,
+      ProposeTiling xTiles, ProposeTiling yTiles, BoxBuffer boxes) throws IOException {
+    int tileCount = xTiles.count() * yTiles.count();
+    ExecutorService executor = this.stageOneExecutor;
+    int lanes = (executor == null) ? 1 : Math.min(this.proposeTileParallelism, tileCount);
+
+    List<FutureTask<BoxBuffer>> tasks = new ArrayList<>(lanes);
+    for (int lane = 0; lane < lanes; lane++) {
+      // the lane predictors use the slots past the pool slots
+      int slot = context.getSlot() + lane * this.detectionContextPool.getSize();
+      int firstTile = lane;
+      int laneCount = lanes;
+      tasks.add(new FutureTask<>(
+          () -> this.proposeTileLane(level, scale, xTiles, yTiles, slot, firstTile, laneCount)));
+    }
+
+    try {
+      for (int lane = 1; lane < lanes; lane++) {
+        executor.execute(tasks.get(lane));
+      }
+      for (FutureTask<BoxBuffer> task : tasks) {
+        task.run();
+      }
+      for (FutureTask<BoxBuffer> task : tasks) {
+        boxes.addAll(task.get());
+      }
+    }
+    catch (InterruptedException e) {
+      tasks.forEach(t -> t.cancel(true));
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for the stage one tiles", e);
+    }
+    catch (ExecutionException e) {
+      tasks.forEach(t -> t.cancel(true));
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IllegalStateException("Stage one tile failed", e.getCause());
+    }
+    context.getListener().predictorCalls(DetectionMetricsListener.Stage.PROPOSE, tileCount, tileCount);
+  }
+
+  /**
+   * Runs every lane count tile, from the first tile, through the lane P-Net predictor.
+   *
+   * @return The tile candidates, in image coordinates
+   */
+  private BoxBuffer proposeTileLane(opencv_core.Mat level, double scale, ProposeTiling xTiles,
+      ProposeTiling yTiles, int slot, int firstTile, int laneCount) throws IOException {
+    Java2DNativeImageLoader imageLoader = this.resizeImageLoader.get();
+
+    BoxBuffer boxes = new BoxBuffer(256);
+    for (int tile = firstTile; tile < xTiles.count() * yTiles.count(); tile += laneCount) {
+      int tx = tile / yTiles.count();
+      int ty = tile % yTiles.count();
+
+      INDArray input = tileInput(imageLoader, level, xTiles, tx, yTiles, ty);
+      // leased per tile, a concurrent miss can evict the predictor
+      MxNetLoader.PNetOutput output;
+      try (PNetPredictorCache.Lease proposeNet = this.proposeNetGraphRunnerCache.lease(
+          this.inferenceBackend, this.proposeNetModelUri, this.instanceId, slot, xTiles.tileLength(),
+          yTiles.tileLength())) {
+        output = proposeNet.getLoader().runProposeRaw(input);
+      }
+
+      // the P-Net input is [1, 3, W, H], the heatmap rows are along x
+      MtcnnUtil.generateBoundingBox(
+          output.getProbability(),
+          output.getRegression(),
+          output.getRows(),
+          output.getCols(),
+          xTiles.cellOffset(tx),
+          yTiles.cellOffset(ty),
+          xTiles.validCells(tx, output.getRows()),
+          yTiles.validCells(ty, output.getCols()),
+          scale,
+          this.stepsThreshold[0],
+          boxes);
+    }
+    return boxes;
+  }
+
+  /**
+   * @return The normalized [1, 3, W, H] P-Net input of a tile, zero padded past the level
+   */
+  private static INDArray tileInput(Java2DNativeImageLoader imageLoader, opencv_core.Mat level,
+      ProposeTiling xTiles, int tx, ProposeTiling yTiles, int ty) throws IOException {
+    int width = xTiles.pixels(tx);
+    int height = yTiles.pixels(ty);
+    opencv_core.Mat tile =
+        new opencv_core.Mat(level, new opencv_core.Rect(xTiles.offset(tx), yTiles.offset(ty), width, height));
+    // the loader needs a continuous Mat, the ROI view of the level is not
+    opencv_core.Mat continuous = tile.clone();
+    INDArray pixels;
+    try {
+      // [1, 3, H, W] -> [1, 3, W, H]
+      pixels = imageLoader.asMatrix(continuous).permute(0, 1, 3, 2);
+    }
+    finally {
+      continuous.release();
+      tile.release();
+    }
+
+    INDArray input;
+    if (width == xTiles.tileLength() && height == yTiles.tileLength()) {
+      input = pixels.dup();
+    }
+    else {
+      input = Nd4j.zeros(1, CHANNEL_COUNT, xTiles.tileLength(), yTiles.tileLength());
+      input.get(all(), all(), interval(0, width), interval(0, height)).assign(pixels);
+    }
+    return input.subi(127.5).muli(0.0078125);
+  }
+
   /**
    * STAGE 2
    *
@@ -362,16 +1573,40 @@ public class MtcnnService {
    * @throws IOException
    */
   private INDArray refinementStage(
-      INDArray image, INDArray totalBoxes, MtcnnUtil.PadResult padResult) throws IOException {
+      DetectionContext context, INDArray image, INDArray totalBoxes, MtcnnUtil.PadResult padResult)
+      throws IOException {
 
     int numBoxes = totalBoxes.isEmpty() ? 0 : (int) totalBoxes.shape()[0];
     if (numBoxes == 0) {
       return totalBoxes;
     }
 
-    INDArray tempImg1 = computeTempImage(image, numBoxes, padResult, 24);
-    INDArray refineTemp = tempImg1.permute(0, 3, 1, 2);
-    List<INDArray> resultList = refineNetGraphRunnerMxnet.runRefine(refineTemp);
+    INDArray refineTemp = this.refineNetInput(image, numBoxes, padResult);
+    List<INDArray> resultList =
+        this.runNetwork(context, context.getRefineNet(), DetectionMetricsListener.Stage.REFINE, refineTemp);
+    return this.refineNetResult(totalBoxes, resultList, context.getListener());
+  }
+
+  /**
+   * STAGE 2 network input.
+   *
+   * @param image input image with [H, W, 3] dimensions
+   * @return The candidate crops, [N, 3, 24, 24]
+   */
+  INDArray refineNetInput(INDArray image, int numBoxes, MtcnnUtil.PadResult padResult)
+      throws IOException {
+    return computeTempImage(image, numBoxes, padResult, 24, true);
+  }
+
+  /**
+   * STAGE 2 post-processing: score filtering, NMS, box regression and squaring.
+   *
+   * @param totalBoxes the STAGE 1 boxes
+   * @param resultList R-Net outputs for the boxes: regression [N, 4] and probabilities [N, 2]
+   * @param listener receives the NMS metrics
+   * @return The refined boxes
+   */
+  INDArray refineNetResult(INDArray totalBoxes, List<INDArray> resultList, DetectionMetricsListener listener) {
     INDArray out0 = resultList.get(0);
     INDArray out1 = resultList.get(1);
 
@@ -398,9 +1633,12 @@ public class MtcnnService {
     INDArray mv = out0.get(new SpecifiedIndex(ipass.toLongVector()), all()).transposei();
 
     if (!totalBoxes.isEmpty() && totalBoxes.shape()[0] > 0) {
+      long start = System.nanoTime();
       INDArray pick =
           MtcnnUtil.nonMaxSuppression(totalBoxes.dup(), 0.7, MtcnnUtil.NonMaxSuppressionType.Union)
               .transpose();
+      listener.nonMaxSuppression(DetectionMetricsListener.NmsPass.REFINE,
+          System.nanoTime() - start, (int) totalBoxes.size(0), (int) pick.length());
 
       totalBoxes = totalBoxes.get(new SpecifiedIndex(pick.toLongVector()), all());
 
@@ -422,25 +1660,56 @@ public class MtcnnService {
    * @return
    * @throws IOException
    */
-  private INDArray[] outputStage(INDArray image, INDArray totalBoxes) throws IOException {
+  private INDArray[] outputStage(DetectionContext context, INDArray image, INDArray totalBoxes, boolean landscape)
+      throws IOException {
 
     int numBoxes = totalBoxes.isEmpty() ? 0 : (int) totalBoxes.shape()[0];
     if (numBoxes == 0) {
       return new INDArray[] {totalBoxes, Nd4j.empty()};
     }
 
+    Object[] outputInput = this.outputNetInput(image, totalBoxes, landscape);
+    List<INDArray> resultList = this.runNetwork(
+        context, context.getOutputNet(), DetectionMetricsListener.Stage.OUTPUT, (INDArray) outputInput[1]);
+    return this.outputNetResult((INDArray) outputInput[0], resultList, context.getListener());
+  }
+
+  /**
+   * STAGE 3 network input.
+   *
+   * @param image input image with [H, W, 3] dimensions
+   * @param totalBoxes the (non empty) STAGE 2 boxes
+   * @return The floored boxes and their candidate crops, [N, 3, 48, 48]
+   */
+  Object[] outputNetInput(INDArray image, INDArray totalBoxes) throws IOException {
+    return this.outputNetInput(image, totalBoxes, this.isLandscape(image));
+  }
+
+  /**
+   * @param landscape lays the crops out as [N, 3, x, y] when true, otherwise as [N, 3, y, x]
+   */
+  private Object[] outputNetInput(INDArray image, INDArray totalBoxes, boolean landscape) {
+    int numBoxes = (int) totalBoxes.shape()[0];
+
     totalBoxes = Transforms.floor(totalBoxes);
 
     MtcnnUtil.PadResult padResult =
         MtcnnUtil.pad(totalBoxes, (int) image.shape()[1], (int) image.shape()[0]);
 
-    INDArray tempImg1 = computeTempImage(image, numBoxes, padResult, 48);
-    INDArray outputTemp = (this.imageWidth > this.imageHeight)
-      ? tempImg1.permute(0, 3, 1, 2)
-      : tempImg1.permute(0, 3, 2, 1);
-    // INDArray outputTemp =  tempImg1.permute(0, 3, 2, 1);
+    INDArray outputTemp = computeTempImage(image, numBoxes, padResult, 48, landscape);
+
+    return new Object[] {totalBoxes, outputTemp};
+  }
 
-    List<INDArray> resultList = outputNetGraphRunnerMxnet.runOutput(outputTemp);
+  /**
+   * STAGE 3 post-processing: score filtering, landmarks, box regression and NMS.
+   *
+   * @param totalBoxes the floored STAGE 2 boxes
+   * @param resultList O-Net outputs for the boxes: landmarks [N, 10], regression [N, 4] and probabilities [N, 2]
+   * @param listener receives the NMS metrics
+   * @return The final boxes and the related points.
+   */
+  INDArray[] outputNetResult(INDArray totalBoxes, List<INDArray> resultList, DetectionMetricsListener listener) {
     INDArray out0 = resultList.get(1);
     INDArray out1 = resultList.get(0);
     INDArray out2 = resultList.get(2);
@@ -488,9 +1757,12 @@ public class MtcnnService {
     if (totalBoxes.shape()[0] > 0) {
       totalBoxes = MtcnnUtil.bbreg(totalBoxes.dup(), mv.transpose());
 
+      long start = System.nanoTime();
       INDArray pick =
           MtcnnUtil.nonMaxSuppression(totalBoxes.dup(), 0.7, MtcnnUtil.NonMaxSuppressionType.Min)
               .transpose();
+      listener.nonMaxSuppression(DetectionMetricsListener.NmsPass.OUTPUT,
+          System.nanoTime() - start, (int) totalBoxes.size(0), (int) pick.length());
 
       totalBoxes = totalBoxes.get(new SpecifiedIndex(pick.toLongVector()), all());
 
@@ -500,55 +1772,45 @@ public class MtcnnService {
     return new INDArray[] {totalBoxes, points};
   }
 
-  private INDArray computeTempImage(
-      INDArray image, int numBoxes, MtcnnUtil.PadResult padResult, int size) throws IOException {
+  /**
+   * Crops, pads, resizes and normalizes every candidate box into a planar batch.
+   *
+   * @param image input image with [H, W, 3] dimensions
+   * @param size the network input size
+   * @param xMajor when true the patches are laid out as [N, 3, x, y], otherwise as [N, 3, y, x]
+   * @return The normalized candidates batch, [N, 3, size, size]. Empty for degenerate boxes.
+   * @see CropResizeKernel
+   */
+  INDArray computeTempImage(
+      INDArray image, int numBoxes, MtcnnUtil.PadResult padResult, int size, boolean xMajor) {
 
-    //  tempimg = np.zeros(shape=(size, size, 3, num_boxes))
-    INDArray tempImg = Nd4j.zeros(new int[] {size, size, CHANNEL_COUNT, numBoxes}, C_ORDERING);
+    // the image is read through the kernel, no per box crops are materialized
+    INDArray source = TensorBridge.contiguous(image);
+    CropResizeKernel kernel = new CropResizeKernel(source.data().asNioFloat(), (int) image.size(1));
 
-    opencv_core.Size newSize = new opencv_core.Size(size, size);
+    INDArray tempImg = Nd4j.createUninitialized(new int[] {numBoxes, CHANNEL_COUNT, size, size}, C_ORDERING);
+    FloatBuffer out = tempImg.data().asNioFloat();
+    int sampleLength = CHANNEL_COUNT * size * size;
 
     for (int k = 0; k < numBoxes; k++) {
-      INDArray tmp =
-          Nd4j.zeros(
-              new int[] {
-                padResult.getTmph().getInt(k), padResult.getTmpw().getInt(k), CHANNEL_COUNT
-              },
-              C_ORDERING);
-
-      tmp.put(
-          new INDArrayIndex[] {
-            interval(padResult.getDy().getInt(k) - 1, padResult.getEdy().getInt(k)),
-            interval(padResult.getDx().getInt(k) - 1, padResult.getEdx().getInt(k)),
-            all()
-          },
-          image.get(
-              interval(padResult.getY().getInt(k) - 1, padResult.getEy().getInt(k)),
-              interval(padResult.getX().getInt(k) - 1, padResult.getEx().getInt(k)),
-              all()));
-
-      if ((tmp.shape()[0] > 0 && tmp.shape()[1] > 0)
-          || (tmp.shape()[0] == 0 && tmp.shape()[1] == 0)) {
-
-        INDArray resizedImage =
-            resize(tmp.permutei(2, 0, 1).dup(), newSize)
-                .get(point(0), all(), all(), all())
-                .permutei(1, 2, 0)
-                .dup();
-
-        tempImg.put(new INDArrayIndex[] {all(), all(), all(), point(k)}, resizedImage);
-      } else {
+      int tmph = padResult.getTmph().getInt(k);
+      int tmpw = padResult.getTmpw().getInt(k);
+      if (tmph <= 0 || tmpw <= 0) {
         return Nd4j.empty();
       }
-    }
 
-    // tempimg = (tempimg - 127.5) * 0.0078125
-    tempImg = tempImg.subi(127.5).muli(0.0078125);
+      int dy = padResult.getDy().getInt(k);
+      int dx = padResult.getDx().getInt(k);
 
-    // tempimg1 = np.transpose(tempimg, (3, 1, 0, 2))
-    INDArray tempImg1 = tempImg.permutei(3, 1, 0, 2).dup();
+      // tmp[dy-1:edy, dx-1:edx, :] = img[y-1:ey, x-1:ex, :]
+      kernel.resize(tmph, tmpw,
+          dy - 1, padResult.getEdy().getInt(k),
+          dx - 1, padResult.getEdx().getInt(k),
+          padResult.getY().getInt(k) - dy, padResult.getX().getInt(k) - dx,
+          size, xMajor, out, k * sampleLength);
+    }
 
-    return tempImg1;
+    return tempImg;
   }
 
   /**
@@ -564,13 +1826,20 @@ public class MtcnnService {
     Assert.isTrue(
         imageCHW.size(0) == CHANNEL_COUNT,
         "Input image is expected to have the [3, W, H] dimensions");
+    opencv_core.Mat mat = this.resizeMat(imageCHW, newSizeWH);
+    try {
+      // [0, W, H, 3]
+      return this.resizeImageLoader.get().asMatrix(mat);
+    }
+    finally {
+      mat.release();
+    }
+  }
+
+  private opencv_core.Mat resizeMat(INDArray imageCHW, opencv_core.Size newSizeWH) {
     // Mat expects [C, H, W] dimensions
-    opencv_core.Mat mat = imageLoader.asMat(imageCHW);
+    opencv_core.Mat mat = this.resizeImageLoader.get().asMat(imageCHW);
     opencv_imgproc.resize(mat, mat, newSizeWH, 0, 0, opencv_imgproc.CV_INTER_AREA);
-
-    // Mat mat = imageLoader.asMat(imageCHW);
-    // Imgproc.resize(mat, mat, newSizeWH, 0, 0, Imgproc.CV_INTER_AREA);
-    // [0, W, H, 3]
-    return imageLoader.asMatrix(mat);
+    return mat;
   }
 }
\ No newline at end of file
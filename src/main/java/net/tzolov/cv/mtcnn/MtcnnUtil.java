@@ -54,7 +54,8 @@ public class MtcnnUtil {
 
 	public static final char C_ORDERING = 'c';
 	public static final int CHANNEL_COUNT = 3;
-	private static final boolean SORT_ASCENDING = true;
+
+	private static final ThreadLocal<NonMaxSuppression> NMS_ENGINE = ThreadLocal.withInitial(NonMaxSuppression::new);
 
 	public enum NonMaxSuppressionType {Min, Union}
 
@@ -258,6 +259,7 @@ public class MtcnnUtil {
 	 * @param threshold NMS threshold -  retain overlap <= thresh
 	 * @param nmsType NMS method to apply. Available values ('Min', 'Union')
 	 * @return Returns the NMS result
+	 * @see NonMaxSuppression
 	 */
 	public static INDArray nonMaxSuppression(INDArray boxes, double threshold, NonMaxSuppressionType nmsType) {
 
@@ -265,69 +267,48 @@ public class MtcnnUtil {
 			return Nd4j.empty();
 		}
 
-		// TODO Try to prevent following duplications!
-		INDArray x1 = boxes.get(all(), point(0)).dup();
-		INDArray y1 = boxes.get(all(), point(1)).dup();
-		INDArray x2 = boxes.get(all(), point(2)).dup();
-		INDArray y2 = boxes.get(all(), point(3)).dup();
-		INDArray s = boxes.get(all(), point(4)).dup();
-
-		//area = (x2 - x1 + 1) * (y2 - y1 + 1)
-		INDArray area = (x2.sub(x1).add(1)).mul(y2.sub(y1).add(1));
-
-		// sorted_s = np.argsort(s)
-		INDArray sortedS = Nd4j.sortWithIndices(s, 0, SORT_ASCENDING)[0];
-
-		INDArray pick = Nd4j.zerosLike(s);
-		int counter = 0;
-
-		while (sortedS.size(0) > 0) {
+		int n = boxes.rows();
+		int columns = boxes.columns();
+		float[] data = boxes.dup(C_ORDERING).data().asFloat();
 
-			if (sortedS.size(0) == 1) {
-				pick.put(counter++, sortedS.dup());
-				break;
-			}
-
-			long lastIndex = sortedS.size(0) - 1;
-			INDArray i = sortedS.get(point(lastIndex), all()); // last element
-			INDArray idx = sortedS.get(interval(0, lastIndex), all()).transpose(); // all until last excluding
-			pick.put(counter++, i.dup());
-
-			INDArray xx1 = Transforms.max(x1.get(idx), x1.get(i).getInt(0));
-			INDArray yy1 = Transforms.max(y1.get(idx), y1.get(i).getInt(0));
-			INDArray xx2 = Transforms.min(x2.get(idx), x2.get(i).getInt(0));
-			INDArray yy2 = Transforms.min(y2.get(idx), y2.get(i).getInt(0));
-
-			// w = np.maximum(0.0, xx2 - xx1 + 1)
-			// h = np.maximum(0.0, yy2 - yy1 + 1)
-			// inter = w * h
-			INDArray w = Transforms.max(xx2.sub(xx1).add(1), 0.0f);
-			INDArray h = Transforms.max(yy2.sub(yy1).add(1), 0.0f);
-			INDArray inter = w.mul(h);
-
-			// if method is 'Min':
-			//   o = inter / np.minimum(area[i], area[idx])
-			// else:
-			//   o = inter / (area[i] + area[idx] - inter)
-			int areaI = area.get(i).getInt(0);
-			INDArray o = (nmsType == NonMaxSuppressionType.Min) ?
-					inter.div(Transforms.min(area.get(idx), areaI)) :
-					inter.div(area.get(idx).add(areaI).sub(inter));
-
-			INDArray oIdx = MtcnnUtil.getIndexWhereVector(o, value -> value <= threshold);
-			//INDArray oIdx = getIndexWhereVector2(o, Conditions.lessThanOrEqual(threshold));
-
-			if (oIdx.isEmpty()) {
-				break;
-			}
-
-			sortedS = Nd4j.expandDims(sortedS.get(oIdx), 0).transpose();
+		float[] x1 = new float[n];
+		float[] y1 = new float[n];
+		float[] x2 = new float[n];
+		float[] y2 = new float[n];
+		float[] s = new float[n];
+		for (int i = 0; i < n; i++) {
+			int row = i * columns;
+			x1[i] = data[row];
+			y1[i] = data[row + 1];
+			x2[i] = data[row + 2];
+			y2[i] = data[row + 3];
+			s[i] = data[row + 4];
 		}
 
+		int[] pick = new int[n];
+		int counter = NMS_ENGINE.get().apply(x1, y1, x2, y2, s, n, threshold, nmsType, pick);
+
 		//pick = pick[0:counter]
-		return (counter == 0) ? Nd4j.empty() : pick.get(interval(0, counter));
+		float[] picked = new float[counter];
+		for (int i = 0; i < counter; i++) {
+			picked[i] = pick[i];
+		}
+		return (counter == 0) ? Nd4j.empty() : Nd4j.create(picked);
 	}
 
+	/**
+	 * Non Maximum Suppression of the boxes held in a {@link BoxBuffer}, without any INDArray conversion.
+	 *
+	 * @param boxes candidate boxes
+	 * @param threshold NMS threshold -  retain overlap <= thresh
+	 * @param nmsType NMS method to apply. Available values ('Min', 'Union')
+	 * @param picks output. Indexes of the retained boxes. Must fit boxes.size() values.
+	 * @return Returns the number of retained boxes written in picks
+	 */
+	public static int nonMaxSuppression(BoxBuffer boxes, double threshold, NonMaxSuppressionType nmsType, int[] picks) {
+		return NMS_ENGINE.get().apply(boxes.x1, boxes.y1, boxes.x2, boxes.y2, boxes.score, boxes.size(),
+				threshold, nmsType, picks);
+	}
 
 	/**
 	 * Use heatmap to generate bounding boxes.
@@ -380,6 +361,76 @@ public class MtcnnUtil {
 		return new INDArray[] { boundingBox, outReg };
 	}
 
+	/**
+	 * Use heatmap to generate bounding boxes, reading the P-Net outputs straight from their [1, C, rows, cols]
+	 * float buffers. Same boxes, in the same order, as {@link #generateBoundingBox(INDArray, INDArray, double, double)}
+	 * but the heatmap is thresholded in a single pass and the candidates are appended to a primitive box buffer
+	 * without intermediate arrays.
+	 *
+	 * @param prob P-Net probabilities with [1, 2, rows, cols] layout. Channel 1 is the face probability
+	 * @param reg P-Net box regression with [1, 4, rows, cols] layout
+	 * @param rows heatmap rows
+	 * @param cols heatmap columns
+	 * @param scale pyramid scale of the heatmap
+	 * @param stepThreshold minimal face probability
+	 * @param boxes output buffer the boxes are appended to
+	 * @return Returns the number of boxes appended
+	 */
+	public static int generateBoundingBox(float[] prob, float[] reg, int rows, int cols, double scale,
+			double stepThreshold, BoxBuffer boxes) {
+		return generateBoundingBox(prob, reg, rows, cols, 0, 0, rows, cols, scale, stepThreshold, boxes);
+	}
+
+	/**
+	 * Number of P-Net heatmap cells along an input axis: two 3x3 convolutions after the 3x3 convolution and the
+	 * 2x2 max pooling, which rounds up ({@code "pooling_convention": "full"}).
+	 *
+	 * @param length P-Net input width or height
+	 * @return Heatmap rows or columns of the input
+	 */
+	public static int proposeNetCells(int length) {
+		return (length - 9) / 2;
+	}
+
+	/**
+	 * Same as {@link #generateBoundingBox(float[], float[], int, int, double, double, BoxBuffer)} for the heatmap
+	 * of a tile of the pyramid level or of a padded level. The tile cells are shifted to the level heatmap and
+	 * only the first valid rows and columns are kept, the cells of the padding are masked.
+	 *
+	 * @param rowOffset level heatmap row of the first tile row
+	 * @param colOffset level heatmap column of the first tile column
+	 * @param validRows number of tile rows to keep
+	 * @param validCols number of tile columns to keep
+	 * @return Returns the number of boxes appended
+	 */
+	public static int generateBoundingBox(float[] prob, float[] reg, int rows, int cols, int rowOffset,
+			int colOffset, int validRows, int validCols, double scale, double stepThreshold, BoxBuffer boxes) {
+
+		int stride = 2;
+		int cellSize = 12;
+		int plane = rows * cols;
+		float fScale = (float) scale;
+
+		int start = boxes.size();
+		for (int r = 0; r < validRows; r++) {
+			for (int c = 0, p = r * cols; c < validCols; c++, p++) {
+				float score = prob[plane + p];
+				if (score >= stepThreshold) {
+					int x = (r + rowOffset) * stride;
+					int y = (c + colOffset) * stride;
+					boxes.add(
+							(float) Math.floor((x + 1) / fScale),
+							(float) Math.floor((y + 1) / fScale),
+							(float) Math.floor((x + cellSize) / fScale),
+							(float) Math.floor((y + cellSize) / fScale),
+							score,
+							reg[p], reg[plane + p], reg[2 * plane + p], reg[3 * plane + p]);
+				}
+			}
+		}
+		return boxes.size() - start;
+	}
+
 	//public static INDArray getIndexWhereVector2(INDArray input, Condition condition) {
 	//	try {
 	//		return Nd4j.where(input.match(1, condition), null, null)[0];
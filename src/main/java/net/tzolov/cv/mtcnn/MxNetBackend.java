@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.mxnet.infer.javaapi.Predictor;
+import org.apache.mxnet.javaapi.Context;
+import org.apache.mxnet.javaapi.DType;
+import org.apache.mxnet.javaapi.DataDesc;
+import org.apache.mxnet.javaapi.Layout;
+import org.apache.mxnet.javaapi.NDArray;
+import org.apache.mxnet.javaapi.Shape;
+
+/**
+ * The MXNet {@link Predictor} backend, on the CPU context. The default backend.
+ */
+public class MxNetBackend implements InferenceBackend {
+
+  private static final MxNetBackend CPU = new MxNetBackend();
+
+  private final List<Context> ctx = Collections.singletonList(Context.cpu());
+
+  /** @return The shared CPU backend */
+  public static MxNetBackend cpu() {
+    return CPU;
+  }
+
+  /**
+   * Binds a predictor to the epoch 0 model files of the model path. The model path is a {@link ModelLocation}
+   * resolved folder, shared by all the processes of the node for the packaged models, so the predictors of
+   * every process read the same page cached files.
+   */
+  @Override
+  public Network bind(String modelPath, int[] inputShape) {
+    Shape shape = new Shape(inputShape);
+    List<DataDesc> inputDesc = new ArrayList<>();
+    inputDesc.add(new DataDesc("data", shape, DType.Float32(), Layout.NCHW()));
+    int length = 1;
+    for (int dim : inputShape) {
+      length *= dim;
+    }
+    return new PredictorNetwork(
+        new Predictor(modelPath, inputDesc, this.ctx, 0), new NDArray(new float[length], shape, this.ctx.get(0)));
+  }
+
+  /**
+   * Refreshes a reused MXNet input array in place, the MXNet Java API only accepts heap {@code float[]} data.
+   */
+  private static class PredictorNetwork implements Network {
+
+    private final Predictor predictor;
+    private final NDArray input;
+    private volatile int[][] outputShapes;
+
+    PredictorNetwork(Predictor predictor, NDArray input) {
+      this.predictor = predictor;
+      this.input = input;
+    }
+
+    @Override
+    public float[][] run(float[] values) {
+      this.input.set(values);
+      List<NDArray> outs = this.predictor.predictWithNDArray(Collections.singletonList(this.input));
+
+      float[][] outputs = new float[outs.size()][];
+      int[][] shapes = new int[outs.size()][];
+      for (int o = 0; o < outs.size(); o++) {
+        outputs[o] = outs.get(o).toArray();
+        shapes[o] = outs.get(o).shape().toArray();
+        // copied out, don't leave the native output to the finalizer
+        outs.get(o).dispose();
+      }
+      this.outputShapes = shapes;
+      return outputs;
+    }
+
+    @Override
+    public int[] outputShape(int output) {
+      int[][] shapes = this.outputShapes;
+      if (shapes == null) {
+        throw new IllegalStateException("The output shapes are known once the network has run");
+      }
+      return shapes[output].clone();
+    }
+
+    /**
+     * Disposes the reused input array. The Java predictor API has no dispose, the native executor of the
+     * predictor is released once the predictor is unreachable.
+     */
+    @Override
+    public void close() {
+      this.input.dispose();
+    }
+  }
+}
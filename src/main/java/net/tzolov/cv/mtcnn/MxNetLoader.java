@@ -1,69 +1,116 @@
 package net.tzolov.cv.mtcnn;
 
-import static org.nd4j.linalg.indexing.NDArrayIndex.all;
-import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
-import static org.nd4j.linalg.indexing.NDArrayIndex.point;
-
-import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import javax.imageio.ImageIO;
-
-import org.apache.commons.lang3.ArrayUtils;
-import org.apache.mxnet.infer.javaapi.Predictor;
-import org.apache.mxnet.javaapi.Context;
-import org.apache.mxnet.javaapi.DType;
-import org.apache.mxnet.javaapi.DataDesc;
-import org.apache.mxnet.javaapi.Layout;
-import org.apache.mxnet.javaapi.NDArray;
-import org.apache.mxnet.javaapi.Shape;
-import org.datavec.image.loader.Java2DNativeImageLoader;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
-
-public class MxNetLoader {
-  private final Predictor proposeNetGraphRunner;
-  private final Java2DNativeImageLoader imageLoader;
-  private List<Context> ctx;
-  private Shape inputShape;
+import org.springframework.util.Assert;
+
+/**
+ * Runs a P-Net, R-Net or O-Net model bound to a fixed input shape, through an {@link InferenceBackend}. The
+ * calls are serialized. {@link #close()} releases the native memory of the bound networks. A shared loader,
+ * e.g. of the {@link PNetPredictorCache}, is leased with {@link #retain()} and {@link #release()}: its close
+ * is then deferred until the last lease is released.
+ */
+public class MxNetLoader implements AutoCloseable {
+  /** Batch sizes used by the batched R-Net/O-Net mode. The tail of every batch is zero padded. */
+  public static final int[] DEFAULT_BATCH_BUCKETS = new int[] {16, 32, 64, 128};
+
+  private final InferenceBackend.Network proposeNetGraphRunner;
+  private final InferenceBackend backend;
+  private final String modelPath;
+  private final Map<Integer, InferenceBackend.Network> batchedGraphRunners;
+  private final Map<Integer, TensorBridge> batchedInputs;
+  private final TensorBridge input;
+  private final int[] inputShape;
+  private volatile int[] batchBuckets;
+  private final AtomicLong predictorCalls = new AtomicLong();
+  private volatile boolean closed;
+  // guards the leases and the close request, never held while a network runs
+  private final Object leaseLock = new Object();
+  private int leases;
+  private boolean closeRequested;
 
   public MxNetLoader(int[] scales, String modelPath) {
-    this.imageLoader = new Java2DNativeImageLoader();
+    this(scales, modelPath, MxNetBackend.cpu());
+  }
+
+  /**
+   * @param scales the [1, 3, W, H] input shape
+   * @param modelPath model path prefix (e.g. .../det1)
+   * @param backend binds the model, e.g. {@link MxNetBackend#cpu()} or a {@link JavaBackend}
+   */
+  public MxNetLoader(int[] scales, String modelPath, InferenceBackend backend) {
+    this.backend = backend;
+    this.modelPath = modelPath;
+    this.batchedGraphRunners = new HashMap<>();
+    this.batchedInputs = new HashMap<>();
+    this.batchBuckets = new int[0];
+
+    this.inputShape = scales.clone();
+
+    proposeNetGraphRunner = this.backend.bind(this.modelPath, this.inputShape);
+    this.input = new TensorBridge(this.inputShape);
+  }
 
-    this.ctx = new ArrayList<>();
-    this.ctx.add(Context.cpu()); // Choosing CPU Context here
+  /**
+   * Enables the batched inference mode for {@link #runRefine(INDArray)} and {@link #runOutput(INDArray)}.
+   * The candidates are split into chunks of the smallest bucket that fits the remaining boxes (or the
+   * largest bucket), and one predictor per bucket size is bound lazily.
+   *
+   * @param batchBuckets positive batch sizes, at least one. See {@link #clearBatchBuckets()} for the
+   *     one-call-per-candidate mode.
+   */
+  public void setBatchBuckets(int... batchBuckets) {
+    this.batchBuckets = validBatchBuckets(batchBuckets);
+  }
 
-    this.inputShape = new Shape(scales);
+  /**
+   * Restores the default one-call-per-candidate mode.
+   */
+  public void clearBatchBuckets() {
+    this.batchBuckets = new int[0];
+  }
 
-    List<DataDesc> inputDesc = new ArrayList<>();
-    inputDesc.add(
-        new DataDesc(
-            "data",
-            inputShape,
-            DType.Float32(),
-            Layout.NCHW()));
-    proposeNetGraphRunner = new Predictor(modelPath, inputDesc, this.ctx, 0);
+  /**
+   * @return The sorted copy of the batch buckets
+   * @throws IllegalArgumentException Empty buckets or a non positive bucket, which would never consume the
+   *     candidates.
+   */
+  static int[] validBatchBuckets(int[] batchBuckets) {
+    Assert.isTrue(batchBuckets != null && batchBuckets.length > 0, "At least one batch bucket is required");
+    int[] buckets = batchBuckets.clone();
+    Arrays.sort(buckets);
+    Assert.isTrue(buckets[0] > 0, "The batch buckets must be positive but were " + Arrays.toString(buckets));
+    return buckets;
   }
 
-  public List<INDArray> runPropose(INDArray ndImage3HW) {
-    float[] ints = ndImage3HW.data().asFloat();
-    NDArray img = new NDArray(ints, this.inputShape, this.ctx.get(0));
+  public int[] getBatchBuckets() {
+    return batchBuckets.clone();
+  }
 
-    List<NDArray> imgs = new ArrayList<NDArray>();
-    imgs.add(img);
+  /** @return Number of native predictor calls made by this loader so far */
+  public long getPredictorCalls() {
+    return predictorCalls.get();
+  }
 
-    List<NDArray> outs = proposeNetGraphRunner.predictWithNDArray(imgs);
+  /**
+   * P-Net loaders are shared through the {@link PNetPredictorCache}, hence the calls are serialized.
+   */
+  public List<INDArray> runPropose(INDArray ndImage3HW) {
+    PNetOutput output = runProposeRaw(ndImage3HW);
+    int[] regShape = new int[] {1, 4, output.getRows(), output.getCols()};
+    int[] probShape = new int[] {1, 2, output.getRows(), output.getCols()};
 
-    NDArray out1 = outs.get(0);
-    INDArray out1_n = Nd4j.create(out1.toArray(), out1.shape().toArray());
+    INDArray out1_n = Nd4j.create(output.getRegression(), regShape);
     out1_n = out1_n.permute(0, 2, 3, 1);
 
-    NDArray out2 = outs.get(1);
-    INDArray out2_n = Nd4j.create(out2.toArray(), out2.shape().toArray());
+    INDArray out2_n = Nd4j.create(output.getProbability(), probShape);
     out2_n = out2_n.permute(0, 2, 3, 1);
 
     List<INDArray> outs2 = new ArrayList<>();
@@ -72,116 +119,258 @@ public class MxNetLoader {
     return outs2;
   }
 
-  public List<INDArray> runRefine(INDArray ndImage3HW) {
-    float[] out2_a = new float[]{};
-    float[] out2_b = new float[]{};
-    for (int bunch = 0; bunch < ndImage3HW.size(0); bunch++){
-      INDArray bunchData = ndImage3HW.get(point(bunch), all(), all(), all()).reshape(this.inputShape.shape().toArray()).dup();
-      float[] ints = bunchData.data().asFloat();
+  /**
+   * Runs the P-Net and returns its outputs in the raw network [1, C, rows, cols] layout, without creating
+   * intermediate {@link INDArray}s.
+   */
+  public synchronized PNetOutput runProposeRaw(INDArray ndImage3HW) {
+    this.checkOpen();
+    return this.propose(this.input.load(TensorBridge.contiguous(ndImage3HW)));
+  }
 
-      NDArray img = new NDArray(ints, this.inputShape, this.ctx.get(0));
+  /**
+   * Same as {@link #runProposeRaw(INDArray)} for an input already laid out as a planar [1, 3, W, H] array.
+   */
+  public synchronized PNetOutput runProposeRaw(float[] input) {
+    this.checkOpen();
+    return this.propose(this.input.load(input, 0, this.input.length()));
+  }
 
-      List<NDArray> imgs = new ArrayList<NDArray>();
-      imgs.add(img);
-      List<NDArray> outs = proposeNetGraphRunner.predictWithNDArray(imgs);
+  private PNetOutput propose(float[] input) {
+    float[][] outs = proposeNetGraphRunner.run(input);
+    this.predictorCalls.incrementAndGet();
 
-      NDArray out1 = outs.get(0);
-      out2_a = ArrayUtils.addAll(out2_a, out1.toArray());
+    int[] shape = proposeNetGraphRunner.outputShape(0);
+    return new PNetOutput(outs[0], outs[1], shape[2], shape[3]);
+  }
 
-      NDArray out2 = outs.get(1);
-      out2_b = ArrayUtils.addAll(out2_b, out2.toArray());
+  /**
+   * Runs the R-Net or O-Net over a primitive candidates batch and copies the outputs into the caller's
+   * arrays, without creating any {@link INDArray}. Uses the batch buckets when they are set.
+   *
+   * @param batch planar [N, 3, size, size] candidates, the first numBoxes samples are used
+   * @param numBoxes number of candidates
+   * @param outputs one array per network output, each fitting numBoxes rows of the output width
+   */
+  public synchronized void runRaw(float[] batch, int numBoxes, float[]... outputs) {
+    this.checkOpen();
+    int sampleLength = this.input.length();
+    int start = 0;
+    while (start < numBoxes) {
+      boolean batched = this.batchBuckets.length > 0;
+      int batchSize = batched ? this.bucketFor(numBoxes - start) : 1;
+      int count = Math.min(batchSize, numBoxes - start);
+      TensorBridge bridge = batched ? this.batchedInput(batchSize) : this.input;
+      InferenceBackend.Network network =
+          batched ? this.batchedGraphRunner(batchSize) : this.proposeNetGraphRunner;
+
+      float[][] outs = network.run(bridge.load(batch, start * sampleLength, count * sampleLength));
+      this.predictorCalls.incrementAndGet();
+
+      for (int o = 0; o < outputs.length; o++) {
+        float[] values = outs[o];
+        int width = values.length / batchSize;
+        System.arraycopy(values, 0, outputs[o], start * width, count * width);
+      }
+      start += count;
     }
-    INDArray out1s_ind = Nd4j.create(out2_a, new int[]{(int)ndImage3HW.size(0), 4});
-    INDArray out2s_ind = Nd4j.create(out2_b, new int[]{(int)ndImage3HW.size(0), 2});
+  }
 
-    List<INDArray> outs2 = new ArrayList<>();
-    outs2.add(out1s_ind);
-    outs2.add(out2s_ind);
+  public synchronized List<INDArray> runRefine(INDArray ndImage3HW) {
+    this.checkOpen();
+    if (this.batchBuckets.length > 0) {
+      return runBatched(ndImage3HW, 4, 2);
+    }
 
-    return outs2;
+    PredictionCollector collector = new PredictionCollector((int) ndImage3HW.size(0), 4, 2);
+    this.runEach(ndImage3HW, collector);
+    return collector.results();
   }
   
-  public List<INDArray> runOutput(INDArray ndImage3HW) {
-    float[] out2_a = new float[]{};
-    float[] out2_b = new float[]{};
-    float[] out2_c = new float[]{};
+  public synchronized List<INDArray> runOutput(INDArray ndImage3HW) {
+    this.checkOpen();
+    if (this.batchBuckets.length > 0) {
+      return runBatched(ndImage3HW, 10, 4, 2);
+    }
+
+    PredictionCollector collector = new PredictionCollector((int) ndImage3HW.size(0), 10, 4, 2);
+    this.runEach(ndImage3HW, collector);
+    return collector.results();
+  }
+
+  /**
+   * Runs all candidates through the bucketed predictors, a chunk at a time.
+   *
+   * @param ndImage3HW candidates batch with [N, C, W, H] dimensions
+   * @param outputWidths number of values per candidate for each of the network outputs
+   * @return one [N, width] matrix per network output
+   */
+  private List<INDArray> runBatched(INDArray ndImage3HW, int... outputWidths) {
+    int numBoxes = (int) ndImage3HW.size(0);
+    INDArray source = TensorBridge.contiguous(ndImage3HW);
+    int sampleLength = this.input.length();
+
+    PredictionCollector collector = new PredictionCollector(numBoxes, outputWidths);
+
+    int start = 0;
+    while (start < numBoxes) {
+      int batchSize = this.bucketFor(numBoxes - start);
+      int count = Math.min(batchSize, numBoxes - start);
+
+      float[] batch =
+          this.batchedInput(batchSize).load(source, (long) start * sampleLength, count * sampleLength);
+      collector.collect(this.batchedGraphRunner(batchSize).run(batch), count);
+      this.predictorCalls.incrementAndGet();
+
+      start += count;
+    }
+
+    return collector.results();
+  }
+
+  /**
+   * Runs the candidates one predictor call at a time.
+   */
+  private void runEach(INDArray ndImage3HW, PredictionCollector collector) {
+    INDArray source = TensorBridge.contiguous(ndImage3HW);
+    int sampleLength = this.input.length();
     for (int bunch = 0; bunch < ndImage3HW.size(0); bunch++){
-      INDArray bunchData = ndImage3HW.get(point(bunch), all(), all(), all()).reshape(this.inputShape.shape().toArray()).dup();
-      float[] ints = bunchData.data().asFloat();
+      float[] sample = this.input.load(source, (long) bunch * sampleLength, sampleLength);
+      collector.collect(proposeNetGraphRunner.run(sample), 1);
+      this.predictorCalls.incrementAndGet();
+    }
+  }
+
+  /**
+   * Leases the loader, deferring its {@link #close()} until the matching {@link #release()}.
+   *
+   * @return False if the loader is closed or closing, it must not run then
+   */
+  public boolean retain() {
+    synchronized (this.leaseLock) {
+      if (this.closeRequested) {
+        return false;
+      }
+      this.leases++;
+      return true;
+    }
+  }
 
-      NDArray img = new NDArray(ints, this.inputShape, this.ctx.get(0));
+  /**
+   * Releases a {@link #retain()} lease, disposing the loader if it was closed meanwhile.
+   */
+  public void release() {
+    boolean dispose;
+    synchronized (this.leaseLock) {
+      Assert.state(this.leases > 0, "The predictor of " + this.modelPath + " is not leased");
+      this.leases--;
+      dispose = this.closeRequested && this.leases == 0;
+    }
+    if (dispose) {
+      this.dispose();
+    }
+  }
 
-      List<NDArray> imgs = new ArrayList<NDArray>();
-      imgs.add(img);
-      List<NDArray> outs = proposeNetGraphRunner.predictWithNDArray(imgs);
+  /**
+   * Disposes the bound networks, once the running call, if any, and the leases complete. The loader can't
+   * run afterwards.
+   */
+  @Override
+  public void close() {
+    boolean dispose;
+    synchronized (this.leaseLock) {
+      if (this.closeRequested) {
+        return;
+      }
+      this.closeRequested = true;
+      dispose = this.leases == 0;
+    }
+    if (dispose) {
+      this.dispose();
+    }
+  }
 
-      NDArray out1 = outs.get(0);
-      out2_a = ArrayUtils.addAll(out2_a, out1.toArray());
+  private synchronized void dispose() {
+    if (this.closed) {
+      return;
+    }
+    this.closed = true;
+    this.proposeNetGraphRunner.close();
+    this.batchedGraphRunners.values().forEach(InferenceBackend.Network::close);
+    this.batchedGraphRunners.clear();
+  }
 
-      NDArray out2 = outs.get(1);
-      out2_b = ArrayUtils.addAll(out2_b, out2.toArray());
+  public boolean isClosed() {
+    return closed;
+  }
 
-      NDArray out3 = outs.get(2);
-      out2_c = ArrayUtils.addAll(out2_c, out3.toArray());
+  private void checkOpen() {
+    if (this.closed) {
+      throw new IllegalStateException("The predictor of " + this.modelPath + " was disposed");
     }
-    INDArray out1s_ind = Nd4j.create(out2_a, new int[]{(int)ndImage3HW.size(0), 10});
-    INDArray out2s_ind = Nd4j.create(out2_b, new int[]{(int)ndImage3HW.size(0), 4});
-    INDArray out3s_ind = Nd4j.create(out2_c, new int[]{(int)ndImage3HW.size(0), 2});
+  }
 
-    List<INDArray> outs2 = new ArrayList<>();
-    outs2.add(out1s_ind);
-    outs2.add(out2s_ind);
-    outs2.add(out3s_ind);
+  private int bucketFor(int remaining) {
+    for (int bucket : this.batchBuckets) {
+      if (bucket >= remaining) {
+        return bucket;
+      }
+    }
+    return this.batchBuckets[this.batchBuckets.length - 1];
+  }
 
-    return outs2;
+  private TensorBridge batchedInput(int batchSize) {
+    TensorBridge bridge = this.batchedInputs.get(batchSize);
+    if (bridge == null) {
+      bridge = new TensorBridge(this.batchShape(batchSize));
+      this.batchedInputs.put(batchSize, bridge);
+    }
+    return bridge;
   }
 
-  public void Run() throws IOException {
-    String imgPath =
-        "/home/dzly/projects/countr_face_recognition/faceclient/src/test/resources/multi-face.jpg";
-
-    try (InputStream imageInputStream = new FileInputStream(imgPath)) {
-      BufferedImage inputImage = ImageIO.read(imageInputStream);
-      Java2DNativeImageLoader imageLoader = new Java2DNativeImageLoader();
-      INDArray ndImage3HW =
-          imageLoader.asMatrix(inputImage).get(point(0), interval(0, 3), all(), all());
-      float[] ints = ndImage3HW.data().asFloat();
-      Shape inputShape2 =
-          new Shape(new int[] {1, 4, inputImage.getWidth(), inputImage.getHeight()});
-      NDArray img = new NDArray(ints, inputShape2, this.ctx.get(0));
-      img = img.reshape(new int[] {1, 3, 25, 25});
-
-      List<NDArray> imgs = new ArrayList<NDArray>();
-      imgs.add(img);
-
-      List<NDArray> outs = proposeNetGraphRunner.predictWithNDArray(imgs);
-    }
-  }
-
-  private BufferedImage imageFromINDArray(INDArray array) {
-    long[] shape = array.shape();
- 
-    long height = shape[2];
-    long width = shape[3];
-    BufferedImage image = new BufferedImage((int)width, (int)height, BufferedImage.TYPE_INT_RGB);
-    for (int x = 0; x < width; x++) {
-        for (int y = 0; y < height; y++) {
-            int red = array.getInt(0, 2, y, x);
-            int green = array.getInt(0, 1, y, x);
-            int blue = array.getInt(0, 0, y, x);
- 
-            //handle out of bounds pixel values
-            red = Math.min(red, 255);
-            green = Math.min(green, 255);
-            blue = Math.min(blue, 255);
- 
-            red = Math.max(red, 0);
-            green = Math.max(green, 0);
-            blue = Math.max(blue, 0);
-            // image.setRGB(x, y, new Color(red, green, blue).getRGB());
-        }
-    }
-    return image;
-  
+  private InferenceBackend.Network batchedGraphRunner(int batchSize) {
+    InferenceBackend.Network network = this.batchedGraphRunners.get(batchSize);
+    if (network == null) {
+      network = this.backend.bind(this.modelPath, this.batchShape(batchSize));
+      this.batchedGraphRunners.put(batchSize, network);
+    }
+    return network;
+  }
+
+  private int[] batchShape(int batchSize) {
+    return new int[] {batchSize, this.inputShape[1], this.inputShape[2], this.inputShape[3]};
+  }
+
+  /** P-Net outputs in the network [1, C, rows, cols] layout. */
+  public static class PNetOutput {
+    private final float[] regression;
+    private final float[] probability;
+    private final int rows;
+    private final int cols;
+
+    public PNetOutput(float[] regression, float[] probability, int rows, int cols) {
+      this.regression = regression;
+      this.probability = probability;
+      this.rows = rows;
+      this.cols = cols;
+    }
+
+    /** @return Box regression, [1, 4, rows, cols] */
+    public float[] getRegression() {
+      return regression;
+    }
+
+    /** @return Face/non face probabilities, [1, 2, rows, cols] */
+    public float[] getProbability() {
+      return probability;
+    }
+
+    public int getRows() {
+      return rows;
+    }
+
+    public int getCols() {
+      return cols;
+    }
   }
-}
\ No newline at end of file
+}
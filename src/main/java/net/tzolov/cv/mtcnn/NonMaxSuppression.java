@@ -0,0 +1,259 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import java.util.Arrays;
+
+import org.springframework.util.Assert;
+
+/**
+ * Allocation free Non Maximum Suppression over primitive box coordinates. Produces the same picks as the greedy
+ * MTCNN implementation (https://github.com/davidsandberg/facenet/blob/master/src/align/detect_face.py#L687):
+ * the candidates are sorted once by score and every pick marks the boxes it suppresses, instead of
+ * re-building the candidate list on every iteration.
+ *
+ * For large candidate counts the boxes are bucketed into a uniform grid and a pick is only compared with the boxes
+ * sharing a grid cell with it. Boxes that far apart can not overlap, so the picks are unchanged.
+ *
+ * Instances keep (and grow) their scratch buffers between calls and are not thread safe.
+ *
+ * @author Christian Tzolov
+ */
+public class NonMaxSuppression {
+
+	/** Minimal number of candidates for which the spatial grid is used. */
+	public static final int DEFAULT_GRID_THRESHOLD = 256;
+
+	private static final int MAX_GRID_CELLS_PER_AXIS = 128;
+
+	private final int gridThreshold;
+
+	// scratch space
+	private long[] sortKeys = new long[0];
+	private int[] order = new int[0];
+	private float[] area = new float[0];
+	private int[] removedBy = new int[0];
+	private int[] cellStart = new int[0];
+	private int[] cellItems = new int[0];
+	private int[] cellFill = new int[0];
+
+	public NonMaxSuppression() {
+		this(DEFAULT_GRID_THRESHOLD);
+	}
+
+	/**
+	 * @param gridThreshold minimal number of candidates to switch to the spatial grid mode. Use
+	 * {@link Integer#MAX_VALUE} to always compare all box pairs.
+	 */
+	public NonMaxSuppression(int gridThreshold) {
+		this.gridThreshold = gridThreshold;
+	}
+
+	/**
+	 * @param x1 top left X of the boxes
+	 * @param y1 top left Y of the boxes
+	 * @param x2 bottom right X of the boxes
+	 * @param y2 bottom right Y of the boxes
+	 * @param score box confidences
+	 * @param n number of boxes
+	 * @param threshold NMS threshold -  retain overlap <= thresh
+	 * @param nmsType NMS method to apply. Available values ('Min', 'Union')
+	 * @param picks output. Indexes of the retained boxes in descending score order. Must fit n values.
+	 * @return Returns the number of retained boxes written in picks
+	 */
+	public int apply(float[] x1, float[] y1, float[] x2, float[] y2, float[] score, int n,
+			double threshold, MtcnnUtil.NonMaxSuppressionType nmsType, int[] picks) {
+
+		Assert.isTrue(picks.length >= n, "The picks buffer is expected to fit " + n + " indexes");
+
+		if (n == 0) {
+			return 0;
+		}
+
+		this.ensureCapacity(n);
+
+		// area = (x2 - x1 + 1) * (y2 - y1 + 1)
+		boolean positiveAreas = true;
+		for (int j = 0; j < n; j++) {
+			this.area[j] = (x2[j] - x1[j] + 1) * (y2[j] - y1[j] + 1);
+			positiveAreas &= this.area[j] > 0;
+			this.removedBy[j] = -1;
+		}
+
+		this.sortAscending(score, n);
+
+		// Without overlap the ratio is 0 and the box is retained, unless a degenerate box turns it into a NaN
+		boolean useGrid = n >= this.gridThreshold && positiveAreas && threshold >= 0;
+		int gridX = 0, gridY = 0;
+		float minX = 0, minY = 0, cellSize = 1;
+		if (useGrid) {
+			float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, sumSide = 0;
+			minX = Float.MAX_VALUE;
+			minY = Float.MAX_VALUE;
+			for (int j = 0; j < n; j++) {
+				minX = Math.min(minX, x1[j]);
+				minY = Math.min(minY, y1[j]);
+				maxX = Math.max(maxX, x2[j]);
+				maxY = Math.max(maxY, y2[j]);
+				sumSide += (x2[j] - x1[j]) + (y2[j] - y1[j]);
+			}
+			cellSize = Math.max(1, sumSide / (2 * n));
+			cellSize = Math.max(cellSize, Math.max(maxX - minX, maxY - minY) / MAX_GRID_CELLS_PER_AXIS);
+			gridX = cellIndex(maxX, minX, cellSize, Integer.MAX_VALUE) + 1;
+			gridY = cellIndex(maxY, minY, cellSize, Integer.MAX_VALUE) + 1;
+			this.buildGrid(x1, y1, x2, y2, n, minX, minY, cellSize, gridX, gridY);
+		}
+
+		int counter = 0;
+		for (int k = n - 1; k >= 0; k--) {
+			int i = this.order[k];
+			if (this.removedBy[i] >= 0) {
+				continue;
+			}
+			picks[counter++] = i;
+			this.removedBy[i] = i;
+
+			// the reference implementation compares with the integer part of the picked box
+			int ix1 = (int) x1[i];
+			int iy1 = (int) y1[i];
+			int ix2 = (int) x2[i];
+			int iy2 = (int) y2[i];
+			int areaI = (int) this.area[i];
+
+			if (!useGrid) {
+				for (int r = 0; r < k; r++) {
+					int j = this.order[r];
+					if (this.removedBy[j] < 0) {
+						this.suppress(i, j, ix1, iy1, ix2, iy2, areaI, x1, y1, x2, y2, threshold, nmsType);
+					}
+				}
+			}
+			else {
+				// boxes sharing a pixel with the (x1-1, y1-1, x2+1, y2+1) area are the only ones with inter > 0
+				int cx1 = cellIndex(ix1 - 1, minX, cellSize, gridX - 1);
+				int cy1 = cellIndex(iy1 - 1, minY, cellSize, gridY - 1);
+				int cx2 = cellIndex(ix2 + 1, minX, cellSize, gridX - 1);
+				int cy2 = cellIndex(iy2 + 1, minY, cellSize, gridY - 1);
+				for (int cy = cy1; cy <= cy2; cy++) {
+					for (int cx = cx1; cx <= cx2; cx++) {
+						int cell = cy * gridX + cx;
+						for (int c = this.cellStart[cell]; c < this.cellStart[cell + 1]; c++) {
+							int j = this.cellItems[c];
+							if (this.removedBy[j] < 0) {
+								this.suppress(i, j, ix1, iy1, ix2, iy2, areaI, x1, y1, x2, y2, threshold, nmsType);
+							}
+						}
+					}
+				}
+			}
+		}
+
+		return counter;
+	}
+
+	private void suppress(int i, int j, int ix1, int iy1, int ix2, int iy2, int areaI,
+			float[] x1, float[] y1, float[] x2, float[] y2, double threshold, MtcnnUtil.NonMaxSuppressionType nmsType) {
+
+		float xx1 = Math.max(x1[j], ix1);
+		float yy1 = Math.max(y1[j], iy1);
+		float xx2 = Math.min(x2[j], ix2);
+		float yy2 = Math.min(y2[j], iy2);
+
+		// w = np.maximum(0.0, xx2 - xx1 + 1)
+		// h = np.maximum(0.0, yy2 - yy1 + 1)
+		float w = Math.max(xx2 - xx1 + 1, 0.0f);
+		float h = Math.max(yy2 - yy1 + 1, 0.0f);
+		float inter = w * h;
+
+		float o = (nmsType == MtcnnUtil.NonMaxSuppressionType.Min) ?
+				inter / Math.min(this.area[j], areaI) :
+				inter / (this.area[j] + areaI - inter);
+
+		// retain overlap <= thresh. NaN ratios are suppressed, as in the reference implementation
+		if (!(o <= threshold)) {
+			this.removedBy[j] = i;
+		}
+	}
+
+	/**
+	 * Stable ascending arg-sort of the scores: sortable score bits in the high word, the index in the low word.
+	 */
+	private void sortAscending(float[] score, int n) {
+		for (int j = 0; j < n; j++) {
+			int bits = Float.floatToIntBits(score[j]);
+			bits ^= (bits >> 31) & 0x7FFFFFFF;
+			this.sortKeys[j] = ((long) bits << 32) | j;
+		}
+		Arrays.sort(this.sortKeys, 0, n);
+		for (int j = 0; j < n; j++) {
+			this.order[j] = (int) this.sortKeys[j];
+		}
+	}
+
+	private void buildGrid(float[] x1, float[] y1, float[] x2, float[] y2, int n,
+			float minX, float minY, float cellSize, int gridX, int gridY) {
+
+		int cells = gridX * gridY;
+		if (this.cellStart.length < cells + 1) {
+			this.cellStart = new int[cells + 1];
+			this.cellFill = new int[cells];
+		}
+		Arrays.fill(this.cellStart, 0, cells + 1, 0);
+
+		int total = 0;
+		for (int j = 0; j < n; j++) {
+			int cx1 = cellIndex(x1[j], minX, cellSize, gridX - 1), cx2 = cellIndex(x2[j], minX, cellSize, gridX - 1);
+			int cy1 = cellIndex(y1[j], minY, cellSize, gridY - 1), cy2 = cellIndex(y2[j], minY, cellSize, gridY - 1);
+			for (int cy = cy1; cy <= cy2; cy++) {
+				for (int cx = cx1; cx <= cx2; cx++) {
+					this.cellStart[cy * gridX + cx + 1]++;
+					total++;
+				}
+			}
+		}
+		for (int c = 0; c < cells; c++) {
+			this.cellStart[c + 1] += this.cellStart[c];
+			this.cellFill[c] = this.cellStart[c];
+		}
+		if (this.cellItems.length < total) {
+			this.cellItems = new int[total];
+		}
+		for (int j = 0; j < n; j++) {
+			int cx1 = cellIndex(x1[j], minX, cellSize, gridX - 1), cx2 = cellIndex(x2[j], minX, cellSize, gridX - 1);
+			int cy1 = cellIndex(y1[j], minY, cellSize, gridY - 1), cy2 = cellIndex(y2[j], minY, cellSize, gridY - 1);
+			for (int cy = cy1; cy <= cy2; cy++) {
+				for (int cx = cx1; cx <= cx2; cx++) {
+					this.cellItems[this.cellFill[cy * gridX + cx]++] = j;
+				}
+			}
+		}
+	}
+
+	private static int cellIndex(float value, float min, float cellSize, int maxIndex) {
+		int index = (int) Math.floor((value - min) / cellSize);
+		return Math.max(0, Math.min(index, maxIndex));
+	}
+
+	private void ensureCapacity(int n) {
+		if (this.order.length < n) {
+			int capacity = Math.max(n, this.order.length * 2);
+			this.sortKeys = new long[capacity];
+			this.order = new int[capacity];
+			this.area = new float[capacity];
+			this.removedBy = new int[capacity];
+		}
+	}
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.util.Assert;
+
+/**
+ * Process-wide cache of P-Net predictors keyed by the model, the owner and slot of the predictor set and the
+ * (rounded up) input shape.
+ *
+ * <p>The P-Net is fully convolutional, but an MXNet {@code Predictor} is bound to a single input shape.
+ * Instead of eagerly binding one predictor per pyramid scale for every {@link MtcnnService}, the predictors
+ * are built lazily on first use and shared across all service instances. The least recently used entries
+ * are evicted once {@link #getMaxEntries()} is exceeded and their native memory is released, see
+ * {@link MxNetLoader#close()}. The predictors are leased, see {@link #lease(InferenceBackend, String, int, int,
+ * int)}: an evicted predictor is closed once its last lease is released. With shape buckets the scaled images are padded to a
+ * few canonical shapes, see {@link #bucketFor(int[], int)}, and a handful of predictors serve all of them.
+ */
+public class PNetPredictorCache {
+
+  public static final int DEFAULT_MAX_ENTRIES = 64;
+
+  /** Canonical P-Net input widths and heights, see {@link MtcnnService#setProposeShapeBuckets(int...)}. */
+  public static final int[] DEFAULT_SHAPE_BUCKETS =
+      new int[] {16, 24, 32, 48, 64, 96, 128, 192, 256, 384, 512, 768, 1024, 1536, 2048};
+
+  private static final PNetPredictorCache SHARED = new PNetPredictorCache(DEFAULT_MAX_ENTRIES);
+
+  private final LinkedHashMap<Key, FutureTask<MxNetLoader>> entries;
+  // evicted entries, closed once the entries lock is released
+  private final List<FutureTask<MxNetLoader>> evicted = new ArrayList<>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private volatile int maxEntries;
+  // predictors reserved by the warm-ups, guarded by the entries lock
+  private int reserved;
+
+  public PNetPredictorCache(int maxEntries) {
+    Assert.isTrue(maxEntries > 0, "The cache must hold at least one predictor");
+    this.maxEntries = maxEntries;
+    this.entries =
+        new LinkedHashMap<Key, FutureTask<MxNetLoader>>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Key, FutureTask<MxNetLoader>> eldest) {
+            if (size() > PNetPredictorCache.this.maxEntries) {
+              evictions.incrementAndGet();
+              evicted.add(eldest.getValue());
+              return true;
+            }
+            return false;
+          }
+        };
+  }
+
+  /** @return The cache shared by all {@link MtcnnService} instances in this process. */
+  public static PNetPredictorCache shared() {
+    return SHARED;
+  }
+
+  /**
+   * Returns the predictor for the given model and input size, binding a new one on a cache miss. Concurrent
+   * requests for the same shape wait for a single predictor to be built.
+   *
+   * @param modelPath MXNet model path prefix (e.g. .../det1)
+   * @param width scaled image width
+   * @param height scaled image height
+   * @return Predictor bound to the [1, 3, width, height] input shape
+   */
+  public MxNetLoader get(String modelPath, int width, int height) {
+    return this.get(modelPath, 0, width, height);
+  }
+
+  /**
+   * Same as {@link #get(String, int, int)} but for one of several independent predictor sets. Concurrent
+   * detections use different slots so that they don't serialize on a shared predictor.
+   *
+   * @param modelPath MXNet model path prefix (e.g. .../det1)
+   * @param slot predictor set index
+   * @param width scaled image width
+   * @param height scaled image height
+   * @return Predictor bound to the [1, 3, width, height] input shape
+   */
+  public MxNetLoader get(String modelPath, int slot, int width, int height) {
+    return this.get(MxNetBackend.cpu(), modelPath, slot, width, height);
+  }
+
+  /**
+   * Same as {@link #get(String, int, int, int)} for the predictors of the given inference backend.
+   *
+   * @param backend binds the predictor, e.g. a {@link JavaBackend}
+   */
+  public MxNetLoader get(InferenceBackend backend, String modelPath, int slot, int width, int height) {
+    return this.get(backend, modelPath, 0, slot, width, height);
+  }
+
+  /**
+   * Same as {@link #get(InferenceBackend, String, int, int, int)} for the predictor sets of one owner. The
+   * owners, e.g. the {@link MtcnnService} instances, number their slots independently and never share a
+   * predictor.
+   *
+   * @param owner predictor sets owner, 0 for the unowned predictor sets
+   */
+  public MxNetLoader get(InferenceBackend backend, String modelPath, int owner, int slot, int width,
+      int height) {
+    Key key = new Key(backend, modelPath, owner, slot, new int[] {1, 3, width, height});
+
+    FutureTask<MxNetLoader> task;
+    boolean created = false;
+    synchronized (this.entries) {
+      task = this.entries.get(key);
+      if (task == null) {
+        task = new FutureTask<>(() -> new MxNetLoader(key.shape, key.modelPath, key.backend));
+        this.entries.put(key, task);
+        created = true;
+      }
+    }
+    this.closeEvicted();
+
+    if (created) {
+      this.misses.incrementAndGet();
+      task.run();
+      this.closeIfEvicted(key, task);
+    }
+    else {
+      this.hits.incrementAndGet();
+    }
+
+    try {
+      MxNetLoader loader = task.get();
+      // evicted by a concurrent miss since the lookup
+      return loader.isClosed() ? this.get(backend, modelPath, owner, slot, width, height) : loader;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for the P-Net predictor " + key, e);
+    }
+    catch (ExecutionException e) {
+      synchronized (this.entries) {
+        this.entries.remove(key, task);
+      }
+      throw new IllegalStateException("Failed to create the P-Net predictor " + key, e.getCause());
+    }
+  }
+
+  /**
+   * Same as {@link #get(InferenceBackend, String, int, int, int, int)}, but the predictor stays open until
+   * the lease is closed, even if a concurrent miss evicts it meanwhile.
+   *
+   * @return The leased predictor, to close once the predictor has run
+   */
+  public Lease lease(InferenceBackend backend, String modelPath, int owner, int slot, int width, int height) {
+    while (true) {
+      MxNetLoader loader = this.get(backend, modelPath, owner, slot, width, height);
+      if (loader.retain()) {
+        return new Lease(loader);
+      }
+      // evicted between the lookup and the lease
+    }
+  }
+
+  /**
+   * A {@link MxNetLoader#retain()} lease on a cached predictor.
+   */
+  public static class Lease implements AutoCloseable {
+    private final MxNetLoader loader;
+    private boolean released;
+
+    /**
+     * @param loader an already retained loader
+     */
+    Lease(MxNetLoader loader) {
+      this.loader = loader;
+    }
+
+    public MxNetLoader getLoader() {
+      Assert.state(!this.released, "The predictor lease was released");
+      return loader;
+    }
+
+    @Override
+    public void close() {
+      if (!this.released) {
+        this.released = true;
+        this.loader.release();
+      }
+    }
+  }
+
+  /**
+   * @param buckets ascending canonical input widths and heights, can be empty
+   * @param length scaled image width or height
+   * @return The smallest bucket holding the length, or the length itself past the largest bucket
+   */
+  public static int bucketFor(int[] buckets, int length) {
+    for (int bucket : buckets) {
+      if (bucket >= length) {
+        return bucket;
+      }
+    }
+    return length;
+  }
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * Changes the cache capacity, evicting the least recently used predictors past the new capacity.
+   */
+  public void setMaxEntries(int maxEntries) {
+    Assert.isTrue(maxEntries > 0, "The cache must hold at least one predictor");
+    synchronized (this.entries) {
+      this.maxEntries = maxEntries;
+      Iterator<FutureTask<MxNetLoader>> eldest = this.entries.values().iterator();
+      while (this.entries.size() > maxEntries) {
+        this.evicted.add(eldest.next());
+        eldest.remove();
+        this.evictions.incrementAndGet();
+      }
+    }
+    this.closeEvicted();
+  }
+
+  /**
+   * Reserves room for predictors expected to stay in use, e.g. the warmed up ones. The reservations of all the
+   * callers add up and the capacity grows to hold them, it never shrinks.
+   *
+   * @param entries number of additional predictors
+   */
+  public void reserve(int entries) {
+    Assert.isTrue(entries >= 0, "The reserved entries must not be negative");
+    synchronized (this.entries) {
+      this.reserved += entries;
+      this.maxEntries = Math.max(this.maxEntries, this.reserved);
+    }
+  }
+
+  /**
+   * Evicts all the predictors.
+   */
+  public void clear() {
+    synchronized (this.entries) {
+      this.evicted.addAll(this.entries.values());
+      this.entries.clear();
+    }
+    this.closeEvicted();
+  }
+
+  /**
+   * Closes a predictor evicted while it was being built, skipped by {@link #closeEvicted()}.
+   */
+  private void closeIfEvicted(Key key, FutureTask<MxNetLoader> task) {
+    synchronized (this.entries) {
+      if (this.entries.get(key) == task) {
+        return;
+      }
+    }
+    try {
+      task.get().close();
+    }
+    catch (InterruptedException | ExecutionException e) {
+      // failed builds hold no predictor
+    }
+  }
+
+  /**
+   * Closes the evicted predictors outside of the entries lock, a predictor closes once its running call and
+   * its leases complete. The predictors still being built are closed by their builder.
+   */
+  private void closeEvicted() {
+    List<FutureTask<MxNetLoader>> closing;
+    synchronized (this.entries) {
+      if (this.evicted.isEmpty()) {
+        return;
+      }
+      closing = new ArrayList<>(this.evicted);
+      this.evicted.clear();
+    }
+    for (FutureTask<MxNetLoader> task : closing) {
+      if (task.isDone() && !task.isCancelled()) {
+        try {
+          task.get().close();
+        }
+        catch (InterruptedException | ExecutionException e) {
+          // failed builds hold no predictor
+        }
+      }
+    }
+  }
+
+  public Stats getStats() {
+    int size;
+    synchronized (this.entries) {
+      size = this.entries.size();
+    }
+    return new Stats(this.hits.get(), this.misses.get(), this.evictions.get(), size);
+  }
+
+  /** Point in time snapshot of the cache counters. */
+  public static class Stats {
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final int size;
+
+    Stats(long hits, long misses, long evictions, int size) {
+      this.hits = hits;
+      this.misses = misses;
+      this.evictions = evictions;
+      this.size = size;
+    }
+
+    public long getHits() {
+      return hits;
+    }
+
+    public long getMisses() {
+      return misses;
+    }
+
+    public long getEvictions() {
+      return evictions;
+    }
+
+    public int getSize() {
+      return size;
+    }
+
+    public double getHitRatio() {
+      long total = hits + misses;
+      return (total == 0) ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+      return "Stats{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", size=" + size + "}";
+    }
+  }
+
+  private static class Key {
+    private final InferenceBackend backend;
+    private final String modelPath;
+    private final int owner;
+    private final int slot;
+    private final int[] shape;
+
+    Key(InferenceBackend backend, String modelPath, int owner, int slot, int[] shape) {
+      this.backend = backend;
+      this.modelPath = modelPath;
+      this.owner = owner;
+      this.slot = slot;
+      this.shape = shape;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) o;
+      return owner == key.owner && slot == key.slot && backend == key.backend && modelPath.equals(key.modelPath)
+          && Arrays.equals(shape, key.shape);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * (31 * modelPath.hashCode() + owner) + slot) + Arrays.hashCode(shape);
+    }
+
+    @Override
+    public String toString() {
+      return modelPath + "#" + owner + "." + slot + Arrays.toString(shape);
+    }
+  }
+}
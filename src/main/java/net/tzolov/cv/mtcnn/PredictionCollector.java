@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import static net.tzolov.cv.mtcnn.MtcnnUtil.C_ORDERING;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.springframework.util.Assert;
+
+/**
+ * Collects the per-candidate network outputs straight into preallocated [N, width] result arrays.
+ * Every output row is written once into the off-heap buffer backing the returned {@link INDArray}s, so
+ * no intermediate on-heap accumulation (and no final copy) is needed.
+ */
+class PredictionCollector {
+
+  private final int[] outputWidths;
+  private final INDArray[] results;
+  private final FloatBuffer[] buffers;
+  private final int capacity;
+  private int collected;
+
+  /**
+   * @param numBoxes number of candidates (rows) the collector is sized for
+   * @param outputWidths number of values per candidate, for each network output
+   */
+  PredictionCollector(int numBoxes, int... outputWidths) {
+    this.capacity = numBoxes;
+    this.outputWidths = outputWidths;
+    this.results = new INDArray[outputWidths.length];
+    this.buffers = new FloatBuffer[outputWidths.length];
+    for (int o = 0; o < outputWidths.length; o++) {
+      this.results[o] = Nd4j.createUninitialized(new int[] {numBoxes, outputWidths[o]}, C_ORDERING);
+      this.buffers[o] = this.results[o].data().asNioFloat();
+    }
+  }
+
+  /**
+   * Appends the first {@code count} candidates of a predictor call.
+   *
+   * @param outs predictor outputs, in network output order
+   * @param count number of valid (non padding) candidates in the outputs
+   */
+  void collect(float[][] outs, int count) {
+    if (this.collected + count > this.capacity) {
+      throw new IllegalStateException(
+          "Collector sized for " + this.capacity + " candidates but received " + (this.collected + count));
+    }
+    for (int o = 0; o < this.outputWidths.length; o++) {
+      this.buffers[o].put(outs[o], 0, count * this.outputWidths[o]);
+    }
+    this.collected += count;
+  }
+
+  /**
+   * @return One [N, width] matrix per network output, backed by the buffers written by {@link #collect}
+   */
+  List<INDArray> results() {
+    Assert.isTrue(this.collected == this.capacity, "Expected " + this.capacity
+        + " candidates but collected " + this.collected);
+    return new ArrayList<>(Arrays.asList(this.results));
+  }
+}
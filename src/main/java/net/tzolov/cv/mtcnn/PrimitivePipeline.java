@@ -0,0 +1,546 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import static net.tzolov.cv.mtcnn.MtcnnUtil.CHANNEL_COUNT;
+import static net.tzolov.cv.mtcnn.MtcnnUtil.C_ORDERING;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * The three MTCNN stages over primitive, structure of arrays buffers. Same boxes and landmarks as the ND4J
+ * stages of {@link MtcnnService}: the score filtering, NMS, box regression ({@code bbreg}), squaring
+ * ({@code rerec}) and padding ({@code pad}) steps are done in place on reused {@link BoxBuffer}s and
+ * {@code int[]} pad columns, and the P-Net levels and the R-Net/O-Net candidates are resampled by a
+ * {@link CropResizeKernel} straight into reused network input arrays.
+ *
+ * <p>Once the buffers have grown to the working set of the images, a detection allocates nothing besides
+ * the MXNet outputs and the returned annotations. One pipeline per {@link DetectionContext}, not thread safe.
+ */
+class PrimitivePipeline {
+
+  private static final int REFINE_SIZE = 24;
+
+  private static final int OUTPUT_SIZE = 48;
+
+  private static final int LANDMARK_COUNT = 10;
+
+  private static final FaceAnnotation.Landmark.LandmarkType[] LANDMARK_TYPES =
+      FaceAnnotation.Landmark.LandmarkType.values();
+
+  private final DetectionContext context;
+  private final PNetPredictorCache proposeNetCache;
+  private final InferenceBackend backend;
+  private final String proposeNetModelUri;
+  // P-Net predictor sets owner, see PNetPredictorCache
+  private final int proposeNetOwner;
+  private final double[] stepsThreshold;
+
+  private final CropResizeKernel kernel = new CropResizeKernel();
+  private final BoxBuffer scaleBoxes = new BoxBuffer(1024);
+  private final BoxBuffer totalBoxes = new BoxBuffer(1024);
+  private final BoxBuffer stageBoxes = new BoxBuffer(256);
+  private final Pads pads = new Pads();
+  private int[] picks = new int[1024];
+
+  // network inputs and outputs, grown on demand
+  private float[] input = new float[0];
+  private FloatBuffer inputBuffer = FloatBuffer.wrap(this.input);
+  private float[] regression = new float[0];
+  private float[] probability = new float[0];
+  private float[] landmarks = new float[0];
+  private float[] points = new float[0];
+
+  // planar copy of the non contiguous input images
+  private INDArray image;
+  private FloatBuffer imageBuffer;
+
+  // canonical P-Net input widths and heights, exact shapes if empty
+  private int[] proposeShapeBuckets = new int[0];
+
+  // P-Net predictors of the last seen pyramid, by level
+  private MxNetLoader[] proposeNets = new MxNetLoader[0];
+  private int[] proposeNetWidths = new int[0];
+  private int[] proposeNetHeights = new int[0];
+
+  PrimitivePipeline(DetectionContext context, PNetPredictorCache proposeNetCache, InferenceBackend backend,
+      String proposeNetModelUri, int proposeNetOwner, double[] stepsThreshold) {
+    this.context = context;
+    this.proposeNetCache = proposeNetCache;
+    this.backend = backend;
+    this.proposeNetModelUri = proposeNetModelUri;
+    this.proposeNetOwner = proposeNetOwner;
+    this.stepsThreshold = stepsThreshold;
+  }
+
+  /**
+   * @param proposeShapeBuckets see {@link MtcnnService#setProposeShapeBuckets(int...)}
+   */
+  void setProposeShapeBuckets(int[] proposeShapeBuckets) {
+    this.proposeShapeBuckets = proposeShapeBuckets;
+  }
+
+  /**
+   * @param image3HW input image with [3, H, W] dimensions
+   * @param scales the scale pyramid of the image
+   * @param landscape layout of the O-Net candidates, see {@link MtcnnService}
+   * @return The detected faces
+   */
+  FaceAnnotation[] detect(INDArray image3HW, List<Double> scales, boolean landscape) {
+    int height = (int) image3HW.size(1);
+    int width = (int) image3HW.size(2);
+    this.kernel.setImage(this.planar(image3HW), height * width, width, 1);
+    return this.detect(height, width, scales, landscape);
+  }
+
+  /**
+   * Same as {@link #detect(INDArray, List, boolean)}, with the kernel sampling the 8-bit pixels directly.
+   * The image is never widened to floats, only the network inputs are.
+   *
+   * @param image interleaved 8-bit input image
+   * @param scales the scale pyramid of the image
+   * @param landscape layout of the O-Net candidates, see {@link MtcnnService}
+   * @return The detected faces
+   */
+  FaceAnnotation[] detect(Uint8Image image, List<Double> scales, boolean landscape) {
+    int width = image.getWidth();
+    this.kernel.setImage(image.getPixels(), 1, width * CHANNEL_COUNT, CHANNEL_COUNT);
+    return this.detect(image.getHeight(), width, scales, landscape);
+  }
+
+  private FaceAnnotation[] detect(int height, int width, List<Double> scales, boolean landscape) {
+    DetectionMetricsListener listener = this.context.getListener();
+
+    long start = System.nanoTime();
+    int count = this.proposeStage(scales, height, width, listener);
+    listener.stageCompleted(DetectionMetricsListener.Stage.PROPOSE, System.nanoTime() - start, count);
+
+    start = System.nanoTime();
+    count = (count > 0) ? this.refineStage(listener) : 0;
+    listener.stageCompleted(DetectionMetricsListener.Stage.REFINE, System.nanoTime() - start, count);
+
+    start = System.nanoTime();
+    count = (count > 0) ? this.outputStage(height, width, landscape, listener) : 0;
+    listener.stageCompleted(DetectionMetricsListener.Stage.OUTPUT, System.nanoTime() - start, count);
+
+    return this.toFaceAnnotation(count);
+  }
+
+  /**
+   * STAGE 1: P-Net over every pyramid level, cross scale NMS, box regression, squaring and padding.
+   *
+   * @return Number of candidates left in the stage boxes
+   */
+  private int proposeStage(List<Double> scales, int height, int width, DetectionMetricsListener listener) {
+    BoxBuffer total = this.totalBoxes;
+    total.clear();
+
+    for (int level = 0; level < scales.size(); level++) {
+      long start = System.nanoTime();
+      double scale = scales.get(level);
+      int newWidth = (int) Math.ceil(width * scale);
+      int newHeight = (int) Math.ceil(height * scale);
+
+      int inputWidth = PNetPredictorCache.bucketFor(this.proposeShapeBuckets, newWidth);
+      int inputHeight = PNetPredictorCache.bucketFor(this.proposeShapeBuckets, newHeight);
+      boolean padded = inputWidth != newWidth || inputHeight != newHeight;
+
+      // the P-Net input is [1, 3, W, H], the level in its top left corner
+      this.ensureInput(CHANNEL_COUNT * inputWidth * inputHeight);
+      if (padded) {
+        Arrays.fill(this.input, 0, CHANNEL_COUNT * inputWidth * inputHeight, 0f);
+      }
+      this.kernel.resize(height, width, 0, height, 0, width, 0, 0, newHeight, newWidth, inputHeight, inputWidth,
+          true, this.inputBuffer, 0);
+
+      MxNetLoader.PNetOutput output;
+      try (PNetPredictorCache.Lease proposeNet = this.proposeNet(level, inputWidth, inputHeight)) {
+        output = proposeNet.getLoader().runProposeRaw(this.input);
+      }
+      listener.predictorCalls(DetectionMetricsListener.Stage.PROPOSE, 1, 1);
+
+      BoxBuffer boxes = this.scaleBoxes;
+      boxes.clear();
+      int rows = output.getRows();
+      int cols = output.getCols();
+      MtcnnUtil.generateBoundingBox(output.getProbability(), output.getRegression(), rows, cols, 0, 0,
+          padded ? Math.min(rows, MtcnnUtil.proposeNetCells(newWidth)) : rows,
+          padded ? Math.min(cols, MtcnnUtil.proposeNetCells(newHeight)) : cols,
+          scale, this.stepsThreshold[0], boxes);
+
+      int picked = (boxes.size() > 0)
+          ? this.nonMaxSuppression(boxes, 0.5, MtcnnUtil.NonMaxSuppressionType.Union,
+              DetectionMetricsListener.NmsPass.SCALE, listener)
+          : 0;
+      for (int i = 0; i < picked; i++) {
+        copy(boxes, this.picks[i], total);
+      }
+      listener.scaleProcessed(scale, System.nanoTime() - start, picked);
+    }
+
+    if (total.size() == 0) {
+      return 0;
+    }
+
+    int picked = this.nonMaxSuppression(total, 0.7, MtcnnUtil.NonMaxSuppressionType.Union,
+        DetectionMetricsListener.NmsPass.CROSS_SCALE, listener);
+
+    BoxBuffer stage = this.stageBoxes;
+    stage.clear();
+    for (int i = 0; i < picked; i++) {
+      int k = this.picks[i];
+      float regw = total.x2[k] - total.x1[k];
+      float regh = total.y2[k] - total.y1[k];
+      stage.add(
+          total.x1[k] + total.dx1[k] * regw,
+          total.y1[k] + total.dy1[k] * regh,
+          total.x2[k] + total.dx2[k] * regw,
+          total.y2[k] + total.dy2[k] * regh,
+          total.score[k], 0, 0, 0, 0);
+    }
+    rerec(stage, true);
+    this.pads.compute(stage, width, height);
+    return picked;
+  }
+
+  /**
+   * STAGE 2: R-Net over the padded stage boxes, score filtering, NMS, box regression and squaring.
+   *
+   * @return Number of candidates left in the stage boxes
+   */
+  private int refineStage(DetectionMetricsListener listener) {
+    BoxBuffer stage = this.stageBoxes;
+    int numBoxes = stage.size();
+    if (!this.cropCandidates(numBoxes, REFINE_SIZE, true)) {
+      return 0;
+    }
+
+    this.regression = ensure(this.regression, numBoxes * 4);
+    this.probability = ensure(this.probability, numBoxes * 2);
+    MxNetLoader refineNet = this.context.getRefineNet();
+    long calls = refineNet.getPredictorCalls();
+    refineNet.runRaw(this.input, numBoxes, this.regression, this.probability);
+    listener.predictorCalls(DetectionMetricsListener.Stage.REFINE,
+        (int) (refineNet.getPredictorCalls() - calls), numBoxes);
+
+    BoxBuffer passed = this.totalBoxes;
+    passed.clear();
+    for (int k = 0; k < numBoxes; k++) {
+      float score = this.probability[k * 2 + 1];
+      if (score > this.stepsThreshold[1]) {
+        int r = k * 4;
+        passed.add(stage.x1[k], stage.y1[k], stage.x2[k], stage.y2[k], score,
+            this.regression[r], this.regression[r + 1], this.regression[r + 2], this.regression[r + 3]);
+      }
+    }
+    if (passed.size() == 0) {
+      return 0;
+    }
+
+    int picked = this.nonMaxSuppression(passed, 0.7, MtcnnUtil.NonMaxSuppressionType.Union,
+        DetectionMetricsListener.NmsPass.REFINE, listener);
+
+    stage.clear();
+    for (int i = 0; i < picked; i++) {
+      copy(passed, this.picks[i], stage);
+    }
+    bbreg(stage);
+    rerec(stage, false);
+    return picked;
+  }
+
+  /**
+   * STAGE 3: O-Net over the floored and padded stage boxes, score filtering, landmarks, box regression and
+   * NMS. The faces are left in the total boxes and points, at the indexes held by the picks.
+   *
+   * @return Number of faces
+   */
+  private int outputStage(int height, int width, boolean landscape, DetectionMetricsListener listener) {
+    BoxBuffer stage = this.stageBoxes;
+    int numBoxes = stage.size();
+    for (int k = 0; k < numBoxes; k++) {
+      stage.x1[k] = (float) Math.floor(stage.x1[k]);
+      stage.y1[k] = (float) Math.floor(stage.y1[k]);
+      stage.x2[k] = (float) Math.floor(stage.x2[k]);
+      stage.y2[k] = (float) Math.floor(stage.y2[k]);
+    }
+    this.pads.compute(stage, width, height);
+    if (!this.cropCandidates(numBoxes, OUTPUT_SIZE, landscape)) {
+      return 0;
+    }
+
+    this.landmarks = ensure(this.landmarks, numBoxes * LANDMARK_COUNT);
+    this.regression = ensure(this.regression, numBoxes * 4);
+    this.probability = ensure(this.probability, numBoxes * 2);
+    MxNetLoader outputNet = this.context.getOutputNet();
+    long calls = outputNet.getPredictorCalls();
+    outputNet.runRaw(this.input, numBoxes, this.landmarks, this.regression, this.probability);
+    listener.predictorCalls(DetectionMetricsListener.Stage.OUTPUT,
+        (int) (outputNet.getPredictorCalls() - calls), numBoxes);
+
+    BoxBuffer passed = this.totalBoxes;
+    passed.clear();
+    this.points = ensure(this.points, numBoxes * LANDMARK_COUNT);
+    for (int k = 0; k < numBoxes; k++) {
+      float score = this.probability[k * 2 + 1];
+      if (score > this.stepsThreshold[2]) {
+        int r = k * 4;
+        int p = passed.size() * LANDMARK_COUNT;
+        int l = k * LANDMARK_COUNT;
+        float w = stage.x2[k] - stage.x1[k] + 1;
+        float h = stage.y2[k] - stage.y1[k] + 1;
+        for (int i = 0; i < 5; i++) {
+          this.points[p + i] = w * this.landmarks[l + i] + stage.x1[k] - 1;
+          this.points[p + 5 + i] = h * this.landmarks[l + 5 + i] + stage.y1[k] - 1;
+        }
+        passed.add(stage.x1[k], stage.y1[k], stage.x2[k], stage.y2[k], score,
+            this.regression[r], this.regression[r + 1], this.regression[r + 2], this.regression[r + 3]);
+      }
+    }
+    if (passed.size() == 0) {
+      return 0;
+    }
+
+    bbreg(passed);
+    return this.nonMaxSuppression(passed, 0.7, MtcnnUtil.NonMaxSuppressionType.Min,
+        DetectionMetricsListener.NmsPass.OUTPUT, listener);
+  }
+
+  /**
+   * Resamples every padded stage box into the network input.
+   *
+   * @return False if a box is degenerate
+   */
+  private boolean cropCandidates(int numBoxes, int size, boolean xMajor) {
+    int sampleLength = CHANNEL_COUNT * size * size;
+    this.ensureInput(numBoxes * sampleLength);
+    Pads p = this.pads;
+    for (int k = 0; k < numBoxes; k++) {
+      if (p.tmph[k] <= 0 || p.tmpw[k] <= 0) {
+        return false;
+      }
+      // tmp[dy-1:edy, dx-1:edx, :] = img[y-1:ey, x-1:ex, :]
+      this.kernel.resize(p.tmph[k], p.tmpw[k], p.dy[k] - 1, p.edy[k], p.dx[k] - 1, p.edx[k],
+          p.y[k] - p.dy[k], p.x[k] - p.dx[k], size, xMajor, this.inputBuffer, k * sampleLength);
+    }
+    return true;
+  }
+
+  private int nonMaxSuppression(BoxBuffer boxes, double threshold, MtcnnUtil.NonMaxSuppressionType type,
+      DetectionMetricsListener.NmsPass pass, DetectionMetricsListener listener) {
+    if (this.picks.length < boxes.size()) {
+      this.picks = new int[boxes.capacity()];
+    }
+    long start = System.nanoTime();
+    int picked = MtcnnUtil.nonMaxSuppression(boxes, threshold, type, this.picks);
+    listener.nonMaxSuppression(pass, System.nanoTime() - start, boxes.size(), picked);
+    return picked;
+  }
+
+  private FaceAnnotation[] toFaceAnnotation(int count) {
+    FaceAnnotation[] faces = new FaceAnnotation[count];
+    BoxBuffer boxes = this.totalBoxes;
+    for (int i = 0; i < count; i++) {
+      int k = this.picks[i];
+      int x1 = (int) boxes.x1[k];
+      int y1 = (int) boxes.y1[k];
+
+      FaceAnnotation face = new FaceAnnotation();
+      face.setBoundingBox(FaceAnnotation.BoundingBox.of(x1, y1, (int) boxes.x2[k] - x1, (int) boxes.y2[k] - y1));
+      face.setConfidence(boxes.score[k]);
+
+      int p = k * LANDMARK_COUNT;
+      face.setLandmarks(new FaceAnnotation.Landmark[5]);
+      for (int l = 0; l < 5; l++) {
+        face.getLandmarks()[l] = FaceAnnotation.Landmark.of(LANDMARK_TYPES[l],
+            FaceAnnotation.Landmark.Position.of((int) this.points[p + l], (int) this.points[p + 5 + l]));
+      }
+      faces[i] = face;
+    }
+    return faces;
+  }
+
+  /**
+   * @return The image pixels in planar [3, H, W] order, copied into a reused array if the image is a view
+   */
+  private FloatBuffer planar(INDArray image3HW) {
+    if (!image3HW.isView() && image3HW.ordering() == C_ORDERING && image3HW.data().length() == image3HW.length()) {
+      return image3HW.data().asNioFloat();
+    }
+    if (this.image == null
+        || this.image.size(1) != image3HW.size(1)
+        || this.image.size(2) != image3HW.size(2)) {
+      try (MemoryWorkspace scope = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+        this.image = Nd4j.createUninitialized(
+            new int[] {CHANNEL_COUNT, (int) image3HW.size(1), (int) image3HW.size(2)}, C_ORDERING);
+        this.imageBuffer = this.image.data().asNioFloat();
+      }
+    }
+    this.image.assign(image3HW);
+    return this.imageBuffer;
+  }
+
+  /**
+   * @return The lease of the memoized level predictor, or of a cached one if the memoized predictor was
+   *     evicted from the cache meanwhile
+   */
+  private PNetPredictorCache.Lease proposeNet(int level, int width, int height) {
+    if (level >= this.proposeNets.length) {
+      int length = Math.max(level + 1, this.proposeNets.length * 2);
+      this.proposeNets = Arrays.copyOf(this.proposeNets, length);
+      this.proposeNetWidths = Arrays.copyOf(this.proposeNetWidths, length);
+      this.proposeNetHeights = Arrays.copyOf(this.proposeNetHeights, length);
+    }
+    MxNetLoader memoized = this.proposeNets[level];
+    // the memoized predictor can have been evicted from the cache, it can't be leased then
+    if (memoized != null
+        && this.proposeNetWidths[level] == width
+        && this.proposeNetHeights[level] == height
+        && memoized.retain()) {
+      return new PNetPredictorCache.Lease(memoized);
+    }
+    PNetPredictorCache.Lease lease =
+        this.proposeNetCache.lease(this.backend, this.proposeNetModelUri, this.proposeNetOwner,
+            this.context.getSlot(), width, height);
+    this.proposeNets[level] = lease.getLoader();
+    this.proposeNetWidths[level] = width;
+    this.proposeNetHeights[level] = height;
+    return lease;
+  }
+
+  private void ensureInput(int length) {
+    if (this.input.length < length) {
+      this.input = new float[length];
+      this.inputBuffer = FloatBuffer.wrap(this.input);
+    }
+  }
+
+  private static float[] ensure(float[] array, int length) {
+    return (array.length < length) ? new float[length] : array;
+  }
+
+  private static void copy(BoxBuffer from, int k, BoxBuffer to) {
+    to.add(from.x1[k], from.y1[k], from.x2[k], from.y2[k], from.score[k],
+        from.dx1[k], from.dy1[k], from.dx2[k], from.dy2[k]);
+  }
+
+  /** In place {@link MtcnnUtil#bbreg}, the regression is read from the dx1..dy2 columns. */
+  static void bbreg(BoxBuffer boxes) {
+    for (int k = 0; k < boxes.size(); k++) {
+      float w = boxes.x2[k] - boxes.x1[k] + 1;
+      float h = boxes.y2[k] - boxes.y1[k] + 1;
+      boxes.x1[k] = boxes.x1[k] + boxes.dx1[k] * w;
+      boxes.y1[k] = boxes.y1[k] + boxes.dy1[k] * h;
+      boxes.x2[k] = boxes.x2[k] + boxes.dx2[k] * w;
+      boxes.y2[k] = boxes.y2[k] + boxes.dy2[k] * h;
+    }
+  }
+
+  /** In place {@link MtcnnUtil#rerec} */
+  static void rerec(BoxBuffer boxes, boolean withFloor) {
+    for (int k = 0; k < boxes.size(); k++) {
+      float h = boxes.y2[k] - boxes.y1[k];
+      float w = boxes.x2[k] - boxes.x1[k];
+      float l = Math.max(w, h);
+      float x1 = boxes.x1[k] + w * 0.5f - l * 0.5f;
+      float y1 = boxes.y1[k] + h * 0.5f - l * 0.5f;
+      float x2 = x1 + l;
+      float y2 = y1 + l;
+      if (withFloor) {
+        x1 = (float) Math.floor(x1);
+        y1 = (float) Math.floor(y1);
+        x2 = (float) Math.floor(x2);
+        y2 = (float) Math.floor(y2);
+      }
+      boxes.x1[k] = x1;
+      boxes.y1[k] = y1;
+      boxes.x2[k] = x2;
+      boxes.y2[k] = y2;
+    }
+  }
+
+  /**
+   * Primitive {@link MtcnnUtil#pad} columns, reused between the calls.
+   */
+  static class Pads {
+    int[] dy = new int[0];
+    int[] edy = new int[0];
+    int[] dx = new int[0];
+    int[] edx = new int[0];
+    int[] y = new int[0];
+    int[] ey = new int[0];
+    int[] x = new int[0];
+    int[] ex = new int[0];
+    int[] tmpw = new int[0];
+    int[] tmph = new int[0];
+
+    void compute(BoxBuffer boxes, int w, int h) {
+      int n = boxes.size();
+      if (this.dy.length < n) {
+        int capacity = boxes.capacity();
+        this.dy = new int[capacity];
+        this.edy = new int[capacity];
+        this.dx = new int[capacity];
+        this.edx = new int[capacity];
+        this.y = new int[capacity];
+        this.ey = new int[capacity];
+        this.x = new int[capacity];
+        this.ex = new int[capacity];
+        this.tmpw = new int[capacity];
+        this.tmph = new int[capacity];
+      }
+      for (int k = 0; k < n; k++) {
+        this.tmpw[k] = (int) Math.floor(boxes.x2[k] - boxes.x1[k] + 1);
+        this.tmph[k] = (int) Math.floor(boxes.y2[k] - boxes.y1[k] + 1);
+        this.dx[k] = 1;
+        this.dy[k] = 1;
+        this.edx[k] = this.tmpw[k];
+        this.edy[k] = this.tmph[k];
+        this.x[k] = (int) Math.floor(boxes.x1[k]);
+        this.y[k] = (int) Math.floor(boxes.y1[k]);
+        this.ex[k] = (int) Math.floor(boxes.x2[k]);
+        this.ey[k] = (int) Math.floor(boxes.y2[k]);
+
+        // MtcnnUtil.pad updates edx and edy in place of tmpw and tmph (same arrays), the clipped boxes
+        // keep their in-image part only
+        if (this.ex[k] > w) {
+          this.edx[k] = -this.ex[k] + w + this.tmpw[k];
+          this.tmpw[k] = this.edx[k];
+          this.ex[k] = w;
+        }
+        if (this.ey[k] > h) {
+          this.edy[k] = -this.ey[k] + h + this.tmph[k];
+          this.tmph[k] = this.edy[k];
+          this.ey[k] = h;
+        }
+        if (this.x[k] < 1) {
+          this.dx[k] = 2 - this.x[k];
+          this.x[k] = 1;
+        }
+        if (this.y[k] < 1) {
+          this.dy[k] = 2 - this.y[k];
+          this.y[k] = 1;
+        }
+      }
+    }
+  }
+}
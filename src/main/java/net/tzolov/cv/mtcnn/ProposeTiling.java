@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import org.springframework.util.Assert;
+
+/**
+ * Splits one axis of a pyramid level into the overlapping tiles of the tiled STAGE 1.
+ *
+ * <p>The P-Net heatmap cell {@code i} sees the 12 pixels from {@code 2 * i}. Tiles of {@code T} pixels
+ * start every {@code T - 10} pixels and keep their first {@code (T - 10) / 2} cells, so the cells of
+ * adjacent tiles are contiguous in the level heatmap and no cell is computed twice. All the tiles have the
+ * same length, the last one is padded past the level and its cells reading the padding are masked. A level
+ * no longer than the tile size is a single, unpadded tile.
+ */
+class ProposeTiling {
+
+  static final int CELL_SIZE = 12;
+
+  static final int STRIDE = 2;
+
+  /** Smallest supported tile size. */
+  static final int MIN_TILE_SIZE = 2 * CELL_SIZE;
+
+  private final int length;
+  private final int tileLength;
+  // heatmap cells kept per tile and in the whole level, the level is a single tile if 0
+  private final int tileCells;
+  private final int cells;
+  private final int count;
+
+  /**
+   * @param length level length, in pixels
+   * @param tileSize maximal tile length, even and at least {@link #MIN_TILE_SIZE}
+   */
+  ProposeTiling(int length, int tileSize) {
+    Assert.isTrue(tileSize >= MIN_TILE_SIZE && tileSize % STRIDE == 0,
+        "The tile size must be even and at least " + MIN_TILE_SIZE + " but was " + tileSize);
+    this.length = length;
+    if (length <= tileSize) {
+      this.tileLength = length;
+      this.tileCells = 0;
+      this.cells = 0;
+      this.count = 1;
+    }
+    else {
+      this.tileLength = tileSize;
+      this.tileCells = (tileSize - CELL_SIZE) / STRIDE + 1;
+      this.cells = (length - CELL_SIZE) / STRIDE + 1;
+      this.count = (this.cells + this.tileCells - 1) / this.tileCells;
+    }
+  }
+
+  /** @return Number of tiles */
+  int count() {
+    return count;
+  }
+
+  /** @return Length of every tile, padding included */
+  int tileLength() {
+    return tileLength;
+  }
+
+  /** @return Level pixel of the first tile pixel */
+  int offset(int tile) {
+    return this.cellOffset(tile) * STRIDE;
+  }
+
+  /** @return Number of level pixels in the tile, the rest is padding */
+  int pixels(int tile) {
+    return Math.min(this.tileLength, this.length - this.offset(tile));
+  }
+
+  /** @return Level heatmap cell of the first tile cell */
+  int cellOffset(int tile) {
+    return tile * this.tileCells;
+  }
+
+  /**
+   * @param outputCells number of cells in the tile heatmap
+   * @return Number of leading tile cells to keep
+   */
+  int validCells(int tile, int outputCells) {
+    if (this.count == 1) {
+      return outputCells;
+    }
+    return Math.min(outputCells, Math.min(this.tileCells, this.cells - this.cellOffset(tile)));
+  }
+}
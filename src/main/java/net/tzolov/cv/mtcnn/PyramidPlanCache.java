@@ -0,0 +1,70 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.springframework.util.Assert;
+
+/**
+ * Memoized scale pyramids of the recently seen image resolutions, for the resolution independent
+ * {@link MtcnnService}. The least recently used resolutions are evicted once the max entries are exceeded.
+ */
+class PyramidPlanCache {
+
+  static final int DEFAULT_MAX_ENTRIES = 32;
+
+  private final int minFaceSize;
+  private final double scaleFactor;
+  private final LinkedHashMap<Long, List<Double>> plans;
+
+  PyramidPlanCache(int minFaceSize, double scaleFactor, int maxEntries) {
+    Assert.isTrue(maxEntries > 0, "The cache must hold at least one pyramid");
+    this.minFaceSize = minFaceSize;
+    this.scaleFactor = scaleFactor;
+    this.plans =
+        new LinkedHashMap<Long, List<Double>>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Long, List<Double>> eldest) {
+            return size() > maxEntries;
+          }
+        };
+  }
+
+  /**
+   * @return The (unmodifiable) scale pyramid for the given image resolution.
+   */
+  List<Double> get(int height, int width) {
+    Long key = ((long) height << 32) | (width & 0xFFFFFFFFL);
+    synchronized (this.plans) {
+      List<Double> scales = this.plans.get(key);
+      if (scales == null) {
+        scales = Collections.unmodifiableList(
+            MtcnnUtil.computeScalePyramid(height, width, this.minFaceSize, this.scaleFactor));
+        this.plans.put(key, scales);
+      }
+      return scales;
+    }
+  }
+
+  int size() {
+    synchronized (this.plans) {
+      return this.plans.size();
+    }
+  }
+}
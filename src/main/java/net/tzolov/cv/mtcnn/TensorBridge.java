@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import static net.tzolov.cv.mtcnn.MtcnnUtil.C_ORDERING;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * Moves tensors from ND4J into the input arrays of the {@link InferenceBackend} networks with as few copies as
+ * the APIs permit.
+ *
+ * <p>The networks take heap {@code float[]} inputs (the MXNet Java API only accepts heap data), so a pointer
+ * level hand over of the ND4J off-heap buffers is not possible. Instead the bridge reads the ND4J buffer
+ * directly (bulk {@link FloatBuffer} copy) into a reused staging array handed to the network. Permuted ND4J
+ * views are laid out once, natively, with a single {@code dup}. One bridge per network, not thread safe.
+ */
+class TensorBridge {
+
+  private final int[] shape;
+  private final float[] staging;
+
+  /**
+   * @param shape the network input shape the bridge feeds
+   */
+  TensorBridge(int[] shape) {
+    this.shape = shape.clone();
+    int length = 1;
+    for (int dim : shape) {
+      length *= dim;
+    }
+    this.staging = new float[length];
+  }
+
+  int[] getShape() {
+    return shape.clone();
+  }
+
+  /** @return Number of values of the bridged input. */
+  int length() {
+    return staging.length;
+  }
+
+  /**
+   * Copies a range of a contiguous ND4J array into the network input. The rest of the input is zero padded.
+   *
+   * @param source contiguous array, see {@link #contiguous(INDArray)}
+   * @param from first (flat) value to copy
+   * @param length number of values to copy
+   * @return The refreshed network input
+   */
+  float[] load(INDArray source, long from, int length) {
+    FloatBuffer buffer = source.data().asNioFloat();
+    buffer.position((int) from);
+    buffer.get(this.staging, 0, length);
+    if (length < this.staging.length) {
+      Arrays.fill(this.staging, length, this.staging.length, 0f);
+    }
+    return this.staging;
+  }
+
+  /**
+   * Copies a range of a primitive array into the network input. The rest of the input is zero padded.
+   *
+   * @param source planar input values, e.g. a candidates batch of the primitive pipeline
+   * @param from first value to copy
+   * @param length number of values to copy
+   * @return The refreshed network input
+   */
+  float[] load(float[] source, int from, int length) {
+    System.arraycopy(source, from, this.staging, 0, length);
+    if (length < this.staging.length) {
+      Arrays.fill(this.staging, length, this.staging.length, 0f);
+    }
+    return this.staging;
+  }
+
+  /** Copies the whole of a contiguous ND4J array into the network input. */
+  float[] load(INDArray source) {
+    return this.load(source, 0, (int) source.length());
+  }
+
+  /**
+   * @return The array itself if its buffer holds exactly its values in 'c' order, otherwise a 'c' ordered copy.
+   */
+  static INDArray contiguous(INDArray array) {
+    if (!array.isView()
+        && array.ordering() == C_ORDERING
+        && array.data().length() == array.length()) {
+      return array;
+    }
+    return array.dup(C_ORDERING);
+  }
+}
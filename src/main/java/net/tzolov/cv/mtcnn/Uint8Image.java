@@ -0,0 +1,63 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import static net.tzolov.cv.mtcnn.MtcnnUtil.CHANNEL_COUNT;
+
+import org.springframework.util.Assert;
+
+/**
+ * 8-bit image with interleaved [H, W, 3] pixels, in the channel order of the [3, H, W] float images (BGR for
+ * the decoded images). A quarter of the memory of the float images, see
+ * {@link MtcnnService#faceDetection(Uint8Image)}. The pixels are not copied.
+ */
+public class Uint8Image {
+
+  private final byte[] pixels;
+  private final int height;
+  private final int width;
+
+  private Uint8Image(byte[] pixels, int height, int width) {
+    this.pixels = pixels;
+    this.height = height;
+    this.width = width;
+  }
+
+  /**
+   * @param pixels interleaved [H, W, 3] pixels
+   * @param height image height
+   * @param width image width
+   */
+  public static Uint8Image of(byte[] pixels, int height, int width) {
+    Assert.notNull(pixels, "Pixels are required");
+    Assert.isTrue(height > 0 && width > 0, "The image dimensions must be positive");
+    Assert.isTrue(pixels.length == height * width * CHANNEL_COUNT,
+        "Expected " + (height * width * CHANNEL_COUNT) + " pixel values but got " + pixels.length);
+    return new Uint8Image(pixels, height, width);
+  }
+
+  public byte[] getPixels() {
+    return pixels;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+}
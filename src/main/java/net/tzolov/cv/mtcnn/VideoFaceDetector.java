@@ -0,0 +1,214 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import java.io.IOException;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.springframework.util.Assert;
+
+/**
+ * Stateful face detection over the frames of a video stream.
+ *
+ * <p>The full three stage pipeline only runs on keyframes: the first frame, every
+ * {@link #getRedetectInterval()} frames, and whenever a track is lost or drifts. On the other frames the
+ * faces of the previous frame, grown by the search margin, are fed directly to the R-Net and O-Net, which
+ * skips the whole STAGE 1 pyramid scan.
+ *
+ * <p>Instances keep per stream state and are not thread safe. Use one detector per stream, they can share
+ * the same {@link MtcnnService}.
+ */
+public class VideoFaceDetector {
+
+  public static final int DEFAULT_REDETECT_INTERVAL = 10;
+
+  public static final double DEFAULT_DRIFT_THRESHOLD = 0.25;
+
+  public static final double DEFAULT_SEARCH_MARGIN = 0.3;
+
+  private final MtcnnService mtcnnService;
+  private int redetectInterval = DEFAULT_REDETECT_INTERVAL;
+  private double driftThreshold = DEFAULT_DRIFT_THRESHOLD;
+  private double searchMargin = DEFAULT_SEARCH_MARGIN;
+
+  private FaceAnnotation[] tracks = new FaceAnnotation[0];
+  private int framesSinceKeyframe;
+  private boolean forceKeyframe = true;
+  private long keyframes;
+  private long trackedFrames;
+
+  public VideoFaceDetector(MtcnnService mtcnnService) {
+    Assert.notNull(mtcnnService, "MtcnnService is required");
+    this.mtcnnService = mtcnnService;
+  }
+
+  /**
+   * @param redetectInterval a full detection runs at least every redetectInterval frames. 1 detects every
+   *     frame from scratch.
+   */
+  public void setRedetectInterval(int redetectInterval) {
+    Assert.isTrue(redetectInterval > 0, "Redetect interval must be positive");
+    this.redetectInterval = redetectInterval;
+  }
+
+  public int getRedetectInterval() {
+    return redetectInterval;
+  }
+
+  /**
+   * @param driftThreshold frame to frame displacement of a face center, relative to the face size, that
+   *     triggers a full detection on the next frame. Fast moving faces may leave their search window.
+   */
+  public void setDriftThreshold(double driftThreshold) {
+    Assert.isTrue(driftThreshold > 0, "Drift threshold must be positive");
+    this.driftThreshold = driftThreshold;
+  }
+
+  public double getDriftThreshold() {
+    return driftThreshold;
+  }
+
+  /**
+   * @param searchMargin the tracked boxes are grown by this fraction of the face size on every side before
+   *     being fed to the R-Net.
+   */
+  public void setSearchMargin(double searchMargin) {
+    Assert.isTrue(searchMargin >= 0, "Search margin must not be negative");
+    this.searchMargin = searchMargin;
+  }
+
+  public double getSearchMargin() {
+    return searchMargin;
+  }
+
+  /**
+   * Detects the faces of the next frame.
+   *
+   * @param image3HW frame to detect the faces in. Expected dimensions [ 3 x H x W ]
+   * @return Array of face bounding boxes found in the frame
+   */
+  public FaceAnnotation[] faceDetection(INDArray image3HW) throws IOException {
+    if (this.forceKeyframe || this.tracks.length == 0 || this.framesSinceKeyframe >= this.redetectInterval) {
+      return this.keyframe(image3HW);
+    }
+
+    int height = (int) image3HW.size(1);
+    int width = (int) image3HW.size(2);
+    FaceAnnotation[] faces = MtcnnService.toFaceAnnotation(
+        this.mtcnnService.rawFaceDetection(image3HW, this.searchBoxes(width, height)));
+
+    boolean drifted = false;
+    for (FaceAnnotation track : this.tracks) {
+      FaceAnnotation match = bestMatch(track, faces);
+      if (match == null) {
+        // lost track, the face left its search window or is gone
+        return this.keyframe(image3HW);
+      }
+      drifted |= displacement(track, match) > this.driftThreshold;
+    }
+
+    this.trackedFrames++;
+    this.framesSinceKeyframe++;
+    this.forceKeyframe = drifted;
+    this.tracks = faces;
+    return faces;
+  }
+
+  /**
+   * Forgets the tracked faces, the next frame runs a full detection.
+   */
+  public void reset() {
+    this.tracks = new FaceAnnotation[0];
+    this.forceKeyframe = true;
+  }
+
+  /**
+   * @return Number of frames processed with the full pipeline
+   */
+  public long getKeyframes() {
+    return keyframes;
+  }
+
+  /**
+   * @return Number of frames processed by seeding the R-Net with the tracked faces
+   */
+  public long getTrackedFrames() {
+    return trackedFrames;
+  }
+
+  private FaceAnnotation[] keyframe(INDArray image3HW) throws IOException {
+    FaceAnnotation[] faces = this.mtcnnService.faceDetection(image3HW);
+    this.keyframes++;
+    this.framesSinceKeyframe = 1;
+    this.forceKeyframe = false;
+    this.tracks = faces;
+    return faces;
+  }
+
+  /**
+   * @return [N, 5] candidate boxes (x1, y1, x2, y2, score): the tracked faces grown by the search margin and
+   *     clipped to the frame
+   */
+  private INDArray searchBoxes(int width, int height) {
+    float[][] boxes = new float[this.tracks.length][];
+    for (int i = 0; i < this.tracks.length; i++) {
+      FaceAnnotation.BoundingBox box = this.tracks[i].getBoundingBox();
+      double grow = Math.max(box.getW(), box.getH()) * this.searchMargin;
+      boxes[i] = new float[] {
+          (float) Math.max(0, box.getX() - grow),
+          (float) Math.max(0, box.getY() - grow),
+          (float) Math.min(width - 1, box.getX() + box.getW() + grow),
+          (float) Math.min(height - 1, box.getY() + box.getH() + grow),
+          (float) this.tracks[i].getConfidence()
+      };
+    }
+    return Nd4j.create(boxes);
+  }
+
+  private static FaceAnnotation bestMatch(FaceAnnotation track, FaceAnnotation[] faces) {
+    FaceAnnotation best = null;
+    double bestOverlap = 0;
+    for (FaceAnnotation face : faces) {
+      double overlap = intersectionOverUnion(track.getBoundingBox(), face.getBoundingBox());
+      if (overlap > bestOverlap) {
+        bestOverlap = overlap;
+        best = face;
+      }
+    }
+    return best;
+  }
+
+  private static double intersectionOverUnion(FaceAnnotation.BoundingBox a, FaceAnnotation.BoundingBox b) {
+    double w = Math.min(a.getX() + a.getW(), b.getX() + b.getW()) - Math.max(a.getX(), b.getX());
+    double h = Math.min(a.getY() + a.getH(), b.getY() + b.getH()) - Math.max(a.getY(), b.getY());
+    if (w <= 0 || h <= 0) {
+      return 0;
+    }
+    double inter = w * h;
+    return inter / ((double) a.getW() * a.getH() + (double) b.getW() * b.getH() - inter);
+  }
+
+  /**
+   * @return Displacement of the face center relative to the tracked face size
+   */
+  private static double displacement(FaceAnnotation track, FaceAnnotation face) {
+    FaceAnnotation.BoundingBox a = track.getBoundingBox();
+    FaceAnnotation.BoundingBox b = face.getBoundingBox();
+    double dx = (b.getX() + b.getW() / 2.0) - (a.getX() + a.getW() / 2.0);
+    double dy = (b.getY() + b.getH() / 2.0) - (a.getY() + a.getH() / 2.0);
+    return Math.sqrt(dx * dx + dy * dy) / Math.max(1, Math.max(a.getW(), a.getH()));
+  }
+}
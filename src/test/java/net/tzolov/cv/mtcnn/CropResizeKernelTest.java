@@ -0,0 +1,155 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.FloatBuffer;
+import org.junit.Test;
+
+public class CropResizeKernelTest {
+
+  private static final int WIDTH = 4;
+
+  private static final int HEIGHT = 4;
+
+  @Test
+  public void testAreaDownscale() {
+    CropResizeKernel kernel = new CropResizeKernel(image(), WIDTH);
+    FloatBuffer out = FloatBuffer.allocate(3 * 2 * 2);
+
+    kernel.resize(HEIGHT, WIDTH, 0, HEIGHT, 0, WIDTH, 0, 0, 2, false, out, 0);
+
+    // channel 0 of the top left 2x2 block: (0 + 3 + 12 + 15) / 4 = 7.5, rounded half to even
+    assertEquals(8f, pixel(out, 0), 0);
+    // channel 0 of the bottom right 2x2 block: (30 + 33 + 42 + 45) / 4 = 37.5
+    assertEquals(38f, pixel(out, 3), 0);
+  }
+
+  @Test
+  public void testUpscaleReplicates() {
+    CropResizeKernel kernel = new CropResizeKernel(image(), WIDTH);
+    FloatBuffer out = FloatBuffer.allocate(3 * 4 * 4);
+
+    kernel.resize(2, 2, 0, 2, 0, 2, 0, 0, 4, false, out, 0);
+
+    float[] expected = {0, 0, 3, 3, 0, 0, 3, 3, 12, 12, 15, 15, 12, 12, 15, 15};
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], pixel(out, i), 0);
+    }
+  }
+
+  @Test
+  public void testPaddingAndLayout() {
+    CropResizeKernel kernel = new CropResizeKernel(image(), WIDTH);
+    FloatBuffer out = FloatBuffer.allocate(3 * 2 * 2);
+
+    // 2x2 patch whose first row lies above the image, the second row is the image row 0
+    kernel.resize(2, 2, 1, 2, 0, 2, -1, 0, 2, true, out, 0);
+
+    // x-major layout: [x0y0, x0y1, x1y0, x1y1]
+    assertEquals(0f, pixel(out, 0), 0);
+    assertEquals(0f, pixel(out, 1), 0);
+    assertEquals(0f, pixel(out, 2), 0);
+    assertEquals(3f, pixel(out, 3), 0);
+    // channel 1
+    assertEquals(1f, pixel(out, 4 + 1), 0);
+    assertEquals(4f, pixel(out, 4 + 3), 0);
+  }
+
+  @Test
+  public void testPlanarSourceToRectangularOutput() {
+    FloatBuffer planar = FloatBuffer.allocate(HEIGHT * WIDTH * 3);
+    for (int c = 0; c < 3; c++) {
+      for (int p = 0; p < HEIGHT * WIDTH; p++) {
+        planar.put(c * HEIGHT * WIDTH + p, p * 3 + c);
+      }
+    }
+    CropResizeKernel kernel = new CropResizeKernel().setImage(planar, HEIGHT * WIDTH, WIDTH, 1);
+    FloatBuffer out = FloatBuffer.allocate(3 * 2 * 4);
+
+    // rows halved, columns kept, written x-major like a P-Net level
+    kernel.resize(HEIGHT, WIDTH, 0, HEIGHT, 0, WIDTH, 0, 0, 2, 4, true, out, 0);
+
+    // channel 0 of (y 0, x 1): (3 + 15) / 2
+    assertEquals(9f, pixel(out, 1 * 2), 0);
+    // channel 0 of (y 1, x 3): (33 + 45) / 2
+    assertEquals(39f, pixel(out, 3 * 2 + 1), 0);
+    // channel 1 of (y 0, x 0): (1 + 13) / 2
+    assertEquals(7f, pixel(out, 8), 0);
+  }
+
+  @Test
+  public void testUint8SourceMatchesFloatSource() {
+    byte[] bytes = new byte[HEIGHT * WIDTH * 3];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) (i * 5);
+    }
+    FloatBuffer floats = FloatBuffer.allocate(bytes.length);
+    for (int i = 0; i < bytes.length; i++) {
+      floats.put(i, bytes[i] & 0xFF);
+    }
+    FloatBuffer expected = FloatBuffer.allocate(3 * 3 * 3);
+    FloatBuffer out = FloatBuffer.allocate(3 * 3 * 3);
+
+    CropResizeKernel kernel = new CropResizeKernel();
+    kernel.setImage(floats, 1, WIDTH * 3, 3).resize(HEIGHT, WIDTH, 0, HEIGHT, 0, WIDTH, 0, 0, 3, true, expected, 0);
+    kernel.setImage(bytes, 1, WIDTH * 3, 3).resize(HEIGHT, WIDTH, 0, HEIGHT, 0, WIDTH, 0, 0, 3, true, out, 0);
+
+    for (int i = 0; i < out.capacity(); i++) {
+      assertEquals(expected.get(i), out.get(i), 0);
+    }
+  }
+
+  @Test
+  public void testPaddedOutput() {
+    CropResizeKernel kernel = new CropResizeKernel(image(), WIDTH);
+    FloatBuffer expected = FloatBuffer.allocate(3 * 2 * 2);
+    FloatBuffer out = FloatBuffer.allocate(3 * 3 * 4);
+    for (int i = 0; i < out.capacity(); i++) {
+      out.put(i, -7f);
+    }
+
+    kernel.resize(HEIGHT, WIDTH, 0, HEIGHT, 0, WIDTH, 0, 0, 2, 2, true, expected, 0);
+    // the 2x2 x-major patch in the corner of a 3 (x) by 4 (y) output
+    kernel.resize(HEIGHT, WIDTH, 0, HEIGHT, 0, WIDTH, 0, 0, 2, 2, 4, 3, true, out, 0);
+
+    for (int c = 0; c < 3; c++) {
+      for (int x = 0; x < 2; x++) {
+        for (int y = 0; y < 2; y++) {
+          assertEquals(expected.get(c * 4 + x * 2 + y), out.get(c * 12 + x * 4 + y), 0);
+        }
+      }
+      // the padding is left untouched
+      assertEquals(-7f, out.get(c * 12 + 2), 0);
+      assertEquals(-7f, out.get(c * 12 + 2 * 4), 0);
+    }
+  }
+
+  /** Interleaved [4, 4, 3] image whose pixel values are their flat index. */
+  private static FloatBuffer image() {
+    FloatBuffer image = FloatBuffer.allocate(HEIGHT * WIDTH * 3);
+    for (int i = 0; i < image.capacity(); i++) {
+      image.put(i, i);
+    }
+    return image;
+  }
+
+  /** Reverts the (x - 127.5) * 0.0078125 normalization. */
+  private static float pixel(FloatBuffer out, int index) {
+    return out.get(index) / 0.0078125f + 127.5f;
+  }
+}
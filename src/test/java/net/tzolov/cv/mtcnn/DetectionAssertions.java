@@ -0,0 +1,78 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
+import static org.nd4j.linalg.indexing.NDArrayIndex.point;
+
+import java.io.IOException;
+import java.io.InputStream;
+import javax.imageio.ImageIO;
+import org.apache.commons.io.IOUtils;
+import org.datavec.image.loader.Java2DNativeImageLoader;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.springframework.core.io.DefaultResourceLoader;
+
+/**
+ * Test images and face comparisons shared by the detection tests.
+ */
+final class DetectionAssertions {
+
+  private DetectionAssertions() {
+  }
+
+  /** @return The [3, H, W] image, decoded with ImageIO like the {@code BufferedImage} detections */
+  static INDArray loadImage(String uri) throws IOException {
+    try (InputStream is = new DefaultResourceLoader().getResource(uri).getInputStream()) {
+      return new Java2DNativeImageLoader().asMatrix(ImageIO.read(is))
+          .get(point(0), interval(0, 3), all(), all()).dup();
+    }
+  }
+
+  static byte[] encodedImage(String uri) throws IOException {
+    try (InputStream is = new DefaultResourceLoader().getResource(uri).getInputStream()) {
+      return IOUtils.toByteArray(is);
+    }
+  }
+
+  /**
+   * Asserts the same faces, in the same order, with boxes and landmarks within the given pixels.
+   */
+  static void assertSameFaces(FaceAnnotation[] expected, FaceAnnotation[] actual, int pixels) {
+    assertEquals("Number of faces", expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      FaceAnnotation.BoundingBox e = expected[i].getBoundingBox();
+      FaceAnnotation.BoundingBox a = actual[i].getBoundingBox();
+      assertTrue("Face " + i + " box " + describe(a) + " instead of " + describe(e),
+          Math.abs(e.getX() - a.getX()) <= pixels && Math.abs(e.getY() - a.getY()) <= pixels
+              && Math.abs(e.getW() - a.getW()) <= pixels && Math.abs(e.getH() - a.getH()) <= pixels);
+      assertEquals("Face " + i + " confidence", expected[i].getConfidence(), actual[i].getConfidence(), 1e-3);
+      for (int l = 0; l < expected[i].getLandmarks().length; l++) {
+        FaceAnnotation.Landmark.Position ep = expected[i].getLandmarks()[l].getPosition();
+        FaceAnnotation.Landmark.Position ap = actual[i].getLandmarks()[l].getPosition();
+        assertTrue("Face " + i + " landmark " + l,
+            Math.abs(ep.getX() - ap.getX()) <= pixels && Math.abs(ep.getY() - ap.getY()) <= pixels);
+      }
+    }
+  }
+
+  private static String describe(FaceAnnotation.BoundingBox box) {
+    return "[" + box.getX() + ", " + box.getY() + ", " + box.getW() + ", " + box.getH() + "]";
+  }
+}
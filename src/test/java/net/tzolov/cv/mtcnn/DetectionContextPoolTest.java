@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+public class DetectionContextPoolTest {
+
+  @Test
+  public void testContextsAreCreatedLazilyUpToThePoolSize() {
+    DetectionContextPool pool =
+        new DetectionContextPool(2, slot -> new DetectionContext(slot, "WS_" + slot, null, null));
+
+    DetectionContext first = pool.acquire(-1);
+    DetectionContext second = pool.acquire(-1);
+    assertNotSame(first, second);
+    assertEquals(2, pool.created().size());
+
+    pool.release(first);
+    assertSame(first, pool.acquire(-1));
+    assertEquals(2, pool.created().size());
+  }
+
+  @Test(expected = RejectedExecutionException.class)
+  public void testAcquireTimeout() {
+    DetectionContextPool pool =
+        new DetectionContextPool(1, slot -> new DetectionContext(slot, "WS_" + slot, null, null));
+    pool.acquire(-1);
+    pool.acquire(10);
+  }
+
+  @Test
+  public void testConcurrentDetectionsMatchSerialDetections() throws Exception {
+    INDArray image3HW = DetectionAssertions.loadImage("classpath:/VikiMaxiAdi.jpg");
+    MtcnnService mtcnnService = new MtcnnService(20, 0.709, new double[] {0.6, 0.7, 0.7},
+        (int) image3HW.size(2), (int) image3HW.size(1), 4);
+    ObjectMapper mapper = new ObjectMapper();
+    String serial = mapper.writeValueAsString(mtcnnService.faceDetection(image3HW));
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<FaceAnnotation[]>> detections = new ArrayList<>();
+      for (int i = 0; i < 32; i++) {
+        detections.add(executor.submit(() -> mtcnnService.faceDetection(image3HW)));
+      }
+      for (Future<FaceAnnotation[]> detection : detections) {
+        assertThat(mapper.writeValueAsString(detection.get()), equalTo(serial));
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.tzolov.cv.mtcnn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+public class DetectionOptionsTest {
+
+  private INDArray image3HW;
+
+  private MtcnnService mtcnnService;
+
+  private List<Double> processedScales;
+
+  @Before
+  public void before() throws IOException {
+    this.image3HW = DetectionAssertions.loadImage("classpath:/VikiMaxiAdi.jpg");
+    this.mtcnnService = new MtcnnService(20, 0.709, new double[] {0.6, 0.7, 0.7},
+        (int) this.image3HW.size(2), (int) this.image3HW.size(1));
+    this.processedScales = Collections.synchronizedList(new ArrayList<>());
+    this.mtcnnService.setMetricsListener(new DetectionMetricsListener() {
+      @Override
+      public void scaleProcessed(double scale, long nanos, int candidates) {
+        processedScales.add(scale);
+      }
+    });
+  }
+
+  @Test
+  public void testRoiFacesAreInImageCoordinates() throws IOException {
+    FaceAnnotation[] fullFaces = this.mtcnnService.faceDetection(this.image3HW);
+
+    // a landscape region of the portrait image, around the second face
+    FaceAnnotation.BoundingBox roi = FaceAnnotation.BoundingBox.of(250, 40, 200, 160);
+    FaceAnnotation[] roiFaces =
+        this.mtcnnService.faceDetection(this.image3HW, new DetectionOptions().setRoi(roi));
+
+    assertTrue("No faces in the region of interest", roiFaces.length > 0);
+    for (FaceAnnotation face : roiFaces) {
+      FaceAnnotation.BoundingBox box = face.getBoundingBox();
+      assertTrue("Face outside the region of interest",
+          box.getX() >= roi.getX() - box.getW() / 2 && box.getY() >= roi.getY() - box.getH() / 2
+              && box.getX() + box.getW() / 2 <= roi.getX() + roi.getW()
+              && box.getY() + box.getH() / 2 <= roi.getY() + roi.getH());
+    }
+
+    FaceAnnotation.BoundingBox expected = fullFaces[1].getBoundingBox();
+    FaceAnnotation.BoundingBox actual = roiFaces[0].getBoundingBox();
+    assertEquals(expected.getX(), actual.getX(), 4);
+    assertEquals(expected.getY(), actual.getY(), 4);
+    assertEquals(expected.getW(), actual.getW(), 4);
+    assertEquals(expected.getH(), actual.getH(), 4);
+  }
+
+  @Test
+  public void testMaxFaceSizeSkipsTheCoarseLevels() throws IOException {
+    int maxFaceSize = 40;
+    List<Double> expected = new ArrayList<>();
+    for (Double scale : MtcnnUtil.computeScalePyramid(
+        (int) this.image3HW.size(1), (int) this.image3HW.size(2), 20, 0.709)) {
+      if (12 / scale <= maxFaceSize) {
+        expected.add(scale);
+      }
+    }
+    assertTrue(expected.size() > 0);
+
+    this.mtcnnService.faceDetection(this.image3HW, new DetectionOptions().setMaxFaceSize(maxFaceSize));
+
+    assertEquals(expected.size(), this.processedScales.size());
+    for (Double scale : this.processedScales) {
+      assertTrue("Level of " + (12 / scale) + " pixel faces", 12 / scale <= maxFaceSize);
+    }
+  }
+
+  @Test
+  public void testMaxFacesStopsTheCoarseToFineScan() throws IOException {
+    int pyramidLevels = MtcnnUtil.computeScalePyramid(
+        (int) this.image3HW.size(1), (int) this.image3HW.size(2), 20, 0.709).size();
+
+    FaceAnnotation[] faces = this.mtcnnService.faceDetection(this.image3HW, new DetectionOptions().setMaxFaces(1));
+
+    assertEquals(1, faces.length);
+    assertTrue("Scanned " + this.processedScales.size() + " of " + pyramidLevels + " levels",
+        this.processedScales.size() < pyramidLevels);
+    for (int i = 1; i < this.processedScales.size(); i++) {
+      assertTrue("Coarse to fine", this.processedScales.get(i - 1) < this.processedScales.get(i));
+    }
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import static net.tzolov.cv.mtcnn.DetectionAssertions.assertSameFaces;
+import static net.tzolov.cv.mtcnn.DetectionAssertions.encodedImage;
+import static net.tzolov.cv.mtcnn.DetectionAssertions.loadImage;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+public class FaceDetectionBatcherTest {
+
+  private MtcnnService mtcnnService;
+
+  @Before
+  public void before() throws IOException {
+    // resolution independent, the batch images have different sizes
+    this.mtcnnService = new MtcnnService(20, 0.709, new double[] {0.6, 0.7, 0.7}, 4);
+    this.mtcnnService.setBatchBuckets(MxNetLoader.DEFAULT_BATCH_BUCKETS);
+  }
+
+  @Test
+  public void testCoalescedDetectionsMatchTheService() throws Exception {
+    INDArray image3HW = loadImage("classpath:/VikiMaxiAdi.jpg");
+    FaceAnnotation[] expected = this.mtcnnService.faceDetection(image3HW);
+
+    try (FaceDetectionBatcher batcher =
+        new FaceDetectionBatcher(this.mtcnnService, 512, 50, TimeUnit.MILLISECONDS)) {
+      List<CompletableFuture<FaceAnnotation[]>> detections = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        detections.add(batcher.faceDetection(image3HW));
+      }
+      for (CompletableFuture<FaceAnnotation[]> detection : detections) {
+        // the batched networks can differ from the single candidate runs by rounding
+        assertSameFaces(expected, detection.get(), 1);
+      }
+
+      FaceDetectionBatcher.Stats stats = batcher.getRefineNetStats();
+      assertEquals(8, stats.getRequests());
+      assertTrue(stats.getBatches() > 0 && stats.getBatches() <= 8);
+      assertEquals(8, batcher.getOutputNetStats().getRequests());
+    }
+  }
+
+  @Test
+  public void testBatchResultsKeepTheInputOrder() throws Exception {
+    List<byte[]> images = Arrays.asList(
+        encodedImage("classpath:/VikiMaxiAdi.jpg"),
+        encodedImage("classpath:/Anthony_Hopkins_0002.jpg"),
+        encodedImage("classpath:/broken.png"),
+        encodedImage("classpath:/bill-cook.jpg"),
+        encodedImage("classpath:/VikiMaxiAdi.jpg"));
+
+    try (FaceDetectionBatcher batcher = new FaceDetectionBatcher(this.mtcnnService)) {
+      batcher.setMaxInFlightImages(2);
+      List<FaceAnnotation[]> results = batcher.faceDetection(images);
+
+      assertEquals(images.size(), results.size());
+      for (int i = 0; i < images.size(); i++) {
+        assertSameFaces(this.mtcnnService.faceDetection(this.mtcnnService.decodeImage(images.get(i), 1)),
+            results.get(i), 1);
+      }
+    }
+  }
+
+  @Test
+  public void testInFlightImagesAreBounded() throws Exception {
+    byte[] image = encodedImage("classpath:/Anthony_Hopkins_0002.jpg");
+    AtomicInteger pulled = new AtomicInteger();
+
+    try (FaceDetectionBatcher batcher = new FaceDetectionBatcher(this.mtcnnService)) {
+      batcher.setMaxInFlightImages(3);
+      Stream<byte[]> images = Collections.nCopies(12, image).stream().peek(bytes -> pulled.incrementAndGet());
+      Iterator<FaceAnnotation[]> results = batcher.faceDetection(images).iterator();
+
+      int consumed = 0;
+      while (results.hasNext()) {
+        assertTrue("Pulled " + pulled.get() + " images for " + consumed + " results",
+            pulled.get() - consumed <= 3);
+        results.next();
+        consumed++;
+      }
+      assertEquals(12, consumed);
+      assertEquals(12, pulled.get());
+    }
+  }
+
+  @Test
+  public void testDecodeFailureCancelsTheLaterImages() throws Exception {
+    byte[] image = encodedImage("classpath:/Anthony_Hopkins_0002.jpg");
+    List<byte[]> images = Arrays.asList(image, new byte[] {1, 2, 3, 4}, image, image, image, image);
+
+    AtomicInteger decoded = new AtomicInteger();
+    this.mtcnnService.setMetricsListener(new DetectionMetricsListener() {
+      @Override
+      public void imageDecoded(long nanos) {
+        decoded.incrementAndGet();
+      }
+    });
+
+    // a single decode thread decodes the images in the input order
+    ExecutorService decodeExecutor = Executors.newSingleThreadExecutor();
+    try (FaceDetectionBatcher batcher = new FaceDetectionBatcher(this.mtcnnService,
+        FaceDetectionBatcher.DEFAULT_MAX_BATCH, FaceDetectionBatcher.DEFAULT_MAX_WAIT_MILLIS,
+        TimeUnit.MILLISECONDS, null, decodeExecutor)) {
+      batcher.setMaxInFlightImages(images.size());
+      batcher.faceDetection(images);
+      throw new AssertionError("The corrupted image was decoded");
+    }
+    catch (IOException e) {
+      decodeExecutor.shutdown();
+      assertTrue(decodeExecutor.awaitTermination(10, TimeUnit.SECONDS));
+      assertEquals("Images decoded after the failure", 1, decoded.get());
+    }
+    finally {
+      decodeExecutor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testClosedBatcherRejectsTheDetections() throws Exception {
+    FaceDetectionBatcher batcher = new FaceDetectionBatcher(this.mtcnnService);
+    batcher.close();
+    try {
+      batcher.faceDetection(loadImage("classpath:/VikiMaxiAdi.jpg")).get();
+    }
+    catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+      return;
+    }
+    throw new AssertionError("The closed batcher accepted a detection");
+  }
+
+  @Test
+  public void testNetworkErrorFailsItsBatchOnly() throws Exception {
+    INDArray image3HW = loadImage("classpath:/VikiMaxiAdi.jpg");
+    FaceAnnotation[] expected = this.mtcnnService.faceDetection(image3HW);
+
+    AtomicInteger refineNetRuns = new AtomicInteger();
+    MtcnnService failingOnce = new MtcnnService(20, 0.709, new double[] {0.6, 0.7, 0.7}, 4) {
+      @Override
+      List<INDArray> runRefineNet(INDArray refineNetInput) {
+        if (refineNetRuns.incrementAndGet() == 1) {
+          throw new AssertionError("R-Net failure");
+        }
+        return super.runRefineNet(refineNetInput);
+      }
+    };
+    failingOnce.setBatchBuckets(MxNetLoader.DEFAULT_BATCH_BUCKETS);
+
+    try (FaceDetectionBatcher batcher = new FaceDetectionBatcher(failingOnce)) {
+      try {
+        batcher.faceDetection(image3HW).get();
+        throw new IllegalStateException("The failed R-Net batch completed");
+      }
+      catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof AssertionError);
+      }
+      // the dispatcher survived the error
+      assertSameFaces(expected, batcher.faceDetection(image3HW).get(10, TimeUnit.SECONDS), 1);
+    }
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
+import static org.nd4j.linalg.indexing.NDArrayIndex.point;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.imageio.ImageIO;
+import org.apache.commons.io.IOUtils;
+import org.datavec.image.loader.Java2DNativeImageLoader;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.ops.transforms.Transforms;
+import org.springframework.core.io.DefaultResourceLoader;
+
+public class ImageDecoderTest {
+
+  @Test
+  public void testReductionFor() {
+    assertEquals(1, ImageDecoder.reductionFor(20, 0));
+    assertEquals(1, ImageDecoder.reductionFor(20, 39));
+    assertEquals(2, ImageDecoder.reductionFor(20, 40));
+    assertEquals(4, ImageDecoder.reductionFor(20, 100));
+    assertEquals(8, ImageDecoder.reductionFor(20, 1000));
+  }
+
+  @Test
+  public void testDecodeMatchesTheImageLoaderPath() throws IOException {
+    byte[] encoded = encoded("classpath:/VikiMaxiAdi.jpg");
+    INDArray expected = new Java2DNativeImageLoader()
+        .asMatrix(ImageIO.read(new DefaultResourceLoader().getResource("classpath:/VikiMaxiAdi.jpg").getInputStream()))
+        .get(point(0), interval(0, 3), all(), all());
+
+    INDArray image = new ImageDecoder().decode(encoded, 1);
+
+    assertArrayEquals(expected.shape(), image.shape());
+    // the JPEG decoders may differ by a few intensity levels
+    double meanDifference = Transforms.abs(image.sub(expected)).meanNumber().doubleValue();
+    assertTrue("Mean difference " + meanDifference, meanDifference < 2);
+  }
+
+  @Test
+  public void testReducedDecode() throws IOException {
+    INDArray full = new ImageDecoder().decode(encoded("classpath:/VikiMaxiAdi.jpg"), 1);
+    INDArray half = new ImageDecoder().decode(encoded("classpath:/VikiMaxiAdi.jpg"), 2);
+
+    assertEquals(3, half.size(0));
+    assertEquals((full.size(1) + 1) / 2, half.size(1));
+    assertEquals((full.size(2) + 1) / 2, half.size(2));
+  }
+
+  @Test
+  public void testImageIOFallback() throws IOException {
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(encoded("classpath:/VikiMaxiAdi.jpg")));
+    ByteArrayOutputStream gif = new ByteArrayOutputStream();
+    assertTrue(ImageIO.write(image, "gif", gif));
+
+    INDArray full = new ImageDecoder().decode(gif.toByteArray(), 1);
+    INDArray half = new ImageDecoder().decode(gif.toByteArray(), 2);
+
+    assertArrayEquals(new long[] {3, image.getHeight(), image.getWidth()}, full.shape());
+    assertArrayEquals(new long[] {3, (image.getHeight() + 1) / 2, (image.getWidth() + 1) / 2}, half.shape());
+  }
+
+  @Test(expected = IOException.class)
+  public void testCorruptedImage() throws IOException {
+    new ImageDecoder().decode(new byte[] {1, 2, 3}, 1);
+  }
+
+  private static byte[] encoded(String uri) throws IOException {
+    try (InputStream is = new DefaultResourceLoader().getResource(uri).getInputStream()) {
+      return IOUtils.toByteArray(is);
+    }
+  }
+}
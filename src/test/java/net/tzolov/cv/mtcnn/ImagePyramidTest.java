@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
+import static org.nd4j.linalg.indexing.NDArrayIndex.point;
+
+import java.io.IOException;
+import java.util.List;
+import javax.imageio.ImageIO;
+import org.bytedeco.javacpp.opencv_core;
+import org.bytedeco.javacpp.opencv_imgproc;
+import org.datavec.image.loader.Java2DNativeImageLoader;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.ops.transforms.Transforms;
+import org.springframework.core.io.DefaultResourceLoader;
+
+public class ImagePyramidTest {
+
+  @Test
+  public void testPlan() {
+    List<Double> scales = MtcnnUtil.computeScalePyramid(720, 1280, 20, 0.709);
+    ImagePyramid pyramid = new ImagePyramid();
+    pyramid.plan(720, 1280, scales);
+
+    assertEquals(scales.size(), pyramid.size());
+    // 768x432, 545x307 and 387x218 are resized from the image, 274x154 from 768x432, ...
+    assertEquals(-1, pyramid.source(0));
+    assertEquals(-1, pyramid.source(1));
+    assertEquals(-1, pyramid.source(2));
+    for (int i = 3; i < scales.size() - 1; i++) {
+      assertEquals(i - 3, pyramid.source(i));
+    }
+    // 25x14 from 50x28, two steps up
+    assertEquals(scales.size() - 3, pyramid.source(scales.size() - 1));
+  }
+
+  @Test
+  public void testLevelsWithinToleranceOfTheDirectResize() throws IOException {
+    Java2DNativeImageLoader imageLoader = new Java2DNativeImageLoader();
+    INDArray image3HW = imageLoader.asMatrix(ImageIO.read(
+        new DefaultResourceLoader().getResource("classpath:/VikiMaxiAdi.jpg").getInputStream()))
+        .get(point(0), interval(0, 3), all(), all()).dup();
+    int height = (int) image3HW.size(1);
+    int width = (int) image3HW.size(2);
+    List<Double> scales = MtcnnUtil.computeScalePyramid(height, width, 20, 0.709);
+
+    ImagePyramid pyramid = new ImagePyramid().build(imageLoader, image3HW, scales);
+
+    for (int i = 0; i < scales.size(); i++) {
+      opencv_core.Size size = new opencv_core.Size(
+          (int) Math.ceil(width * scales.get(i)), (int) Math.ceil(height * scales.get(i)));
+      opencv_core.Mat mat = imageLoader.asMat(image3HW);
+      opencv_imgproc.resize(mat, mat, size, 0, 0, opencv_imgproc.CV_INTER_AREA);
+      INDArray expected = imageLoader.asMatrix(mat);
+
+      INDArray level = imageLoader.asMatrix(pyramid.level(i));
+
+      assertArrayEquals(expected.shape(), level.shape());
+      double meanDifference = Transforms.abs(level.sub(expected)).meanNumber().doubleValue();
+      assertTrue("Mean difference " + meanDifference + " at level " + i, meanDifference < 1.5);
+    }
+  }
+}
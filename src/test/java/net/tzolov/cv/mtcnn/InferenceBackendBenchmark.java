@@ -0,0 +1,156 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+
+import org.datavec.image.loader.Java2DNativeImageLoader;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.core.io.DefaultResourceLoader;
+
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
+import static org.nd4j.linalg.indexing.NDArrayIndex.point;
+
+/**
+ * Compares the {@link MxNetBackend} and {@link JavaBackend} inference backends, per network and end to end.
+ *
+ * <p>The per network benchmarks run a P-Net level of a 640x360 frame and R-Net and O-Net batches of 16
+ * candidates, the Java backend on the calling thread ({@code java}) or split on 4 lanes ({@code java4}).
+ *
+ * @see MtcnnStageBenchmark
+ */
+@Fork(value = 1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class InferenceBackendBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Backend {
+
+		@Param({ "mxnet", "java", "java4" })
+		public String backend;
+
+		public InferenceBackend inferenceBackend;
+		public String modelFolder;
+		private ExecutorService executor;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			modelFolder = ModelLocation.resolve(ModelLocation.DEFAULT_LOCATION);
+			if ("mxnet".equals(backend)) {
+				inferenceBackend = MxNetBackend.cpu();
+			}
+			else if ("java".equals(backend)) {
+				inferenceBackend = new JavaBackend();
+			}
+			else {
+				executor = Executors.newFixedThreadPool(3);
+				inferenceBackend = new JavaBackend(executor, 4);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			if (executor != null) {
+				executor.shutdown();
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Networks {
+
+		@Param({ "det1", "det2", "det3" })
+		public String model;
+
+		public InferenceBackend.Network network;
+		public float[] input;
+
+		@Setup(Level.Trial)
+		public void setUp(Backend backend) {
+			int[] shape = "det1".equals(model) ? new int[] { 1, 3, 384, 216 }
+					: "det2".equals(model) ? new int[] { 16, 3, 24, 24 } : new int[] { 16, 3, 48, 48 };
+			network = backend.inferenceBackend.bind(backend.modelFolder + "/" + model, shape);
+			Random random = new Random(42);
+			input = new float[shape[0] * shape[1] * shape[2] * shape[3]];
+			for (int i = 0; i < input.length; i++) {
+				input[i] = random.nextFloat() * 2 - 1;
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Detection {
+
+		public MtcnnService mtcnnService;
+		public INDArray image3HW;
+
+		@Setup(Level.Trial)
+		public void setUp(Backend backend) throws IOException {
+			BufferedImage bufferedImage = ImageIO.read(
+					new DefaultResourceLoader().getResource("classpath:/VikiMaxiAdi.jpg").getInputStream());
+			image3HW = new Java2DNativeImageLoader().asMatrix(bufferedImage)
+					.get(point(0), interval(0, 3), all(), all()).dup();
+			mtcnnService = new MtcnnService(30, 0.709, new double[] { 0.6, 0.7, 0.7 },
+					(int) image3HW.size(2), (int) image3HW.size(1), 1, ModelLocation.DEFAULT_LOCATION,
+					backend.inferenceBackend);
+			mtcnnService.setBatchBuckets(MxNetLoader.DEFAULT_BATCH_BUCKETS);
+		}
+	}
+
+	@Benchmark
+	public float[][] network(Networks networks) {
+		return networks.network.run(networks.input);
+	}
+
+	@Benchmark
+	public FaceAnnotation[] faceDetection(Detection detection) throws IOException {
+		return detection.mtcnnService.faceDetection(detection.image3HW);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(InferenceBackendBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
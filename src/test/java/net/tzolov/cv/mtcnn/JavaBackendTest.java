@@ -0,0 +1,182 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
+import static org.nd4j.linalg.indexing.NDArrayIndex.point;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.ImageIO;
+import org.datavec.image.loader.Java2DNativeImageLoader;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.springframework.core.io.DefaultResourceLoader;
+
+public class JavaBackendTest {
+
+  @Test
+  public void testConvolutionAndPooling() {
+    Random random = new Random(42);
+    int samples = 2;
+    int channels = 3;
+    int height = 37;
+    int width = 41;
+    int filters = 5;
+    float[] weight = gaussian(random, filters * channels * 3 * 3);
+    float[] bias = gaussian(random, filters);
+    float[] input = gaussian(random, samples * channels * height * width);
+
+    Map<String, String> convolution = new HashMap<>();
+    convolution.put("kernel", "(3,3)");
+    convolution.put("stride", "(2,1)");
+    convolution.put("pad", "(1,1)");
+    convolution.put("num_filter", String.valueOf(filters));
+    Map<String, String> pooling = new HashMap<>();
+    pooling.put("kernel", "(3,3)");
+    pooling.put("stride", "(2,2)");
+    pooling.put("pool_type", "max");
+    pooling.put("pooling_convention", "full");
+    Map<String, JavaModel.Param> params = new HashMap<>();
+    params.put("weight", new JavaModel.Param(new int[] {filters, channels, 3, 3}, weight));
+    params.put("bias", new JavaModel.Param(new int[] {filters}, bias));
+    JavaModel model = new JavaModel(Arrays.asList(
+        new JavaModel.Node("null", "data", new HashMap<>(), new int[0]),
+        new JavaModel.Node("null", "weight", new HashMap<>(), new int[0]),
+        new JavaModel.Node("null", "bias", new HashMap<>(), new int[0]),
+        new JavaModel.Node("Convolution", "conv", convolution, new int[] {0, 1, 2}),
+        new JavaModel.Node("Pooling", "pool", pooling, new int[] {3})), new int[] {3, 4}, params);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      JavaNetwork network = new JavaNetwork(model, new int[] {samples, channels, height, width}, executor, 3);
+      float[][] outputs = network.run(input);
+
+      int[] convShape = network.outputShape(0);
+      assertArrayEquals(new int[] {samples, filters, 19, 41}, convShape);
+      // full pooling convention, 1 + ceil((19 - 3) / 2) and 1 + ceil((41 - 3) / 2)
+      assertArrayEquals(new int[] {samples, filters, 9, 20}, network.outputShape(1));
+
+      float[] expected = new float[outputs[0].length];
+      for (int n = 0; n < samples; n++) {
+        for (int f = 0; f < filters; f++) {
+          for (int oy = 0; oy < convShape[2]; oy++) {
+            for (int ox = 0; ox < convShape[3]; ox++) {
+              double sum = bias[f];
+              for (int c = 0; c < channels; c++) {
+                for (int ky = 0; ky < 3; ky++) {
+                  for (int kx = 0; kx < 3; kx++) {
+                    int iy = oy * 2 + ky - 1;
+                    int ix = ox + kx - 1;
+                    if (iy >= 0 && iy < height && ix >= 0 && ix < width) {
+                      sum += weight[((f * channels + c) * 3 + ky) * 3 + kx]
+                          * input[((n * channels + c) * height + iy) * width + ix];
+                    }
+                  }
+                }
+              }
+              expected[((n * filters + f) * convShape[2] + oy) * convShape[3] + ox] = (float) sum;
+            }
+          }
+        }
+      }
+      assertArrayEquals(expected, outputs[0], 1e-4f);
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testProposeNetShape() throws IOException {
+    String modelFolder = ModelLocation.resolve(ModelLocation.DEFAULT_LOCATION);
+    JavaBackend backend = new JavaBackend();
+    for (int length = 12; length < 40; length++) {
+      InferenceBackend.Network network = backend.bind(modelFolder + "/det1", new int[] {1, 3, length, 2 * length});
+      float[][] outputs = network.run(new float[3 * length * 2 * length]);
+
+      assertEquals(2, outputs.length);
+      assertArrayEquals(new int[] {1, 4, MtcnnUtil.proposeNetCells(length), MtcnnUtil.proposeNetCells(2 * length)},
+          network.outputShape(0));
+    }
+  }
+
+  @Test
+  public void testSameOutputsAsMxNet() throws IOException {
+    String modelFolder = ModelLocation.resolve(ModelLocation.DEFAULT_LOCATION);
+    Random random = new Random(42);
+    int[][] shapes = new int[][] {{1, 3, 60, 45}, {16, 3, 24, 24}, {16, 3, 48, 48}};
+    String[] models = new String[] {"det1", "det2", "det3"};
+    for (int m = 0; m < models.length; m++) {
+      int[] shape = shapes[m];
+      float[] input = new float[shape[0] * shape[1] * shape[2] * shape[3]];
+      for (int i = 0; i < input.length; i++) {
+        input[i] = random.nextFloat() * 2 - 1;
+      }
+
+      float[][] expected = MxNetBackend.cpu().bind(modelFolder + "/" + models[m], shape).run(input);
+      float[][] actual = new JavaBackend().bind(modelFolder + "/" + models[m], shape).run(input);
+
+      assertEquals(expected.length, actual.length);
+      for (int o = 0; o < expected.length; o++) {
+        assertArrayEquals(models[m] + " output " + o, expected[o], actual[o], 1e-4f);
+      }
+    }
+  }
+
+  @Test
+  public void testSameDetectionsAsMxNet() throws IOException {
+    Java2DNativeImageLoader imageLoader = new Java2DNativeImageLoader();
+    INDArray image3HW = imageLoader.asMatrix(ImageIO.read(
+        new DefaultResourceLoader().getResource("classpath:/VikiMaxiAdi.jpg").getInputStream()))
+        .get(point(0), interval(0, 3), all(), all()).dup();
+    int height = (int) image3HW.size(1);
+    int width = (int) image3HW.size(2);
+    double[] thresholds = new double[] {0.6, 0.7, 0.7};
+
+    FaceAnnotation[] expected = new MtcnnService(20, 0.709, thresholds, width, height, 1)
+        .faceDetection(image3HW);
+    FaceAnnotation[] actual = new MtcnnService(20, 0.709, thresholds, width, height, 1,
+        ModelLocation.DEFAULT_LOCATION, new JavaBackend()).faceDetection(image3HW);
+
+    assertTrue(expected.length > 0);
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      FaceAnnotation.BoundingBox e = expected[i].getBoundingBox();
+      FaceAnnotation.BoundingBox a = actual[i].getBoundingBox();
+      assertTrue(Math.abs(e.getX() - a.getX()) <= 1 && Math.abs(e.getY() - a.getY()) <= 1
+          && Math.abs(e.getW() - a.getW()) <= 1 && Math.abs(e.getH() - a.getH()) <= 1);
+      assertEquals(expected[i].getConfidence(), actual[i].getConfidence(), 1e-3);
+    }
+  }
+
+  private static float[] gaussian(Random random, int length) {
+    float[] values = new float[length];
+    for (int i = 0; i < length; i++) {
+      values[i] = (float) random.nextGaussian();
+    }
+    return values;
+  }
+}
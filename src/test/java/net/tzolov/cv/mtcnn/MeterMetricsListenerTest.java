@@ -0,0 +1,127 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.tzolov.cv.mtcnn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+public class MeterMetricsListenerTest {
+
+  /** Keeps every recorded value, keyed by the meter name and its tags. */
+  private static class RecordingSink implements MeterMetricsListener.MeterSink {
+
+    private final Map<String, List<Double>> meters = new ConcurrentHashMap<>();
+
+    @Override
+    public void recordTime(String name, long nanos, String... tags) {
+      this.record(name, nanos, tags);
+    }
+
+    @Override
+    public void recordValue(String name, double value, String... tags) {
+      this.record(name, value, tags);
+    }
+
+    @Override
+    public void increment(String name, double amount, String... tags) {
+      this.record(name, amount, tags);
+    }
+
+    private void record(String name, double value, String... tags) {
+      this.meters.computeIfAbsent(name + Arrays.toString(tags), key -> new ArrayList<>()).add(value);
+    }
+
+    List<Double> values(String name, String... tags) {
+      List<Double> values = this.meters.get(name + Arrays.toString(tags));
+      assertNotNull("No " + name + Arrays.toString(tags) + " meter in " + this.meters.keySet(), values);
+      return values;
+    }
+  }
+
+  @Test
+  public void testDetectionTimingsAndCandidates() throws IOException {
+    INDArray image3HW = DetectionAssertions.loadImage("classpath:/VikiMaxiAdi.jpg");
+    MtcnnService mtcnnService = new MtcnnService(20, 0.709, new double[] {0.6, 0.7, 0.7},
+        (int) image3HW.size(2), (int) image3HW.size(1));
+    RecordingSink sink = new RecordingSink();
+    mtcnnService.setMetricsListener(new MeterMetricsListener(sink));
+
+    DetectionTrace trace = new DetectionTrace();
+    FaceAnnotation[] faces = mtcnnService.faceDetection(image3HW, trace);
+    assertTrue(faces.length > 0);
+
+    for (DetectionMetricsListener.Stage stage : DetectionMetricsListener.Stage.values()) {
+      String tag = stage.name().toLowerCase(Locale.ROOT);
+      assertTrue(stage + " time", trace.getStageNanos(stage) > 0);
+      assertTrue(stage + " predictor calls", trace.getPredictorCalls(stage) > 0);
+      assertEquals(trace.getStageNanos(stage), sink.values("mtcnn.stage", "stage", tag).get(0), 0);
+      assertEquals(trace.getStageCandidates(stage),
+          sink.values("mtcnn.stage.candidates", "stage", tag).get(0), 0);
+    }
+    assertEquals(faces.length, trace.getStageCandidates(DetectionMetricsListener.Stage.OUTPUT));
+    assertTrue(trace.getStageCandidates(DetectionMetricsListener.Stage.REFINE)
+        >= trace.getStageCandidates(DetectionMetricsListener.Stage.OUTPUT));
+
+    assertEquals(mtcnnService.scalesFor((int) image3HW.size(1), (int) image3HW.size(2)).size(),
+        trace.getScaleCount());
+    assertEquals(trace.getScaleCount(), sink.values("mtcnn.scale").size());
+
+    for (String pass : new String[] {"scale", "refine", "output"}) {
+      List<Double> candidates = sink.values("mtcnn.nms.candidates", "pass", pass);
+      List<Double> picked = sink.values("mtcnn.nms.picked", "pass", pass);
+      assertEquals(candidates.size(), picked.size());
+      for (int i = 0; i < picked.size(); i++) {
+        assertTrue(pass + " picked " + picked.get(i) + " of " + candidates.get(i),
+            picked.get(i) <= candidates.get(i) && (picked.get(i) > 0 || candidates.get(i) == 0));
+      }
+    }
+    assertEquals(faces.length, sink.values("mtcnn.nms.picked", "pass", "output").get(0), 0);
+  }
+
+  @Test
+  public void testTraceRecordsTheDecodeTime() throws IOException {
+    byte[] encoded = DetectionAssertions.encodedImage("classpath:/VikiMaxiAdi.jpg");
+    MtcnnService mtcnnService = new MtcnnService(20, 0.709, new double[] {0.6, 0.7, 0.7}, 1);
+    RecordingSink sink = new RecordingSink();
+    mtcnnService.setMetricsListener(new MeterMetricsListener(sink));
+
+    DetectionTrace encodedTrace = new DetectionTrace();
+    FaceAnnotation[] faces = mtcnnService.faceDetection(encoded, encodedTrace);
+    assertTrue(faces.length > 0);
+    assertTrue(encodedTrace.getDecodeNanos() > 0);
+    assertEquals(encodedTrace.getDecodeNanos(), sink.values("mtcnn.image.decode").get(0), 0);
+    assertEquals(faces.length, encodedTrace.getStageCandidates(DetectionMetricsListener.Stage.OUTPUT));
+
+    DetectionTrace bufferedTrace = new DetectionTrace();
+    mtcnnService.faceDetection(ImageIO.read(new ByteArrayInputStream(encoded)), bufferedTrace);
+    assertTrue(bufferedTrace.getDecodeNanos() > 0);
+    assertEquals(bufferedTrace.getDecodeNanos(), sink.values("mtcnn.image.decode").get(1), 0);
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.junit.Test;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.Resource;
+
+public class ModelLocationTest {
+
+  @Test
+  public void testClasspathLocation() throws IOException {
+    String folder = ModelLocation.resolve(ModelLocation.DEFAULT_LOCATION);
+
+    for (String model : ModelLocation.MODELS) {
+      for (String suffix : ModelLocation.MODEL_FILE_SUFFIXES) {
+        assertTrue(model + suffix, new File(folder, model + suffix).isFile());
+      }
+    }
+    // resolved once per location
+    assertEquals(folder, ModelLocation.resolve(ModelLocation.DEFAULT_LOCATION));
+  }
+
+  @Test
+  public void testFileSystemLocation() throws IOException {
+    String folder = ModelLocation.resolve(ModelLocation.DEFAULT_LOCATION);
+
+    assertEquals(folder, ModelLocation.resolve(folder));
+  }
+
+  @Test
+  public void testExtractToTheSharedCache() throws IOException {
+    Path cache = Files.createTempDirectory("mtcnn-cache-");
+    Resource folder = new DefaultResourceLoader().getResource(ModelLocation.DEFAULT_LOCATION);
+
+    Path first = ModelLocation.extract(folder, ModelLocation.DEFAULT_LOCATION, cache);
+    // a second process extracting the same models reuses the published folder
+    Path second = ModelLocation.extract(folder, ModelLocation.DEFAULT_LOCATION, cache);
+
+    assertEquals(first, second);
+    assertEquals(cache, first.getParent());
+    for (String model : ModelLocation.MODELS) {
+      for (String suffix : ModelLocation.MODEL_FILE_SUFFIXES) {
+        assertTrue(model + suffix, Files.isRegularFile(first.resolve(model + suffix)));
+      }
+    }
+    // no staging folder left behind
+    try (Stream<Path> files = Files.list(cache)) {
+      assertEquals(1, files.count());
+    }
+  }
+
+  @Test
+  public void testStaleStagingFoldersAreDeleted() throws IOException {
+    Path cache = Files.createTempDirectory("mtcnn-cache-");
+    Path stale = Files.createDirectory(cache.resolve(".staging-stale"));
+    Files.write(stale.resolve("det1-symbol.json"), new byte[] {1});
+    Files.setLastModifiedTime(stale, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2)));
+    // a live extraction of another process
+    Path live = Files.createDirectory(cache.resolve(".staging-live"));
+
+    Path target = ModelLocation.extract(
+        new DefaultResourceLoader().getResource(ModelLocation.DEFAULT_LOCATION), ModelLocation.DEFAULT_LOCATION, cache);
+
+    assertFalse(Files.exists(stale));
+    assertTrue(Files.isDirectory(live));
+    assertTrue(Files.isDirectory(target));
+  }
+
+  @Test
+  public void testIncompletePublishedFolderIsExtractedAgain() throws IOException {
+    Path cache = Files.createTempDirectory("mtcnn-cache-");
+    Resource folder = new DefaultResourceLoader().getResource(ModelLocation.DEFAULT_LOCATION);
+    Path published = ModelLocation.extract(folder, ModelLocation.DEFAULT_LOCATION, cache);
+    // e.g. removed by a temp folder cleaner
+    Files.delete(published.resolve("det2-0000.params"));
+
+    Path target = ModelLocation.extract(folder, ModelLocation.DEFAULT_LOCATION, cache);
+
+    assertEquals(published, target);
+    for (String model : ModelLocation.MODELS) {
+      for (String suffix : ModelLocation.MODEL_FILE_SUFFIXES) {
+        assertTrue(model + suffix, Files.isRegularFile(target.resolve(model + suffix)));
+      }
+    }
+    try (Stream<Path> files = Files.list(cache)) {
+      assertEquals(1, files.count());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testMissingModelFiles() throws IOException {
+    ModelLocation.resolve(Files.createTempDirectory("mtcnn-empty-").toString());
+  }
+}
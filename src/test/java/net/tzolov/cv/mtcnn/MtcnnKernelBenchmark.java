@@ -0,0 +1,280 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.javacpp.opencv_core;
+import org.bytedeco.javacpp.opencv_imgproc;
+import org.datavec.image.loader.Java2DNativeImageLoader;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.point;
+
+/**
+ * Micro benchmarks of the pipeline kernels on synthetic candidates. No models are needed.
+ *
+ * <p>Run with the GC profiler (allocation rate per operation) enabled: {@code MtcnnKernelBenchmark.main}.
+ *
+ * @see MtcnnStageBenchmark
+ */
+@Fork(value = 1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MtcnnKernelBenchmark {
+
+	/**
+	 * Random, heavily overlapping candidates spread over a 1280x720 frame.
+	 */
+	@State(Scope.Thread)
+	public static class Candidates {
+
+		@Param({ "10", "100", "1000", "5000" })
+		public int candidates;
+
+		public INDArray totalBoxes;
+		public BoxBuffer boxes;
+		public int[] picks;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			Random random = new Random(42);
+			float[][] rows = new float[candidates][];
+			boxes = new BoxBuffer(candidates);
+			for (int i = 0; i < candidates; i++) {
+				float size = 12 + random.nextFloat() * 200;
+				float x1 = random.nextFloat() * (1280 - size);
+				float y1 = random.nextFloat() * (720 - size);
+				float score = random.nextFloat();
+				rows[i] = new float[] { x1, y1, x1 + size, y1 + size, score, 0, 0, 0, 0 };
+				boxes.add(x1, y1, x1 + size, y1 + size, score, 0, 0, 0, 0);
+			}
+			totalBoxes = Nd4j.create(rows);
+			picks = new int[candidates];
+		}
+	}
+
+	/**
+	 * Synthetic P-Net outputs of the largest pyramid level of the given resolution.
+	 */
+	@State(Scope.Thread)
+	public static class ProposeNetOutput {
+
+		@Param({ "640x480", "1280x720", "1920x1080" })
+		public String resolution;
+
+		public float[] prob;
+		public float[] reg;
+		public int rows;
+		public int cols;
+		public INDArray probMap;
+		public INDArray regMap;
+		public BoxBuffer boxes;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			String[] wh = resolution.split("x");
+			// largest scale for the min face size of 20
+			double scale = 12.0 / 20;
+			rows = (int) Math.ceil((Math.ceil(Integer.parseInt(wh[0]) * scale) - 12) / 2 + 1);
+			cols = (int) Math.ceil((Math.ceil(Integer.parseInt(wh[1]) * scale) - 12) / 2 + 1);
+
+			Random random = new Random(42);
+			prob = new float[2 * rows * cols];
+			reg = new float[4 * rows * cols];
+			for (int i = 0; i < prob.length; i++) {
+				prob[i] = random.nextFloat();
+			}
+			for (int i = 0; i < reg.length; i++) {
+				reg[i] = random.nextFloat() - 0.5f;
+			}
+			probMap = Nd4j.create(prob, new int[] { 1, 2, rows, cols }).permute(0, 2, 3, 1)
+					.get(point(0), all(), all(), point(1));
+			regMap = Nd4j.create(reg, new int[] { 1, 4, rows, cols }).permute(0, 2, 3, 1)
+					.get(point(0), all(), all(), all());
+			boxes = new BoxBuffer(1024);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class CropResize {
+
+		@Param({ "24", "48" })
+		public int size;
+
+		@Param({ "16", "64", "256" })
+		public int patchSize;
+
+		public CropResizeKernel kernel;
+		public FloatBuffer out;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			FloatBuffer image = FloatBuffer.allocate(720 * 1280 * 3);
+			Random random = new Random(42);
+			for (int i = 0; i < image.capacity(); i++) {
+				image.put(i, random.nextInt(256));
+			}
+			kernel = new CropResizeKernel(image, 1280);
+			out = FloatBuffer.allocate(3 * size * size);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Bridge {
+
+		@Param({ "1", "16", "128" })
+		public int batch;
+
+		public TensorBridge bridge;
+		public INDArray contiguous;
+		public INDArray permuted;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			bridge = new TensorBridge(new int[] { batch, 3, 24, 24 });
+			contiguous = Nd4j.rand(new int[] { batch, 3, 24, 24 });
+			permuted = Nd4j.rand(new int[] { batch, 24, 24, 3 }).permute(0, 3, 1, 2);
+		}
+	}
+
+	/**
+	 * Random image and its STAGE 1 pyramid scales, for the min face size of 20.
+	 */
+	@State(Scope.Thread)
+	public static class Pyramid {
+
+		@Param({ "1280x720", "1920x1080", "3840x2160" })
+		public String resolution;
+
+		public INDArray image3HW;
+		public List<Double> scales;
+		public Java2DNativeImageLoader imageLoader;
+		public ImagePyramid pyramid;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			String[] wh = resolution.split("x");
+			int width = Integer.parseInt(wh[0]);
+			int height = Integer.parseInt(wh[1]);
+			image3HW = Nd4j.rand(new int[] { 3, height, width }).muli(255);
+			scales = MtcnnUtil.computeScalePyramid(height, width, 20, 0.709);
+			imageLoader = new Java2DNativeImageLoader();
+			pyramid = new ImagePyramid();
+		}
+	}
+
+	@Benchmark
+	public INDArray nonMaxSuppression(Candidates state) {
+		return MtcnnUtil.nonMaxSuppression(state.totalBoxes, 0.7, MtcnnUtil.NonMaxSuppressionType.Union);
+	}
+
+	@Benchmark
+	public int nonMaxSuppressionPrimitive(Candidates state) {
+		return MtcnnUtil.nonMaxSuppression(state.boxes, 0.7, MtcnnUtil.NonMaxSuppressionType.Union, state.picks);
+	}
+
+	@Benchmark
+	public MtcnnUtil.PadResult pad(Candidates state) {
+		return MtcnnUtil.pad(state.totalBoxes, 1280, 720);
+	}
+
+	@Benchmark
+	public INDArray[] generateBoundingBox(ProposeNetOutput state) {
+		return MtcnnUtil.generateBoundingBox(state.probMap, state.regMap, 0.6, 0.6);
+	}
+
+	@Benchmark
+	public int generateBoundingBoxPrimitive(ProposeNetOutput state) {
+		state.boxes.clear();
+		return MtcnnUtil.generateBoundingBox(state.prob, state.reg, state.rows, state.cols, 0.6, 0.6, state.boxes);
+	}
+
+	@Benchmark
+	public FloatBuffer cropResize(CropResize state) {
+		int p = state.patchSize;
+		state.kernel.resize(p, p, 0, p, 0, p, 100, 100, state.size, true, state.out, 0);
+		return state.out;
+	}
+
+	/** Every level resized from the full image, like the default STAGE 1. Only the last level is kept. */
+	@Benchmark
+	public opencv_core.Mat pyramidDirect(Pyramid state) {
+		opencv_core.Mat level = null;
+		for (double scale : state.scales) {
+			if (level != null) {
+				level.release();
+			}
+			level = state.imageLoader.asMat(state.image3HW);
+			opencv_imgproc.resize(level, level, new opencv_core.Size(
+					(int) Math.ceil(state.image3HW.size(2) * scale), (int) Math.ceil(state.image3HW.size(1) * scale)),
+					0, 0, opencv_imgproc.CV_INTER_AREA);
+		}
+		return level;
+	}
+
+	@Benchmark
+	public ImagePyramid pyramidIncremental(Pyramid state) {
+		return state.pyramid.build(state.imageLoader, state.image3HW, state.scales);
+	}
+
+	@Benchmark
+	public float[] bridgeContiguous(Bridge state) {
+		return state.bridge.load(TensorBridge.contiguous(state.contiguous));
+	}
+
+	@Benchmark
+	public float[] bridgePermuted(Bridge state) {
+		return state.bridge.load(TensorBridge.contiguous(state.permuted));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public int nonMaxSuppressionPrimitive4Threads(Candidates state) {
+		return MtcnnUtil.nonMaxSuppression(state.boxes, 0.7, MtcnnUtil.NonMaxSuppressionType.Union, state.picks);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(MtcnnKernelBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
@@ -27,6 +27,8 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import javax.imageio.ImageIO;
 import org.datavec.image.loader.Java2DNativeImageLoader;
 import org.junit.Before;
@@ -118,6 +120,25 @@ public class MtcnnServiceTest {
     }
   }
 
+  @Test
+  public void testParallelStageOneMatchesTheSequentialRun() throws IOException {
+    INDArray image3HW = DetectionAssertions.loadImage("classpath:/VikiMaxiAdi.jpg");
+    mtcnnService = new MtcnnService(20, 0.709, new double[] {0.6, 0.7, 0.7},
+        (int) image3HW.size(2), (int) image3HW.size(1));
+    String sequential = toJson(mtcnnService.faceDetection(image3HW));
+
+    ExecutorService stageOneExecutor = Executors.newFixedThreadPool(4);
+    try {
+      mtcnnService.setStageOneExecutor(stageOneExecutor);
+      for (int run = 0; run < 3; run++) {
+        assertThat(toJson(mtcnnService.faceDetection(image3HW)), equalTo(sequential));
+      }
+    }
+    finally {
+      stageOneExecutor.shutdownNow();
+    }
+  }
+
   private String toJson(FaceAnnotation[] faceAnnotations) throws JsonProcessingException {
     return new ObjectMapper().writeValueAsString(faceAnnotations);
   }
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.tzolov.cv.mtcnn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+public class MtcnnServiceWarmUpTest {
+
+  @After
+  public void after() {
+    PNetPredictorCache.shared().setMaxEntries(PNetPredictorCache.DEFAULT_MAX_ENTRIES);
+  }
+
+  @Test
+  public void testWarmUpReportsTheServiceReady() throws IOException {
+    INDArray image3HW = DetectionAssertions.loadImage("classpath:/VikiMaxiAdi.jpg");
+    MtcnnService mtcnnService = new MtcnnService(20, 0.709, new double[] {0.6, 0.7, 0.7},
+        (int) image3HW.size(2), (int) image3HW.size(1), 2);
+    AtomicInteger ready = new AtomicInteger();
+    mtcnnService.setMetricsListener(new DetectionMetricsListener() {
+      @Override
+      public void serviceReady(long nanos) {
+        ready.incrementAndGet();
+      }
+    });
+    assertFalse(mtcnnService.isReady());
+
+    long timeToReady = mtcnnService.warmUp(null);
+
+    assertTrue(mtcnnService.isReady());
+    assertTrue(timeToReady > 0);
+    assertEquals(timeToReady, mtcnnService.getTimeToReady(TimeUnit.NANOSECONDS));
+    // ready once, a second warm-up keeps the first time to ready
+    assertEquals(timeToReady, mtcnnService.warmUp(null));
+    assertEquals(1, ready.get());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testTimeToReadyBeforeTheWarmUp() throws IOException {
+    new MtcnnService(20, 0.709, new double[] {0.6, 0.7, 0.7}, 640, 480).getTimeToReady(TimeUnit.NANOSECONDS);
+  }
+
+  @Test
+  public void testWarmedPredictorsAreNotEvicted() throws IOException {
+    INDArray image3HW = DetectionAssertions.loadImage("classpath:/VikiMaxiAdi.jpg");
+    MtcnnService mtcnnService = new MtcnnService(20, 0.709, new double[] {0.6, 0.7, 0.7},
+        (int) image3HW.size(2), (int) image3HW.size(1), 4);
+    PNetPredictorCache cache = PNetPredictorCache.shared();
+    // far fewer entries than the pool size times the pyramid levels
+    cache.setMaxEntries(2);
+
+    mtcnnService.warmUp(null);
+    int levels = mtcnnService.scalesFor((int) image3HW.size(1), (int) image3HW.size(2)).size();
+    assertTrue(cache.getMaxEntries() >= 4 * levels);
+
+    long misses = cache.getStats().getMisses();
+    mtcnnService.faceDetection(image3HW);
+    assertEquals("P-Net predictors bound after the warm-up", misses, cache.getStats().getMisses());
+  }
+}
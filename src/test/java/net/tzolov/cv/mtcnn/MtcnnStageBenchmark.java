@@ -0,0 +1,216 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+
+import org.datavec.image.loader.Java2DNativeImageLoader;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.core.io.DefaultResourceLoader;
+
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
+import static org.nd4j.linalg.indexing.NDArrayIndex.point;
+
+/**
+ * Per stage benchmarks of the {@link MtcnnService} pipeline, on the real models.
+ *
+ * <p>The test images cover the face count (1, 3 and many faces) and the image is rescaled to cover the
+ * resolution. Each stage is measured on its own, with the inputs of the previous stages computed once in
+ * the trial setup. The end to end detection has single and multi threaded variants, for the ND4J and the
+ * primitive pipelines. Compare their {@code gc.alloc.rate.norm} with the GC profiler of {@link #main}.
+ *
+ * @see MtcnnKernelBenchmark
+ */
+@Fork(value = 1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MtcnnStageBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class ExecutionPlan {
+
+		@Param({ "Anthony_Hopkins_0002.jpg", "VikiMaxiAdi.jpg", "pivotal-ipo-nyse.jpg" })
+		public String image;
+
+		@Param({ "0.5", "1.0", "2.0" })
+		public double resolution;
+
+		public MtcnnService mtcnnService;
+		public MtcnnService primitiveService;
+		public INDArray image3HW;
+		public INDArray imageHW3;
+		public INDArray stageOneBoxes;
+		public MtcnnUtil.PadResult stageOnePad;
+		public INDArray refineNetInput;
+		public List<INDArray> refineNetOutput;
+		public INDArray refinedBoxes;
+		public Object[] outputNetInput;
+		public List<INDArray> outputNetOutput;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			Nd4j.ENFORCE_NUMERICAL_STABILITY = false;
+
+			BufferedImage bufferedImage = ImageIO.read(
+					new DefaultResourceLoader().getResource("classpath:/" + image).getInputStream());
+			int height = (int) Math.round(bufferedImage.getHeight() * resolution);
+			int width = (int) Math.round(bufferedImage.getWidth() * resolution);
+			image3HW = new Java2DNativeImageLoader(height, width, 3).asMatrix(bufferedImage)
+					.get(point(0), interval(0, 3), all(), all()).dup();
+			imageHW3 = image3HW.permute(1, 2, 0);
+
+			mtcnnService = new MtcnnService(30, 0.709, new double[] { 0.6, 0.7, 0.7 }, width, height, 4);
+			mtcnnService.setBatchBuckets(MxNetLoader.DEFAULT_BATCH_BUCKETS);
+			primitiveService = new MtcnnService(30, 0.709, new double[] { 0.6, 0.7, 0.7 }, width, height, 4);
+			primitiveService.setBatchBuckets(MxNetLoader.DEFAULT_BATCH_BUCKETS);
+			primitiveService.setPrimitivePipeline(true);
+
+			Object[] stageOne = mtcnnService.stageOne(image3HW);
+			stageOneBoxes = (INDArray) stageOne[0];
+			stageOnePad = (MtcnnUtil.PadResult) stageOne[1];
+			if (stageOneBoxes.isEmpty()) {
+				throw new IllegalStateException("No STAGE 1 candidates in " + image);
+			}
+
+			refineNetInput = mtcnnService.refineNetInput(imageHW3, (int) stageOneBoxes.size(0), stageOnePad);
+			refineNetOutput = mtcnnService.runRefineNet(refineNetInput);
+			refinedBoxes = mtcnnService.refineNetResult(stageOneBoxes, refineNetOutput, DetectionMetricsListener.NO_OP);
+			if (refinedBoxes.isEmpty()) {
+				throw new IllegalStateException("No STAGE 2 candidates in " + image);
+			}
+
+			outputNetInput = mtcnnService.outputNetInput(imageHW3, refinedBoxes);
+			outputNetOutput = mtcnnService.runOutputNet((INDArray) outputNetInput[1]);
+		}
+	}
+
+	/**
+	 * Pyramid level of the per scale P-Net benchmark, a state of its own so that the other benchmarks do
+	 * not run once per level.
+	 */
+	@State(Scope.Benchmark)
+	public static class ScalePlan {
+
+		/** Pyramid level benchmarked by the per scale P-Net benchmark, 0 is the largest scale. */
+		@Param({ "0", "3" })
+		public int level;
+
+		public double scale;
+
+		@Setup(Level.Trial)
+		public void setUp(ExecutionPlan plan) {
+			List<Double> scales = plan.mtcnnService.scalesFor((int) plan.image3HW.size(1), (int) plan.image3HW.size(2));
+			scale = scales.get(Math.min(level, scales.size() - 1));
+		}
+	}
+
+	@Benchmark
+	public INDArray proposeScale(ExecutionPlan plan, ScalePlan scalePlan) throws IOException {
+		return plan.mtcnnService.proposeScale(plan.image3HW, scalePlan.scale);
+	}
+
+	@Benchmark
+	public Object[] preparationStage(ExecutionPlan plan) throws IOException {
+		return plan.mtcnnService.stageOne(plan.image3HW);
+	}
+
+	@Benchmark
+	public INDArray computeTempImage24(ExecutionPlan plan) {
+		return plan.mtcnnService.computeTempImage(
+				plan.imageHW3, (int) plan.stageOneBoxes.size(0), plan.stageOnePad, 24, true);
+	}
+
+	@Benchmark
+	public INDArray refinementStage(ExecutionPlan plan) throws IOException {
+		INDArray input = plan.mtcnnService.refineNetInput(
+				plan.imageHW3, (int) plan.stageOneBoxes.size(0), plan.stageOnePad);
+		return plan.mtcnnService.refineNetResult(
+				plan.stageOneBoxes, plan.mtcnnService.runRefineNet(input), DetectionMetricsListener.NO_OP);
+	}
+
+	@Benchmark
+	public List<INDArray> refineNet(ExecutionPlan plan) {
+		return plan.mtcnnService.runRefineNet(plan.refineNetInput);
+	}
+
+	@Benchmark
+	public INDArray[] outputStage(ExecutionPlan plan) throws IOException {
+		Object[] input = plan.mtcnnService.outputNetInput(plan.imageHW3, plan.refinedBoxes);
+		return plan.mtcnnService.outputNetResult(
+				(INDArray) input[0], plan.mtcnnService.runOutputNet((INDArray) input[1]), DetectionMetricsListener.NO_OP);
+	}
+
+	@Benchmark
+	public List<INDArray> outputNet(ExecutionPlan plan) {
+		return plan.mtcnnService.runOutputNet((INDArray) plan.outputNetInput[1]);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public FaceAnnotation[] faceDetection(ExecutionPlan plan) throws IOException {
+		return plan.mtcnnService.faceDetection(plan.image3HW);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public FaceAnnotation[] faceDetection4Threads(ExecutionPlan plan) throws IOException {
+		return plan.mtcnnService.faceDetection(plan.image3HW);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public FaceAnnotation[] faceDetectionPrimitive(ExecutionPlan plan) throws IOException {
+		return plan.primitiveService.faceDetection(plan.image3HW);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public FaceAnnotation[] faceDetectionPrimitive4Threads(ExecutionPlan plan) throws IOException {
+		return plan.primitiveService.faceDetection(plan.image3HW);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(MtcnnStageBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
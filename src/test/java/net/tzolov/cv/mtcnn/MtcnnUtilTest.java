@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.point;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/** @author Christian Tzolov */
+public class MtcnnUtilTest {
+
+  @Test
+  public void testPrimitiveGenerateBoundingBox() {
+    int rows = 23;
+    int cols = 31;
+    double scale = 0.3;
+    Random random = new Random(42);
+
+    float[] prob = new float[2 * rows * cols];
+    float[] reg = new float[4 * rows * cols];
+    for (int i = 0; i < prob.length; i++) {
+      prob[i] = random.nextFloat();
+    }
+    for (int i = 0; i < reg.length; i++) {
+      reg[i] = random.nextFloat() - 0.5f;
+    }
+
+    // same permutation as MxNetLoader#runPropose
+    INDArray probMap = Nd4j.create(prob, new int[] {1, 2, rows, cols}).permute(0, 2, 3, 1);
+    INDArray regMap = Nd4j.create(reg, new int[] {1, 4, rows, cols}).permute(0, 2, 3, 1);
+    INDArray expected =
+        MtcnnUtil.generateBoundingBox(
+            probMap.get(point(0), all(), all(), point(1)),
+            regMap.get(point(0), all(), all(), all()),
+            scale,
+            0.6)[0];
+
+    BoxBuffer boxes = new BoxBuffer(1);
+    int count = MtcnnUtil.generateBoundingBox(prob, reg, rows, cols, scale, 0.6, boxes);
+
+    assertThat(count, equalTo(expected.rows()));
+    assertThat(boxes.toINDArray(), equalTo(expected));
+  }
+
+  @Test
+  public void testTiledGenerateBoundingBox() {
+    int rows = 23;
+    int cols = 31;
+    double scale = 0.3;
+    Random random = new Random(42);
+
+    float[] prob = new float[2 * rows * cols];
+    float[] reg = new float[4 * rows * cols];
+    for (int i = 0; i < prob.length; i++) {
+      prob[i] = random.nextFloat();
+    }
+    for (int i = 0; i < reg.length; i++) {
+      reg[i] = random.nextFloat() - 0.5f;
+    }
+    BoxBuffer expected = new BoxBuffer(1);
+    MtcnnUtil.generateBoundingBox(prob, reg, rows, cols, scale, 0.6, expected);
+
+    // two tiles of 14 heatmap rows, the rows past the heatmap are padding with face scores
+    int tileRows = 14;
+    BoxBuffer boxes = new BoxBuffer(1);
+    for (int rowOffset = 0; rowOffset < rows; rowOffset += 12) {
+      float[] tileProb = new float[2 * tileRows * cols];
+      float[] tileReg = new float[4 * tileRows * cols];
+      Arrays.fill(tileProb, 1);
+      for (int r = 0; r < tileRows && rowOffset + r < rows; r++) {
+        for (int c = 0; c < cols; c++) {
+          for (int k = 0; k < 2; k++) {
+            tileProb[(k * tileRows + r) * cols + c] = prob[(k * rows + rowOffset + r) * cols + c];
+          }
+          for (int k = 0; k < 4; k++) {
+            tileReg[(k * tileRows + r) * cols + c] = reg[(k * rows + rowOffset + r) * cols + c];
+          }
+        }
+      }
+      int validRows = Math.min(12, rows - rowOffset);
+      MtcnnUtil.generateBoundingBox(tileProb, tileReg, tileRows, cols, rowOffset, 0, validRows, cols, scale, 0.6,
+          boxes);
+    }
+
+    assertThat(boxes.size(), equalTo(expected.size()));
+    assertThat(boxes.toINDArray(), equalTo(expected.toINDArray()));
+  }
+
+  @Test
+  public void testProposeNetCells() {
+    // 12x12 receptive field, stride 2, the pooling rounds up
+    assertThat(MtcnnUtil.proposeNetCells(12), equalTo(1));
+    assertThat(MtcnnUtil.proposeNetCells(13), equalTo(2));
+    assertThat(MtcnnUtil.proposeNetCells(14), equalTo(2));
+    assertThat(MtcnnUtil.proposeNetCells(100), equalTo(45));
+  }
+}
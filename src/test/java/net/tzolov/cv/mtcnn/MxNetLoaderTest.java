@@ -1,8 +1,14 @@
 package net.tzolov.cv.mtcnn;
 
 import java.io.IOException;
+import java.util.List;
 
 import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 
 public class MxNetLoaderTest {
 	@Test
@@ -10,4 +16,54 @@ public class MxNetLoaderTest {
         // String modelPath = "/home/dzly/projects/countr_face_recognition/mtcnn-java/src/main/resources/mxnet_model/det1";
         // MxNetLoader mxNetLoader = new MxNetLoader(new int[]{1, 3, 200, 200}, modelPath);    
     }
+
+	@Test
+	public void testBatchBucketsAreSorted() {
+		assertArrayEquals(new int[] { 1, 16, 32 }, MxNetLoader.validBatchBuckets(new int[] { 32, 1, 16 }));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testZeroBatchBucket() {
+		MxNetLoader.validBatchBuckets(new int[] { 16, 0 });
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEmptyBatchBuckets() {
+		MxNetLoader.validBatchBuckets(new int[0]);
+	}
+
+	@Test
+	public void testBatchedRefineMatchesThePerCandidateRun() throws IOException {
+		assertBatchedMatchesPerCandidate("det2", 24, false);
+	}
+
+	@Test
+	public void testBatchedOutputMatchesThePerCandidateRun() throws IOException {
+		assertBatchedMatchesPerCandidate("det3", 48, true);
+	}
+
+	/**
+	 * 37 candidates run as a 32 batch and a zero padded 16 batch, against one predictor call per candidate.
+	 */
+	private static void assertBatchedMatchesPerCandidate(String model, int size, boolean outputNet) throws IOException {
+		String modelPath = ModelLocation.resolve(ModelLocation.DEFAULT_LOCATION) + "/" + model;
+		Nd4j.getRandom().setSeed(42);
+		INDArray candidates = Nd4j.rand(new int[] { 37, 3, size, size }).muli(2).subi(1);
+
+		try (MxNetLoader loader = new MxNetLoader(new int[] { 1, 3, size, size }, modelPath)) {
+			List<INDArray> expected = outputNet ? loader.runOutput(candidates) : loader.runRefine(candidates);
+			assertEquals(37, loader.getPredictorCalls());
+
+			loader.setBatchBuckets(16, 32);
+			List<INDArray> actual = outputNet ? loader.runOutput(candidates) : loader.runRefine(candidates);
+			assertEquals(37 + 2, loader.getPredictorCalls());
+
+			assertEquals(expected.size(), actual.size());
+			for (int o = 0; o < expected.size(); o++) {
+				assertArrayEquals(expected.get(o).shape(), actual.get(o).shape());
+				assertArrayEquals("Output " + o, expected.get(o).dup().data().asFloat(),
+						actual.get(o).dup().data().asFloat(), 1e-4f);
+			}
+		}
+	}
 }
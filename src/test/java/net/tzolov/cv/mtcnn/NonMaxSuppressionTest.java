@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/** @author Christian Tzolov */
+public class NonMaxSuppressionTest {
+
+  @Test
+  public void testOverlappingBoxes() {
+    float[] x1 = {10, 12, 100};
+    float[] y1 = {10, 11, 100};
+    float[] x2 = {50, 52, 140};
+    float[] y2 = {50, 50, 140};
+    float[] s = {0.8f, 0.9f, 0.7f};
+    int[] picks = new int[3];
+
+    int count =
+        new NonMaxSuppression()
+            .apply(x1, y1, x2, y2, s, 3, 0.5, MtcnnUtil.NonMaxSuppressionType.Union, picks);
+
+    assertThat(Arrays.toString(Arrays.copyOf(picks, count)), equalTo("[1, 2]"));
+  }
+
+  @Test
+  public void testSameAsGreedyReference() {
+    Random random = new Random(666);
+    for (MtcnnUtil.NonMaxSuppressionType type : MtcnnUtil.NonMaxSuppressionType.values()) {
+      for (int n : new int[] {1, 10, 300, 5000}) {
+        float[][] boxes = randomBoxes(random, n);
+        int[] expected = greedyReference(boxes, n, 0.5, type);
+
+        int[] picks = new int[n];
+        int bruteForce =
+            new NonMaxSuppression(Integer.MAX_VALUE)
+                .apply(boxes[0], boxes[1], boxes[2], boxes[3], boxes[4], n, 0.5, type, picks);
+        assertThat(Arrays.copyOf(picks, bruteForce), equalTo(expected));
+
+        int grid =
+            new NonMaxSuppression(1)
+                .apply(boxes[0], boxes[1], boxes[2], boxes[3], boxes[4], n, 0.5, type, picks);
+        assertThat(Arrays.copyOf(picks, grid), equalTo(expected));
+      }
+    }
+  }
+
+  private static float[][] randomBoxes(Random random, int n) {
+    float[][] boxes = new float[5][n];
+    for (int i = 0; i < n; i++) {
+      float size = 12 + random.nextFloat() * 100;
+      boxes[0][i] = random.nextFloat() * 1000 - 20;
+      boxes[1][i] = random.nextFloat() * 800 - 20;
+      boxes[2][i] = boxes[0][i] + size;
+      boxes[3][i] = boxes[1][i] + size * (0.8f + random.nextFloat() * 0.4f);
+      boxes[4][i] = random.nextFloat();
+    }
+    return boxes;
+  }
+
+  /** Port of the iterative facenet NMS loop, re-building the candidate list on every pick. */
+  private static int[] greedyReference(
+      float[][] b, int n, double threshold, MtcnnUtil.NonMaxSuppressionType type) {
+    Integer[] sorted = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      sorted[i] = i;
+    }
+    Arrays.sort(sorted, (i, j) -> Float.compare(b[4][i], b[4][j]));
+    List<Integer> idx = new ArrayList<>(Arrays.asList(sorted));
+
+    List<Integer> pick = new ArrayList<>();
+    while (!idx.isEmpty()) {
+      int i = idx.remove(idx.size() - 1);
+      pick.add(i);
+      float areaI = (int) ((b[2][i] - b[0][i] + 1) * (b[3][i] - b[1][i] + 1));
+      List<Integer> retained = new ArrayList<>();
+      for (int j : idx) {
+        float w = Math.max(Math.min(b[2][j], (int) b[2][i]) - Math.max(b[0][j], (int) b[0][i]) + 1, 0f);
+        float h = Math.max(Math.min(b[3][j], (int) b[3][i]) - Math.max(b[1][j], (int) b[1][i]) + 1, 0f);
+        float areaJ = (b[2][j] - b[0][j] + 1) * (b[3][j] - b[1][j] + 1);
+        float o =
+            (type == MtcnnUtil.NonMaxSuppressionType.Min)
+                ? w * h / Math.min(areaJ, areaI)
+                : w * h / (areaJ + areaI - w * h);
+        if (o <= threshold) {
+          retained.add(j);
+        }
+      }
+      idx = retained;
+    }
+    return pick.stream().mapToInt(Integer::intValue).toArray();
+  }
+}
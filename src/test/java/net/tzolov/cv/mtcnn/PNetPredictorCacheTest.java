@@ -0,0 +1,166 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class PNetPredictorCacheTest {
+
+  private final AtomicInteger closed = new AtomicInteger();
+
+  // networks without native memory, counting the closed ones
+  private final InferenceBackend backend = (modelPath, inputShape) -> new InferenceBackend.Network() {
+    @Override
+    public float[][] run(float[] input) {
+      return new float[][] {new float[0], new float[0]};
+    }
+
+    @Override
+    public int[] outputShape(int output) {
+      return new int[] {1, 2, 0, 0};
+    }
+
+    @Override
+    public void close() {
+      closed.incrementAndGet();
+    }
+  };
+
+  @Test
+  public void testEvictedPredictorsAreClosed() {
+    PNetPredictorCache cache = new PNetPredictorCache(2);
+    MxNetLoader first = cache.get(this.backend, "det1", 0, 12, 12);
+    cache.get(this.backend, "det1", 0, 24, 24);
+    assertSame(first, cache.get(this.backend, "det1", 0, 12, 12));
+
+    // evicts the least recently used 24x24 predictor
+    cache.get(this.backend, "det1", 0, 36, 36);
+    assertEquals(1, this.closed.get());
+    assertEquals(1, cache.getStats().getEvictions());
+    assertFalse(first.isClosed());
+
+    MxNetLoader rebound = cache.get(this.backend, "det1", 0, 24, 24);
+    assertFalse(rebound.isClosed());
+    assertEquals(2, cache.getStats().getSize());
+  }
+
+  @Test
+  public void testSetMaxEntriesTrimsTheCache() {
+    PNetPredictorCache cache = new PNetPredictorCache(4);
+    MxNetLoader eldest = cache.get(this.backend, "det1", 0, 12, 12);
+    for (int size = 24; size <= 48; size += 12) {
+      cache.get(this.backend, "det1", 0, size, size);
+    }
+
+    cache.setMaxEntries(1);
+    assertEquals(1, cache.getStats().getSize());
+    assertEquals(3, cache.getStats().getEvictions());
+    assertEquals(3, this.closed.get());
+    assertTrue(eldest.isClosed());
+    assertNotSame(eldest, cache.get(this.backend, "det1", 0, 12, 12));
+  }
+
+  @Test
+  public void testClearClosesThePredictors() {
+    PNetPredictorCache cache = new PNetPredictorCache(4);
+    cache.get(this.backend, "det1", 0, 12, 12);
+    cache.get(this.backend, "det1", 1, 12, 12);
+
+    cache.clear();
+    assertEquals(0, cache.getStats().getSize());
+    assertEquals(2, this.closed.get());
+  }
+
+  @Test
+  public void testLeasedPredictorIsClosedOnRelease() {
+    PNetPredictorCache cache = new PNetPredictorCache(1);
+    PNetPredictorCache.Lease lease = cache.lease(this.backend, "det1", 0, 0, 12, 12);
+
+    // evicts the leased predictor
+    cache.get(this.backend, "det1", 0, 24, 24);
+    assertEquals(1, cache.getStats().getEvictions());
+    assertFalse(lease.getLoader().isClosed());
+    lease.getLoader().runProposeRaw(new float[3 * 12 * 12]);
+
+    MxNetLoader evicted = lease.getLoader();
+    lease.close();
+    assertTrue(evicted.isClosed());
+    assertEquals(1, this.closed.get());
+    // an evicted predictor can't be leased anymore
+    assertFalse(evicted.retain());
+  }
+
+  @Test
+  public void testConcurrentLeasesRunOpenPredictors() throws Exception {
+    PNetPredictorCache cache = new PNetPredictorCache(2);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> runs = new ArrayList<>();
+      for (int thread = 0; thread < 8; thread++) {
+        int first = thread;
+        runs.add(executor.submit(() -> {
+          for (int i = 0; i < 500; i++) {
+            // more shapes than entries, most leases race with an eviction
+            int size = 12 * (1 + (first + i) % 4);
+            try (PNetPredictorCache.Lease lease = cache.lease(this.backend, "det1", 0, 0, size, size)) {
+              lease.getLoader().runProposeRaw(new float[3 * size * size]);
+            }
+          }
+          return null;
+        }));
+      }
+      for (Future<?> run : runs) {
+        run.get();
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+    assertTrue(cache.getStats().getEvictions() > 0);
+    // every evicted predictor was closed once its leases were released
+    assertEquals(cache.getStats().getEvictions(), this.closed.get());
+  }
+
+  @Test
+  public void testOwnersDontSharePredictors() {
+    PNetPredictorCache cache = new PNetPredictorCache(4);
+    MxNetLoader first = cache.get(this.backend, "det1", 1, 0, 12, 12);
+
+    assertSame(first, cache.get(this.backend, "det1", 1, 0, 12, 12));
+    // the slot 0 of another service
+    assertNotSame(first, cache.get(this.backend, "det1", 2, 0, 12, 12));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testClosedPredictorCantRun() {
+    PNetPredictorCache cache = new PNetPredictorCache(1);
+    MxNetLoader evicted = cache.get(this.backend, "det1", 0, 12, 12);
+    cache.get(this.backend, "det1", 0, 24, 24);
+    evicted.runProposeRaw(new float[3 * 12 * 12]);
+  }
+}
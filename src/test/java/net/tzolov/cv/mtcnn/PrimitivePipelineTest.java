@@ -0,0 +1,144 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.tzolov.cv.mtcnn;
+
+import static org.junit.Assert.assertEquals;
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
+
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * The primitive pipeline kernels against their {@link MtcnnUtil} counterparts, on the same boxes.
+ */
+public class PrimitivePipelineTest {
+
+  private static final int WIDTH = 320;
+
+  private static final int HEIGHT = 240;
+
+  /**
+   * @return Random boxes, a part of them crossing the image borders
+   */
+  private static BoxBuffer randomBoxes(int count) {
+    Random random = new Random(42);
+    BoxBuffer boxes = new BoxBuffer(count);
+    for (int i = 0; i < count; i++) {
+      float x1 = random.nextFloat() * (WIDTH + 40) - 40;
+      float y1 = random.nextFloat() * (HEIGHT + 40) - 40;
+      float w = 12 + random.nextFloat() * 100;
+      float h = 12 + random.nextFloat() * 100;
+      boxes.add(x1, y1, x1 + w, y1 + h, random.nextFloat(),
+          random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, random.nextFloat() - 0.5f);
+    }
+    return boxes;
+  }
+
+  @Test
+  public void testPadsMatchMtcnnUtilPad() {
+    BoxBuffer boxes = randomBoxes(64);
+    MtcnnUtil.PadResult expected = MtcnnUtil.pad(boxes.toINDArray(), WIDTH, HEIGHT);
+
+    PrimitivePipeline.Pads pads = new PrimitivePipeline.Pads();
+    pads.compute(boxes, WIDTH, HEIGHT);
+
+    for (int k = 0; k < boxes.size(); k++) {
+      assertEquals("dy " + k, expected.getDy().getInt(k), pads.dy[k]);
+      assertEquals("edy " + k, expected.getEdy().getInt(k), pads.edy[k]);
+      assertEquals("dx " + k, expected.getDx().getInt(k), pads.dx[k]);
+      assertEquals("edx " + k, expected.getEdx().getInt(k), pads.edx[k]);
+      assertEquals("y " + k, expected.getY().getInt(k), pads.y[k]);
+      assertEquals("ey " + k, expected.getEy().getInt(k), pads.ey[k]);
+      assertEquals("x " + k, expected.getX().getInt(k), pads.x[k]);
+      assertEquals("ex " + k, expected.getEx().getInt(k), pads.ex[k]);
+      assertEquals("tmpw " + k, expected.getTmpw().getInt(k), pads.tmpw[k]);
+      assertEquals("tmph " + k, expected.getTmph().getInt(k), pads.tmph[k]);
+    }
+  }
+
+  @Test
+  public void testBbregMatchesMtcnnUtilBbreg() {
+    BoxBuffer boxes = randomBoxes(64);
+    INDArray matrix = boxes.toINDArray();
+    INDArray expected = MtcnnUtil.bbreg(matrix.dup(), matrix.get(all(), interval(5, 9)).dup());
+
+    PrimitivePipeline.bbreg(boxes);
+
+    assertSameBoxes(expected, boxes);
+  }
+
+  @Test
+  public void testRerecMatchesMtcnnUtilRerec() {
+    for (boolean withFloor : new boolean[] {false, true}) {
+      BoxBuffer boxes = randomBoxes(64);
+      INDArray expected = MtcnnUtil.rerec(boxes.toINDArray(), withFloor);
+
+      PrimitivePipeline.rerec(boxes, withFloor);
+
+      assertSameBoxes(expected, boxes);
+    }
+  }
+
+  @Test
+  public void testPrimitivePipelineMatchesTheDefaultPipeline() throws IOException {
+    INDArray image3HW = DetectionAssertions.loadImage("classpath:/VikiMaxiAdi.jpg");
+    MtcnnService mtcnnService = new MtcnnService(20, 0.709, new double[] {0.6, 0.7, 0.7},
+        (int) image3HW.size(2), (int) image3HW.size(1));
+    FaceAnnotation[] expected = mtcnnService.faceDetection(image3HW);
+
+    mtcnnService.setPrimitivePipeline(true);
+    FaceAnnotation[] actual = mtcnnService.faceDetection(image3HW);
+
+    DetectionAssertions.assertSameFaces(expected, actual, 1);
+  }
+
+  @Test
+  public void testUint8ImageMatchesTheFloatImage() throws IOException {
+    INDArray image3HW = DetectionAssertions.loadImage("classpath:/VikiMaxiAdi.jpg");
+    int height = (int) image3HW.size(1);
+    int width = (int) image3HW.size(2);
+    MtcnnService mtcnnService = new MtcnnService(20, 0.709, new double[] {0.6, 0.7, 0.7}, width, height);
+    FaceAnnotation[] expected = mtcnnService.faceDetection(image3HW);
+
+    // the same pixels, interleaved [H, W, 3]
+    byte[] pixels = new byte[3 * height * width];
+    for (int y = 0, i = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        for (int c = 0; c < 3; c++) {
+          pixels[i++] = (byte) image3HW.getInt(c, y, x);
+        }
+      }
+    }
+
+    FaceAnnotation[] uint8Faces = mtcnnService.faceDetection(Uint8Image.of(pixels, height, width));
+    DetectionAssertions.assertSameFaces(expected, uint8Faces, 1);
+    DetectionAssertions.assertSameFaces(expected, mtcnnService.faceDetection(pixels, height, width), 0);
+  }
+
+  private static void assertSameBoxes(INDArray expected, BoxBuffer actual) {
+    assertEquals(expected.size(0), actual.size());
+    for (int k = 0; k < actual.size(); k++) {
+      assertEquals("x1 " + k, expected.getFloat(k, 0), actual.x1[k], 1e-3);
+      assertEquals("y1 " + k, expected.getFloat(k, 1), actual.y1[k], 1e-3);
+      assertEquals("x2 " + k, expected.getFloat(k, 2), actual.x2[k], 1e-3);
+      assertEquals("y2 " + k, expected.getFloat(k, 3), actual.y2[k], 1e-3);
+    }
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.tzolov.cv.mtcnn;
+
+import java.io.IOException;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * The STAGE 1 padded to the canonical shape buckets against the exact level shapes.
+ */
+public class ProposeShapeBucketsTest {
+
+  @Test
+  public void testBucketedDetectionMatchesTheExactShapes() throws IOException {
+    assertBucketedMatchesExact(false);
+  }
+
+  @Test
+  public void testBucketedPrimitiveDetectionMatchesTheExactShapes() throws IOException {
+    assertBucketedMatchesExact(true);
+  }
+
+  private static void assertBucketedMatchesExact(boolean primitivePipeline) throws IOException {
+    INDArray image3HW = DetectionAssertions.loadImage("classpath:/VikiMaxiAdi.jpg");
+    MtcnnService mtcnnService = new MtcnnService(20, 0.709, new double[] {0.6, 0.7, 0.7},
+        (int) image3HW.size(2), (int) image3HW.size(1));
+    mtcnnService.setPrimitivePipeline(primitivePipeline);
+    FaceAnnotation[] expected = mtcnnService.faceDetection(image3HW);
+
+    mtcnnService.setProposeShapeBuckets(PNetPredictorCache.DEFAULT_SHAPE_BUCKETS);
+    FaceAnnotation[] bucketed = mtcnnService.faceDetection(image3HW);
+
+    // the last cell of an odd sized level pools a padded pixel, hence the pixel of tolerance
+    DetectionAssertions.assertSameFaces(expected, bucketed, 1);
+  }
+}
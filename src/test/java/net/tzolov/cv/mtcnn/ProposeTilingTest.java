@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+public class ProposeTilingTest {
+
+  @Test
+  public void testSingleTile() {
+    ProposeTiling tiling = new ProposeTiling(300, 512);
+
+    assertEquals(1, tiling.count());
+    assertEquals(300, tiling.tileLength());
+    assertEquals(0, tiling.offset(0));
+    assertEquals(300, tiling.pixels(0));
+    assertEquals(145, tiling.validCells(0, 145));
+  }
+
+  @Test
+  public void testTilesCoverTheLevelHeatmapOnce() {
+    for (int length : new int[] {513, 1000, 1001, 4000}) {
+      ProposeTiling tiling = new ProposeTiling(length, 512);
+      // heatmap of a padding free 512 pixels tile
+      int outputCells = (512 - 12) / 2 + 1;
+
+      int next = 0;
+      for (int tile = 0; tile < tiling.count(); tile++) {
+        assertEquals(512, tiling.tileLength());
+        assertEquals(next, tiling.cellOffset(tile));
+        assertEquals(tiling.cellOffset(tile) * 2, tiling.offset(tile));
+        assertTrue(tiling.pixels(tile) > 0 && tiling.pixels(tile) <= 512);
+
+        int valid = tiling.validCells(tile, outputCells);
+        // the last kept cell sees level pixels only
+        assertTrue((tiling.cellOffset(tile) + valid - 1) * 2 + 12 <= length);
+        next += valid;
+      }
+      assertEquals((length - 12) / 2 + 1, next);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testOddTileSize() {
+    new ProposeTiling(1000, 501);
+  }
+
+  @Test
+  public void testTiledDetectionMatchesTheUntiledDetection() throws IOException {
+    INDArray image3HW = DetectionAssertions.loadImage("classpath:/VikiMaxiAdi.jpg");
+    MtcnnService mtcnnService = new MtcnnService(20, 0.709, new double[] {0.6, 0.7, 0.7},
+        (int) image3HW.size(2), (int) image3HW.size(1));
+    FaceAnnotation[] expected = mtcnnService.faceDetection(image3HW);
+
+    // the largest levels are split into several tiles
+    mtcnnService.setProposeTileSize(128);
+    FaceAnnotation[] tiled = mtcnnService.faceDetection(image3HW);
+    mtcnnService.setProposeTileParallelism(2);
+    FaceAnnotation[] tiledLanes = mtcnnService.faceDetection(image3HW);
+
+    DetectionAssertions.assertSameFaces(expected, tiled, 1);
+    DetectionAssertions.assertSameFaces(expected, tiledLanes, 1);
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.tzolov.cv.mtcnn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.List;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+public class PyramidPlanCacheTest {
+
+  @Test
+  public void testPyramidsAreMemoized() {
+    PyramidPlanCache cache = new PyramidPlanCache(20, 0.709, 4);
+
+    List<Double> scales = cache.get(712, 557);
+
+    assertEquals(MtcnnUtil.computeScalePyramid(712, 557, 20, 0.709), scales);
+    assertSame(scales, cache.get(712, 557));
+    assertEquals(1, cache.size());
+    // same pixel count, other orientation
+    assertNotSame(scales, cache.get(557, 712));
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedPyramidIsEvicted() {
+    PyramidPlanCache cache = new PyramidPlanCache(20, 0.709, 2);
+    List<Double> first = cache.get(480, 640);
+    List<Double> second = cache.get(720, 1280);
+
+    // touch the first, the second becomes the eldest
+    assertSame(first, cache.get(480, 640));
+    cache.get(250, 250);
+
+    assertEquals(2, cache.size());
+    assertSame(first, cache.get(480, 640));
+    List<Double> recomputed = cache.get(720, 1280);
+    assertNotSame(second, recomputed);
+    assertEquals(second, recomputed);
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void testResolutionIndependentServiceMatchesTheFixedSizeServices() throws IOException {
+    double[] stepsThreshold = new double[] {0.6, 0.7, 0.7};
+    INDArray[] images = new INDArray[] {DetectionAssertions.loadImage("classpath:/VikiMaxiAdi.jpg"),
+        DetectionAssertions.loadImage("classpath:/Anthony_Hopkins_0002.jpg")};
+    FaceAnnotation[][] expected = new FaceAnnotation[images.length][];
+    for (int i = 0; i < images.length; i++) {
+      expected[i] = new MtcnnService(20, 0.709, stepsThreshold, (int) images[i].size(2), (int) images[i].size(1))
+          .faceDetection(images[i]);
+    }
+
+    // the resolutions alternate, each detection follows one of the other resolution
+    MtcnnService resolutionIndependent = new MtcnnService(20, 0.709, stepsThreshold, 1);
+    for (int run = 0; run < 2; run++) {
+      for (int i = 0; i < images.length; i++) {
+        DetectionAssertions.assertSameFaces(expected[i], resolutionIndependent.faceDetection(images[i]), 0);
+      }
+    }
+  }
+}
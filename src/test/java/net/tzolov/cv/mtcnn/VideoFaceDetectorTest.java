@@ -0,0 +1,89 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tzolov.cv.mtcnn;
+
+import static net.tzolov.cv.mtcnn.DetectionAssertions.loadImage;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+public class VideoFaceDetectorTest {
+
+  private INDArray frame;
+  private VideoFaceDetector detector;
+
+  @Before
+  public void before() throws IOException {
+    this.frame = loadImage("classpath:/Anthony_Hopkins_0002.jpg");
+    MtcnnService mtcnnService = new MtcnnService(20, 0.709, new double[] {0.6, 0.7, 0.8},
+        (int) this.frame.size(2), (int) this.frame.size(1));
+    this.detector = new VideoFaceDetector(mtcnnService);
+    this.detector.setRedetectInterval(4);
+  }
+
+  @Test
+  public void testStillFacesAreTrackedBetweenKeyframes() throws IOException {
+    FaceAnnotation[] keyframeFaces = this.detector.faceDetection(this.frame);
+    assertEquals(1, keyframeFaces.length);
+
+    for (int i = 0; i < 3; i++) {
+      FaceAnnotation[] faces = this.detector.faceDetection(this.frame);
+      assertEquals(1, faces.length);
+      assertNear(keyframeFaces[0].getBoundingBox(), faces[0].getBoundingBox());
+    }
+    assertEquals(1, this.detector.getKeyframes());
+    assertEquals(3, this.detector.getTrackedFrames());
+
+    // the redetect interval is reached
+    this.detector.faceDetection(this.frame);
+    assertEquals(2, this.detector.getKeyframes());
+    assertEquals(3, this.detector.getTrackedFrames());
+  }
+
+  @Test
+  public void testLostTrackRunsAFullDetection() throws IOException {
+    this.detector.faceDetection(this.frame);
+
+    FaceAnnotation[] faces = this.detector.faceDetection(Nd4j.zeros(this.frame.shape()));
+    assertEquals(0, faces.length);
+    assertEquals(2, this.detector.getKeyframes());
+    assertEquals(0, this.detector.getTrackedFrames());
+  }
+
+  @Test
+  public void testResetForcesAKeyframe() throws IOException {
+    this.detector.faceDetection(this.frame);
+    this.detector.reset();
+    this.detector.faceDetection(this.frame);
+    assertEquals(2, this.detector.getKeyframes());
+  }
+
+  /**
+   * The tracked detections start from other boxes than the STAGE 1 proposals, the refined boxes move slightly.
+   */
+  private static void assertNear(FaceAnnotation.BoundingBox expected, FaceAnnotation.BoundingBox actual) {
+    int tolerance = Math.max(2, expected.getW() / 10);
+    assertTrue(Math.abs(expected.getX() - actual.getX()) <= tolerance
+        && Math.abs(expected.getY() - actual.getY()) <= tolerance
+        && Math.abs(expected.getW() - actual.getW()) <= tolerance
+        && Math.abs(expected.getH() - actual.getH()) <= tolerance);
+  }
+}